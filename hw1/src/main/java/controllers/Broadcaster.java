@@ -0,0 +1,262 @@
+package controllers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends web socket messages without blocking the caller.
+ *
+ * <p>Every session has a bounded queue of outgoing messages and at most one
+ * asynchronous send in flight, so a slow client only delays itself. A message takes the
+ * place of the queued message with the same key, e.g. an older state of the same game,
+ * so a client that falls behind only gets the latest one. A client is disconnected when
+ * its queue is full of messages that cannot be replaced, when its oldest message waited
+ * longer than the lag threshold, or when a send fails. The lag is also checked in the
+ * background, so a client that is not sent anything more still lets go of its queue.
+ *
+ * <p>The queue capacity and the lag threshold are configured with the
+ * broadcast.queueCapacity and broadcast.maxLagMillis system properties. Messages and
+ * bytes written and disconnections are counted in the websocket_* metrics.
+ */
+public final class Broadcaster {
+
+  private static final Logger logger = LoggerFactory.getLogger(Broadcaster.class);
+
+  private static final int QUEUE_CAPACITY = Integer.getInteger("broadcast.queueCapacity", 64);
+
+  private static final long MAX_LAG_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("broadcast.maxLagMillis", 5000));
+
+  private static final ConcurrentMap<Session, Outbound> OUTBOUND = new ConcurrentHashMap<>();
+
+  private static final LongAdder MESSAGES_SENT =
+      Metrics.counter("websocket_sent_messages_total", "Web socket messages written");
+
+  private static final LongAdder BYTES_SENT =
+      Metrics.counter("websocket_sent_bytes_total", "Web socket payload bytes written");
+
+  private static final ScheduledExecutorService LAG_CHECK =
+      Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "broadcast-lag-check");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  static {
+    long period = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(MAX_LAG_NANOS), 1000));
+    LAG_CHECK.scheduleWithFixedDelay(Broadcaster::checkLag, period, period,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private Broadcaster() {
+  }
+
+  /**
+   * Queue a message to the session.
+   * @param key messages with equal keys supersede each other when the client falls behind,
+   *     null if the message must not be dropped
+   */
+  public static void send(final Session session, final String message, final Object key) {
+    enqueue(session, message, key);
+  }
+
+  /**
+   * Queue a binary message to the session.
+   * @param key messages with equal keys supersede each other when the client falls behind,
+   *     null if the message must not be dropped
+   */
+  public static void send(final Session session, final byte[] message, final Object key) {
+    enqueue(session, message, key);
+  }
+
+  private static void enqueue(final Session session, final Object message, final Object key) {
+    if (!session.isOpen()) {
+      OUTBOUND.remove(session);
+      return;
+    }
+
+    OUTBOUND.computeIfAbsent(session, Outbound::new).offer(message, key);
+  }
+
+  /**
+   * Forget the queue of a closed session.
+   */
+  public static void remove(final Session session) {
+    OUTBOUND.remove(session);
+  }
+
+  private static void checkLag() {
+    long now = System.nanoTime();
+    for (Outbound outbound : OUTBOUND.values()) {
+      try {
+        outbound.checkLag(now);
+      } catch (RuntimeException e) {
+        logger.warn("Failed to check the lag of a web socket client", e);
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final Object key;
+
+    private final long queuedAt;
+
+    // A String sent as a text frame or a byte[] sent as a binary frame, replaced by
+    // newer messages with the same key, guarded by the Outbound
+    private Object message;
+
+    private Entry(Object message, Object key, long queuedAt) {
+      this.message = message;
+      this.key = key;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  private static final class Outbound implements WriteCallback {
+    private final Session session;
+
+    // Guarded by this
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+    // The queued entries that have a key
+    private final Map<Object, Entry> byKey = new HashMap<>();
+
+    private boolean sending;
+
+    // When the send in flight was started
+    private long sendingSince;
+
+    // Payload size of the message in flight
+    private int sendingBytes;
+
+    private boolean evicted;
+
+    private Outbound(Session session) {
+      this.session = session;
+    }
+
+    synchronized void offer(Object message, Object key) {
+      if (evicted) {
+        return;
+      }
+
+      long now = System.nanoTime();
+      if (checkLag(now)) {
+        return;
+      }
+
+      // An older state superseded by this message does not need to be sent any more,
+      // the newer one keeps its place in the queue
+      Entry superseded = key == null ? null : byKey.get(key);
+      if (superseded != null) {
+        superseded.message = message;
+        return;
+      }
+
+      if (queue.size() >= QUEUE_CAPACITY) {
+        evict("Too many pending messages");
+        return;
+      }
+
+      Entry entry = new Entry(message, key, now);
+      queue.add(entry);
+      if (key != null) {
+        byKey.put(key, entry);
+      }
+      if (!sending) {
+        sendNext();
+      }
+    }
+
+    /**
+     * Disconnect the client if its oldest message, queued or in flight, waited longer
+     * than the lag threshold.
+     * @return whether the client is disconnected
+     */
+    synchronized boolean checkLag(long now) {
+      if (evicted) {
+        return true;
+      }
+
+      Entry oldest = queue.peek();
+      if ((oldest != null && now - oldest.queuedAt > MAX_LAG_NANOS)
+          || (sending && now - sendingSince > MAX_LAG_NANOS)) {
+        evict("Too far behind");
+        return true;
+      }
+      return false;
+    }
+
+    private void sendNext() {
+      Entry entry = queue.poll();
+      sending = entry != null;
+      if (!sending) {
+        return;
+      }
+
+      if (entry.key != null) {
+        byKey.remove(entry.key);
+      }
+      sendingSince = System.nanoTime();
+      try {
+        if (entry.message instanceof String) {
+          // Boards and updates are ASCII, so this is also the UTF-8 length
+          sendingBytes = ((String) entry.message).length();
+          session.getRemote().sendString((String) entry.message, this);
+        } else {
+          sendingBytes = ((byte[]) entry.message).length;
+          session.getRemote().sendBytes(ByteBuffer.wrap((byte[]) entry.message), this);
+        }
+      } catch (RuntimeException e) {
+        // E.g. the session closed since the message was queued, no callback follows
+        logger.debug("Failed to send to web socket client {}", session.getRemoteAddress(), e);
+        sending = false;
+        evict("Send failed");
+      }
+    }
+
+    private void evict(String reason) {
+      evicted = true;
+      queue.clear();
+      byKey.clear();
+      OUTBOUND.remove(session, this);
+      Metrics.counter("websocket_evictions_total", "Web socket clients disconnected for lagging",
+          "reason", reason).increment();
+      logger.info("Disconnecting web socket client {}: {}", session.getRemoteAddress(), reason);
+      session.close(StatusCode.POLICY_VIOLATION, reason);
+    }
+
+    @Override
+    public synchronized void writeSuccess() {
+      MESSAGES_SENT.increment();
+      BYTES_SENT.add(sendingBytes);
+      if (!evicted) {
+        sendNext();
+      }
+    }
+
+    @Override
+    public synchronized void writeFailed(Throwable x) {
+      logger.debug("Failed to send to web socket client {}", session.getRemoteAddress(), x);
+      sending = false;
+      // The send in flight of a client already evicted fails as its session closes
+      if (!evicted) {
+        evict("Send failed");
+      }
+    }
+  }
+}
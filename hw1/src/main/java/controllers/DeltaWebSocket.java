@@ -0,0 +1,128 @@
+package controllers;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import data.GameRegistry;
+import io.javalin.websocket.WsHandler;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import metrics.Histogram;
+import metrics.Metrics;
+import models.BoardUpdate;
+import models.GameBoard;
+import models.JsonEncoder;
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Web socket of the delta protocol. After every move its clients receive a
+ * {@link BoardUpdate} holding only the changed cell instead of the whole board.
+ *
+ * <p>A client asks for the full state of a game, when it starts watching it or when it
+ * notices a gap in the versions, by sending {@code {"type":"resync","gameId":1}}. The
+ * first resync of a game subscribes the client to it, and like {@link GameChannels} a
+ * client only receives the updates of the games it subscribed to.
+ */
+public class DeltaWebSocket implements Consumer<WsHandler> {
+
+  private static final Gson gson = new Gson();
+
+  private static final Histogram FANOUT = Metrics.histogram("websocket_fanout_seconds",
+      "Latency of queueing a message to every subscriber", "endpoint", "/gamedeltas");
+
+  // Subscribers of every game that has any, channels are removed when they become empty
+  private final ConcurrentMap<Integer, Set<Session>> channels = new ConcurrentHashMap<>();
+
+  // The games every connected session subscribed to
+  private final ConcurrentMap<Session, Set<Integer>> subscriptions = new ConcurrentHashMap<>();
+
+  private final GameRegistry games;
+
+  public DeltaWebSocket(GameRegistry games) {
+    this.games = games;
+  }
+
+  @Override
+  public void accept(final WsHandler t) {
+    t.onConnect(ctx -> subscriptions.put(ctx.session, ConcurrentHashMap.newKeySet()));
+    t.onMessage(ctx -> handleMessage(ctx.session, ctx.message()));
+    t.onClose(ctx -> {
+      Set<Integer> gameIds = subscriptions.remove(ctx.session);
+      if (gameIds == null) {
+        return;
+      }
+
+      for (int gameId : gameIds) {
+        // compute() runs atomically with the creation of a channel below
+        channels.computeIfPresent(gameId, (id, sessions) -> {
+          sessions.remove(ctx.session);
+          return sessions.isEmpty() ? null : sessions;
+        });
+      }
+    });
+  }
+
+  /**
+   * Get the connected clients.
+   */
+  public Set<Session> getSessions() {
+    return subscriptions.keySet();
+  }
+
+  /**
+   * Send an update to the subscribers of its game without waiting for them. Deltas are
+   * never dropped, a client too far behind is disconnected instead, see
+   * {@link Broadcaster}.
+   */
+  public void broadcast(final BoardUpdate update) {
+    Set<Session> sessions = channels.get(update.getGameId());
+    if (sessions == null) {
+      return;
+    }
+
+    long start = System.nanoTime();
+    String json = JsonEncoder.encode(update);
+    for (Session session : sessions) {
+      Broadcaster.send(session, json, null);
+    }
+    FANOUT.recordSince(start);
+  }
+
+  private void handleMessage(final Session session, final String message) {
+    ClientMessage request;
+    try {
+      request = gson.fromJson(message, ClientMessage.class);
+    } catch (JsonSyntaxException e) {
+      return;
+    }
+
+    if (request == null || !"resync".equals(request.type)) {
+      return;
+    }
+
+    GameBoard board = games.get(request.gameId);
+    Set<Integer> gameIds = subscriptions.get(session);
+    if (board == null || gameIds == null) {
+      return;
+    }
+
+    // Subscribed before the full update is taken, so no later delta is missed
+    if (gameIds.add(request.gameId)) {
+      channels.compute(request.gameId, (id, sessions) -> {
+        if (sessions == null) {
+          sessions = ConcurrentHashMap.newKeySet();
+        }
+        sessions.add(session);
+        return sessions;
+      });
+    }
+    Broadcaster.send(session, JsonEncoder.encode(BoardUpdate.full(board)), null);
+  }
+
+  private static class ClientMessage {
+    private String type;
+
+    private int gameId;
+  }
+}
@@ -0,0 +1,148 @@
+package controllers;
+
+import io.javalin.http.Context;
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsHandler;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import metrics.Histogram;
+import metrics.Metrics;
+import models.BinaryEncoder;
+import models.GameBoard;
+import org.eclipse.jetty.websocket.api.Session;
+
+/**
+ * Web socket with one channel per game, e.g. {@code /gameboard/:gameId}. Its clients
+ * only receive the updates of the game they subscribed to, so the cost of a broadcast
+ * depends on the number of watchers of that game, not on the number of connections.
+ *
+ * <p>Clients that request the {@value #BINARY_PROTOCOL} subprotocol receive boards
+ * encoded by {@link BinaryEncoder} in binary frames, other clients receive JSON.
+ */
+public class GameChannels implements Consumer<WsHandler> {
+
+  public static final String BINARY_PROTOCOL = "tictactoe.binary";
+
+  private static final String PROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+
+  private static final Histogram FANOUT = Metrics.histogram("websocket_fanout_seconds",
+      "Latency of queueing a message to every subscriber", "endpoint", "/gameboard/:gameId");
+
+  // Subscribers of every game that has any, mapped to whether they asked for binary
+  // frames, channels are removed when they become empty
+  private static final ConcurrentMap<Integer, ConcurrentMap<Session, Boolean>> CHANNELS =
+      new ConcurrentHashMap<>();
+
+  @Override
+  public void accept(final WsHandler t) {
+    t.onConnect(ctx -> {
+      Integer gameId = gameId(ctx);
+      if (gameId == null) {
+        ctx.session.close(1008, "Invalid game id");
+        return;
+      }
+
+      // compute() runs atomically with the removal of an empty channel below
+      boolean binary = ctx.session.getUpgradeRequest().getSubProtocols()
+          .contains(BINARY_PROTOCOL);
+      CHANNELS.compute(gameId, (id, sessions) -> {
+        if (sessions == null) {
+          sessions = new ConcurrentHashMap<>();
+        }
+        sessions.put(ctx.session, binary);
+        return sessions;
+      });
+    });
+
+    t.onClose(ctx -> {
+      Integer gameId = gameId(ctx);
+      if (gameId != null) {
+        CHANNELS.computeIfPresent(gameId, (id, sessions) -> {
+          sessions.remove(ctx.session);
+          return sessions.isEmpty() ? null : sessions;
+        });
+      }
+    });
+  }
+
+  /**
+   * Accept the binary subprotocol during the upgrade of a channel request that asks for
+   * it. Javalin does not expose the upgrade itself, so this runs as part of the access
+   * manager, before the handshake response is written.
+   */
+  public static void negotiate(final Context ctx) {
+    String requested = ctx.header(PROTOCOL_HEADER);
+    if (requested == null || !"/gameboard/:gameId".equals(ctx.matchedPath())) {
+      return;
+    }
+
+    for (String protocol : requested.split(",")) {
+      if (BINARY_PROTOCOL.equals(protocol.trim())) {
+        ctx.header(PROTOCOL_HEADER, BINARY_PROTOCOL);
+        return;
+      }
+    }
+  }
+
+  private static Integer gameId(final WsContext ctx) {
+    try {
+      return Integer.valueOf(ctx.pathParam("gameId"));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get the subscribers of the specified game.
+   */
+  public static Set<Session> getSessions(int gameId) {
+    Map<Session, Boolean> sessions = CHANNELS.get(gameId);
+    return sessions == null ? Collections.emptySet() : sessions.keySet();
+  }
+
+  /**
+   * Get the number of games that have subscribers.
+   */
+  public static int getChannelCount() {
+    return CHANNELS.size();
+  }
+
+  /**
+   * Get the number of subscribers of all games.
+   */
+  public static int getSessionCount() {
+    int count = 0;
+    for (Map<Session, Boolean> sessions : CHANNELS.values()) {
+      count += sessions.size();
+    }
+    return count;
+  }
+
+  /** Send the board to the subscribers of its game without waiting for them.
+   * Call it from the shard thread of the game, see {@link GameShards}, so that the
+   * updates of a game are sent in the order they were applied.
+   */
+  public static void broadcast(GameBoard board) {
+    Map<Session, Boolean> sessions = CHANNELS.get(board.getGameId());
+    if (sessions == null) {
+      return;
+    }
+
+    // Both encodings of one snapshot
+    board = board.copy();
+
+    long start = System.nanoTime();
+    for (Map.Entry<Session, Boolean> entry : sessions.entrySet()) {
+      if (entry.getValue()) {
+        Broadcaster.send(entry.getKey(), board.toBinary(), board.getGameId());
+      } else {
+        Broadcaster.send(entry.getKey(), board.toJson(), board.getGameId());
+      }
+    }
+    FANOUT.recordSince(start);
+  }
+}
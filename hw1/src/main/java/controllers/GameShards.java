@@ -0,0 +1,287 @@
+package controllers;
+
+import data.GameStore;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import metrics.Histogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs every change of a game on the single thread of the shard that owns the game, so
+ * the changes of one game are applied, broadcast and saved in order without locks, and
+ * games on different shards never wait for each other.
+ *
+ * <p>Each shard drains its bounded queue of commands in batches and runs a batch in three
+ * stages: every command is applied and its caller released, then the changes are
+ * broadcast, then they are handed to the game store. The saves of a batch are made
+ * through {@link GameStore#saveAll}, so the shard waits for the store once per batch, not
+ * once per save. Depending on the durability of the store, a caller is released once
+ * its change is applied, or only once the batch holding it is saved. Either way the
+ * change is broadcast before it is saved. When the queue of a shard is full a command is
+ * rejected right away instead of adding to the latency of everything behind it.
+ */
+public final class GameShards {
+
+  private static final Logger logger = LoggerFactory.getLogger(GameShards.class);
+
+  private static final int MAX_BATCH_SIZE = 256;
+
+  private static final Histogram QUEUE_WAIT = Metrics.histogram("game_shard_wait_seconds",
+      "Time commands wait in the queue of their shard");
+
+  private final Shard[] shards;
+
+  private final GameStore store;
+
+  private final boolean releaseAfterPersist;
+
+  /**
+   * A change of one game.
+   */
+  public interface Command<T> {
+
+    /**
+     * Validate and apply the change, the result is handed to the caller right away.
+     */
+    T apply() throws Exception;
+
+    /**
+     * Send the change to the clients, after every command of the batch is applied.
+     */
+    default void broadcast() {
+    }
+
+    /**
+     * Hand the change to the game store, after the batch is broadcast. Runs inside the
+     * {@link GameStore#saveAll} of the batch, so a save need not wait for the disk.
+     */
+    default void persist() throws SQLException {
+    }
+  }
+
+  /**
+   * Start the shards, persisting without a game store.
+   * @param queueCapacity how many commands can wait for each shard
+   */
+  public GameShards(int shardCount, int queueCapacity) {
+    this(shardCount, queueCapacity, null, false);
+  }
+
+  /**
+   * Start the shards.
+   * @param queueCapacity how many commands can wait for each shard
+   * @param store the store the commands save to, the saves of every batch are made
+   *     through its {@link GameStore#saveAll}, null if they save nowhere
+   * @param releaseAfterPersist whether a caller waits for the batch holding its change to
+   *     be saved, the save failing then fails the caller with its exception, otherwise
+   *     the caller is released once the change is applied
+   */
+  public GameShards(int shardCount, int queueCapacity, GameStore store,
+      boolean releaseAfterPersist) {
+    this.store = store;
+    this.releaseAfterPersist = releaseAfterPersist;
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; ++i) {
+      shards[i] = new Shard(i, queueCapacity);
+      Metrics.gauge("game_shard_queue_depth", "Commands waiting for the shard",
+          shards[i].queue::size, "shard", Integer.toString(i));
+    }
+  }
+
+  /**
+   * Queue a command on the shard of the game.
+   * @return completed with the result of {@link Command#apply}, or exceptionally with a
+   *     {@link RejectedExecutionException} if the shard is overloaded or closed, or with
+   *     the exception of the save if the caller waits for it
+   */
+  public <T> CompletableFuture<T> submit(int gameId, Command<T> command) {
+    Task<T> task = new Task<>(command);
+    Shard shard = shards[Math.floorMod(gameId, shards.length)];
+    if (shard.closed || !shard.queue.offer(task)) {
+      task.future.completeExceptionally(new RejectedExecutionException(
+          "Shard " + shard.index + " is " + (shard.closed ? "closed" : "overloaded")));
+    }
+    return task.future;
+  }
+
+  /**
+   * Run a command on the shard of the game and wait for the result.
+   * @throws RejectedExecutionException if the shard is overloaded or closed
+   */
+  public <T> T call(int gameId, Command<T> command) throws Exception {
+    try {
+      return submit(gameId, command).get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof Exception) {
+        throw (Exception) cause;
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Run the commands already queued and stop the shards.
+   */
+  public void close() {
+    for (Shard shard : shards) {
+      shard.closed = true;
+      try {
+        shard.queue.put(Task.CLOSE);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+
+    for (Shard shard : shards) {
+      try {
+        shard.thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private static final class Task<T> {
+    private static final Task<Void> CLOSE = new Task<>(() -> null);
+
+    private final Command<T> command;
+
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    private final long queuedAt = System.nanoTime();
+
+    private boolean applied;
+
+    private T result;
+
+    private Exception persistFailure;
+
+    private Task(Command<T> command) {
+      this.command = command;
+    }
+
+    private void apply(boolean release) {
+      QUEUE_WAIT.recordSince(queuedAt);
+      try {
+        result = command.apply();
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+        return;
+      }
+      applied = true;
+      if (release) {
+        future.complete(result);
+      }
+    }
+
+    /**
+     * Release the caller once the change is saved.
+     */
+    private void release(Exception batchFailure) {
+      Exception failure = persistFailure != null ? persistFailure : batchFailure;
+      if (failure != null) {
+        future.completeExceptionally(failure);
+      } else {
+        future.complete(result);
+      }
+    }
+  }
+
+  private final class Shard implements Runnable {
+    private final int index;
+
+    private final BlockingQueue<Task<?>> queue;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private Shard(int index, int queueCapacity) {
+      this.index = index;
+      this.queue = new ArrayBlockingQueue<>(queueCapacity);
+      this.thread = new Thread(this, "game-shard-" + index);
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    @Override
+    public void run() {
+      List<Task<?>> batch = new ArrayList<>(MAX_BATCH_SIZE);
+      boolean closing = false;
+      while (!closing) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+        closing = batch.remove(Task.CLOSE);
+
+        for (Task<?> task : batch) {
+          task.apply(!releaseAfterPersist);
+        }
+
+        for (Task<?> task : batch) {
+          if (task.applied) {
+            try {
+              task.command.broadcast();
+            } catch (RuntimeException e) {
+              logger.error("Failed to broadcast a change", e);
+            }
+          }
+        }
+
+        Exception batchFailure = null;
+        try {
+          if (store == null) {
+            persist(batch);
+          } else {
+            store.saveAll(() -> persist(batch));
+          }
+        } catch (SQLException | RuntimeException e) {
+          logger.error("Failed to save a batch of {} changes", batch.size(), e);
+          batchFailure = e;
+        }
+
+        if (releaseAfterPersist) {
+          for (Task<?> task : batch) {
+            if (task.applied) {
+              task.release(batchFailure);
+            }
+          }
+        }
+        batch.clear();
+      }
+
+      // Queued while closing
+      for (Task<?> task = queue.poll(); task != null; task = queue.poll()) {
+        task.future.completeExceptionally(
+            new RejectedExecutionException("Shard " + index + " is closed"));
+      }
+    }
+
+    private void persist(List<Task<?>> batch) {
+      for (Task<?> task : batch) {
+        if (task.applied) {
+          try {
+            task.command.persist();
+          } catch (SQLException | RuntimeException e) {
+            logger.error("Failed to save a change", e);
+            task.persistFailure = e;
+          }
+        }
+      }
+    }
+  }
+}
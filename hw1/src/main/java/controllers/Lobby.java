@@ -0,0 +1,525 @@
+package controllers;
+
+import com.google.gson.JsonObject;
+import io.javalin.websocket.WsHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import metrics.Histogram;
+import metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Matchmaking lobby pairing waiting players into new games.
+ *
+ * <p>Players enter through a bounded queue drained in batches by the single lobby thread,
+ * the same way {@link GameShards} run game changes, so pairing needs no locks: every
+ * player waits in the queue of the mark they asked for, or of either mark, and an
+ * arrival is paired with the head of a compatible queue in O(1). Players who wait longer
+ * than the timeout leave the lobby. Each ticket can be watched on the web socket
+ * {@code /lobby/:ticket}, which receives the ticket once it is matched or leaves.
+ */
+public final class Lobby implements Consumer<WsHandler> {
+
+  private static final Logger logger = LoggerFactory.getLogger(Lobby.class);
+
+  private static final int MAX_BATCH_SIZE = 256;
+
+  // How long players whose game could not be started wait before they are paired again
+  private static final long RETRY_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private static final Histogram WAIT =
+      Metrics.histogram("lobby_wait_seconds", "Time players wait in the lobby for a match");
+
+  private static final LongAdder EXPIRED =
+      Metrics.counter("lobby_expired_total", "Players whose wait in the lobby timed out");
+
+  // Which mark a player asked for
+  private static final int WANTS_X = 0;
+
+  private static final int WANTS_O = 1;
+
+  private static final int WANTS_ANY = 2;
+
+  private final long timeoutNanos;
+
+  private final Pairing pairing;
+
+  private final BlockingQueue<Ticket> arrivals;
+
+  private final ConcurrentMap<Long, Ticket> tickets = new ConcurrentHashMap<>();
+
+  private final AtomicLong lastId = new AtomicLong();
+
+  private final Thread thread;
+
+  private volatile boolean closed;
+
+  // Owned by the lobby thread: the players waiting for each mark in order of waiting, and
+  // the tickets that left the lobby, forgotten once they are older than the timeout
+  private final List<ArrayDeque<Ticket>> waiting = new ArrayList<>();
+
+  private final ArrayDeque<Ticket> left = new ArrayDeque<>();
+
+  // Handed back tickets waiting for their retry
+  private final ArrayDeque<Ticket> delayed = new ArrayDeque<>();
+
+  /**
+   * What happened to a player in the lobby.
+   */
+  public enum Status {
+    WAITING,
+    // Held by the lobby thread while it looks for a partner, reported as WAITING
+    CLAIMED,
+    // Paired, the game is being started
+    STARTING,
+    MATCHED, EXPIRED, CANCELLED, FAILED
+  }
+
+  /**
+   * Starts the game of two matched players.
+   */
+  public interface Pairing {
+
+    /**
+     * Create the game, called on the lobby thread. Once the game starts both tickets must
+     * be completed with {@link Lobby#started}, or handed back with {@link Lobby#requeue}
+     * if it cannot be started.
+     * @param player1 the player who waited longer, who moves first
+     */
+    void pair(Ticket player1, Ticket player2);
+  }
+
+  /**
+   * A player in the lobby.
+   */
+  public static final class Ticket {
+    private final long id;
+
+    // The mark the player asked for, 0 for either
+    private final char mark;
+
+    private final String name;
+
+    private final long enteredAt = System.nanoTime();
+
+    private final AtomicReference<Status> status = new AtomicReference<>(Status.WAITING);
+
+    private final CompletableFuture<Ticket> done = new CompletableFuture<>();
+
+    // Set when the player leaves while the ticket is claimed, answered once it is released
+    private final AtomicReference<CompletableFuture<Boolean>> cancelRequest =
+        new AtomicReference<>();
+
+    // Owned by the lobby thread
+    private long waitingSince = enteredAt;
+
+    private long leftAt;
+
+    private long retryAt;
+
+    // Written before the status becomes MATCHED
+    private volatile int gameId;
+
+    private volatile int playerId;
+
+    private volatile char assignedMark;
+
+    private Ticket(long id, char mark, String name) {
+      this.id = id;
+      this.mark = mark;
+      this.name = name;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Status getStatus() {
+      Status current = status.get();
+      return current == Status.CLAIMED ? Status.WAITING : current;
+    }
+
+    /**
+     * Get the mark the player plays with, once paired.
+     */
+    public char getAssignedMark() {
+      return assignedMark;
+    }
+
+    /**
+     * Completed once the player is matched or leaves the lobby.
+     */
+    public CompletableFuture<Ticket> getDone() {
+      return done;
+    }
+
+    /**
+     * Encode the ticket as {"ticket":1,"status":"MATCHED","gameId":1,"playerId":1,
+     * "type":"X"}, the game fields only present once matched.
+     */
+    public String toJson() {
+      JsonObject json = new JsonObject();
+      json.addProperty("ticket", id);
+      Status current = getStatus();
+      json.addProperty("status", current.name());
+      if (current == Status.MATCHED) {
+        json.addProperty("gameId", gameId);
+        json.addProperty("playerId", playerId);
+        json.addProperty("type", String.valueOf(assignedMark));
+      }
+      return json.toString();
+    }
+
+    private boolean isWaiting() {
+      return status.get() == Status.WAITING;
+    }
+
+    private boolean claim() {
+      return status.compareAndSet(Status.WAITING, Status.CLAIMED);
+    }
+
+    /**
+     * Move a ticket claimed by the lobby thread on, nothing else changes a claimed ticket.
+     */
+    private void release(Status next) {
+      if (!status.compareAndSet(Status.CLAIMED, next)) {
+        throw new IllegalStateException("Ticket " + id + " changed while claimed");
+      }
+      answerCancel();
+    }
+
+    /**
+     * Answer the request to leave the lobby, unless the ticket is claimed again. Called by
+     * whoever cancels and by the lobby thread as it releases the ticket, so a request made
+     * just as the ticket is released is answered by one of them.
+     */
+    private void answerCancel() {
+      CompletableFuture<Boolean> request = cancelRequest.get();
+      if (request == null) {
+        return;
+      }
+
+      while (true) {
+        Status current = status.get();
+        if (current == Status.CLAIMED) {
+          // Answered when the lobby thread releases it
+          return;
+        }
+        if (current != Status.WAITING || leave(Status.CANCELLED)) {
+          request.complete(status.get() == Status.CANCELLED);
+          return;
+        }
+      }
+    }
+
+    private boolean leave(Status reason) {
+      if (!status.compareAndSet(Status.WAITING, reason)) {
+        return false;
+      }
+      done.complete(this);
+      return true;
+    }
+  }
+
+  /**
+   * Start the lobby.
+   * @param timeoutMillis how long a player waits for a match
+   * @param queueCapacity how many arrivals can wait for the lobby thread
+   */
+  public Lobby(long timeoutMillis, int queueCapacity, Pairing pairing) {
+    this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    this.pairing = pairing;
+    this.arrivals = new ArrayBlockingQueue<>(queueCapacity);
+    for (int i = WANTS_X; i <= WANTS_ANY; ++i) {
+      waiting.add(new ArrayDeque<>());
+    }
+    Metrics.gauge("lobby_tickets", "Tickets waiting or recently out of the lobby",
+        tickets::size);
+    this.thread = new Thread(this::run, "lobby");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  @Override
+  public void accept(final WsHandler t) {
+    t.onConnect(ctx -> {
+      Ticket ticket = get(parseTicketId(ctx.pathParam("ticket")));
+      if (ticket == null) {
+        ctx.session.close(1008, "Ticket not found");
+        return;
+      }
+      ticket.done.thenAccept(done -> Broadcaster.send(ctx.session, done.toJson(), null));
+    });
+  }
+
+  /**
+   * Enter the lobby.
+   * @param mark the mark the player asks for, 0 for either
+   * @param name the name the player is ranked under, or null
+   * @throws RejectedExecutionException if the lobby is overloaded or closed
+   */
+  public Ticket enter(char mark, String name) {
+    Ticket ticket = new Ticket(lastId.incrementAndGet(), mark, name);
+    tickets.put(ticket.id, ticket);
+    if (closed || !arrivals.offer(ticket)) {
+      tickets.remove(ticket.id);
+      throw new RejectedExecutionException("Lobby is " + (closed ? "closed" : "overloaded"));
+    }
+    return ticket;
+  }
+
+  /**
+   * Parse the id of a ticket.
+   * @return the id, or null if it is not a number
+   */
+  public static Long parseTicketId(String id) {
+    try {
+      return Long.valueOf(id);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Get a ticket that is waiting or left the lobby recently.
+   * @return the ticket, or null if there is no such ticket
+   */
+  public Ticket get(Long id) {
+    return id == null ? null : tickets.get(id);
+  }
+
+  /**
+   * Leave the lobby. A ticket the lobby thread is pairing at the moment leaves once it is
+   * handed back, or stays if it was paired.
+   * @return completed with false if the player was already paired or left
+   */
+  public CompletableFuture<Boolean> cancel(Ticket ticket) {
+    // Dropped from its queue when the lobby thread reaches it
+    if (ticket.leave(Status.CANCELLED)) {
+      return CompletableFuture.completedFuture(true);
+    }
+    if (ticket.status.get() != Status.CLAIMED) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    ticket.cancelRequest.compareAndSet(null, new CompletableFuture<>());
+    CompletableFuture<Boolean> request = ticket.cancelRequest.get();
+    ticket.answerCancel();
+    return request;
+  }
+
+  /**
+   * Complete the tickets of two players whose game started. Both seats are published
+   * before either player is notified, so neither can see the game before the other.
+   */
+  public static void started(int gameId, Ticket player1, Ticket player2) {
+    player1.gameId = gameId;
+    player1.playerId = 1;
+    player2.gameId = gameId;
+    player2.playerId = 2;
+    player1.status.compareAndSet(Status.STARTING, Status.MATCHED);
+    player2.status.compareAndSet(Status.STARTING, Status.MATCHED);
+    player1.done.complete(player1);
+    player2.done.complete(player2);
+  }
+
+  /**
+   * Hand back two players whose game could not be started, they wait again with a new
+   * deadline and are paired after a short delay. Players the lobby cannot take back fail.
+   */
+  public void requeue(Ticket player1, Ticket player2) {
+    for (Ticket ticket : new Ticket[] {player1, player2}) {
+      if (!ticket.status.compareAndSet(Status.STARTING, Status.WAITING)) {
+        continue;
+      }
+      ticket.retryAt = System.nanoTime() + RETRY_DELAY_NANOS;
+      if (closed || !arrivals.offer(ticket)) {
+        ticket.leave(Status.FAILED);
+      }
+    }
+  }
+
+  /**
+   * Stop the lobby, waiting players leave as expired.
+   */
+  public void close() {
+    closed = true;
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void run() {
+    List<Ticket> batch = new ArrayList<>(MAX_BATCH_SIZE);
+    while (!closed) {
+      try {
+        Ticket first = arrivals.poll(nanosToNextDeadline(), TimeUnit.NANOSECONDS);
+        if (first != null) {
+          batch.add(first);
+          arrivals.drainTo(batch, MAX_BATCH_SIZE - 1);
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      long now = System.nanoTime();
+      for (Ticket head = delayed.peekFirst(); head != null && head.retryAt <= now;
+          head = delayed.peekFirst()) {
+        batch.add(delayed.pollFirst());
+      }
+      for (Ticket ticket : batch) {
+        if (ticket.retryAt > now) {
+          // Handed back, every ticket is delayed by the same time so this stays in order
+          delayed.addLast(ticket);
+        } else {
+          match(ticket);
+        }
+      }
+      batch.clear();
+      expire(System.nanoTime());
+    }
+
+    arrivals.drainTo(batch);
+    batch.addAll(delayed);
+    for (Ticket ticket : batch) {
+      expire(ticket);
+    }
+    expire(Long.MAX_VALUE);
+  }
+
+  private void match(Ticket ticket) {
+    if (!ticket.claim()) {
+      // Cancelled before it reached the lobby thread
+      leave(ticket, System.nanoTime());
+      return;
+    }
+
+    int wants = ticket.mark == 'X' ? WANTS_X : ticket.mark == 'O' ? WANTS_O : WANTS_ANY;
+    Ticket partner = null;
+    if (wants != WANTS_O) {
+      partner = poll(WANTS_O);
+    }
+    if (partner == null && wants != WANTS_X) {
+      partner = poll(WANTS_X);
+    }
+    if (partner == null) {
+      partner = poll(WANTS_ANY);
+    }
+
+    if (partner == null) {
+      ticket.waitingSince = System.nanoTime();
+      ticket.release(Status.WAITING);
+      waiting.get(wants).addLast(ticket);
+      return;
+    }
+
+    char partnerMark = partner.mark != 0 ? partner.mark : ticket.mark == 'X' ? 'O' : 'X';
+    partner.assignedMark = partnerMark;
+    ticket.assignedMark = partnerMark == 'X' ? 'O' : 'X';
+    partner.release(Status.STARTING);
+    ticket.release(Status.STARTING);
+    long now = System.nanoTime();
+    WAIT.record(now - partner.enteredAt);
+    WAIT.record(now - ticket.enteredAt);
+    leave(partner, now);
+    leave(ticket, now);
+
+    try {
+      pairing.pair(partner, ticket);
+    } catch (RuntimeException e) {
+      logger.error("Failed to start a match", e);
+      requeue(partner, ticket);
+    }
+  }
+
+  /**
+   * Take the first player still waiting in the queue, claimed for a match.
+   */
+  private Ticket poll(int wants) {
+    ArrayDeque<Ticket> queue = waiting.get(wants);
+    for (Ticket head = queue.pollFirst(); head != null; head = queue.pollFirst()) {
+      if (head.claim()) {
+        return head;
+      }
+      // Cancelled meanwhile
+      leave(head, System.nanoTime());
+    }
+    return null;
+  }
+
+  private void expire(long now) {
+    for (ArrayDeque<Ticket> queue : waiting) {
+      // Every queue is in order of waiting, so also in deadline order
+      for (Ticket head = queue.peekFirst(); head != null && (!head.isWaiting()
+          || now - head.waitingSince >= timeoutNanos); head = queue.peekFirst()) {
+        queue.pollFirst();
+        expire(head);
+      }
+    }
+
+    for (Ticket head = left.peekFirst(); head != null && now - head.leftAt >= timeoutNanos;
+        head = left.peekFirst()) {
+      left.pollFirst();
+      Status status = head.status.get();
+      if (status == Status.STARTING && now != Long.MAX_VALUE) {
+        // Still waiting for its game, kept for another timeout
+        leave(head, now);
+      } else if (status != Status.WAITING && status != Status.CLAIMED) {
+        // Waiting tickets were handed back, they are added again when they leave
+        tickets.remove(head.id);
+      }
+    }
+  }
+
+  private void expire(Ticket ticket) {
+    if (ticket.leave(Status.EXPIRED)) {
+      EXPIRED.increment();
+    }
+    leave(ticket, System.nanoTime());
+  }
+
+  private void leave(Ticket ticket, long now) {
+    ticket.leftAt = now;
+    left.addLast(ticket);
+  }
+
+  private long nanosToNextDeadline() {
+    long next = timeoutNanos;
+    long now = System.nanoTime();
+    for (ArrayDeque<Ticket> queue : waiting) {
+      Ticket head = queue.peekFirst();
+      if (head != null) {
+        next = Math.min(next, head.waitingSince + timeoutNanos - now);
+      }
+    }
+    Ticket head = left.peekFirst();
+    if (head != null) {
+      next = Math.min(next, head.leftAt + timeoutNanos - now);
+    }
+    head = delayed.peekFirst();
+    if (head != null) {
+      next = Math.min(next, head.retryAt - now);
+    }
+    return Math.max(next, 0);
+  }
+}
@@ -1,25 +1,134 @@
 package controllers;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import data.Durability;
+import data.GameArchive;
 import data.GameBoardDao;
+import data.GameRegistry;
+import data.GameStore;
+import data.InstrumentedGameStore;
+import data.JournalGameStore;
+import data.Leaderboard;
+import data.MappedGameStore;
+import data.WriteBehindGameStore;
 import io.javalin.Javalin;
-import java.io.IOException;
+import io.javalin.http.Context;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import metrics.Histogram;
+import metrics.Metrics;
+import models.AlphaBetaEngine;
+import models.BoardUpdate;
+import models.Engine;
 import models.GameBoard;
+import models.GameRecord;
+import models.JsonEncoder;
+import models.MctsEngine;
 import models.Message;
 import models.Move;
+import models.MoveRequest;
 import models.Player;
+import models.PlayerStats;
 import models.error.InvalidMoveException;
+import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.websocket.api.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class PlayGame {
 
+  private static final Logger logger = LoggerFactory.getLogger(PlayGame.class);
+
   private static final int PORT_NUMBER = 8080;
 
+  private static final int MAX_BATCH_SIZE = 10_000;
+
+  private static final int MAX_HISTORY_PAGE = 1000;
+
+  private static final int MAX_LEADERBOARD_SIZE = 100;
+
+  private static final Pattern PLAYER_NAME = Pattern.compile("[A-Za-z0-9_.-]{1,32}");
+
+  private static final Gson gson = new Gson();
+
+  // Writes the null cursor of the last history page
+  private static final Gson historyGson = new GsonBuilder().serializeNulls().create();
+
+  // The bot always takes the second seat
+  private static final int BOT_PLAYER_ID = 2;
+
+  private static final Engine engine = createEngine();
+
+  // Runs the searches of the bot, so a slow search never holds up the shard of its game
+  private static final ExecutorService BOT_SEARCH = Executors.newFixedThreadPool(
+      Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "bot-search");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // How long a move of player 1 waits for the answer of the bot before it is answered
+  private static final long BOT_WAIT_MILLIS = 5_000;
+
+  // How long a finished game can still be fetched once it is archived, before it is
+  // dropped from the registry and the game store
+  private static final long FINISHED_GRACE_MILLIS =
+      Long.getLong("games.finishedGraceMillis", 60_000);
+
+  // Counters of rejected moves by code, looked up without building labels
+  private static final ConcurrentMap<Integer, LongAdder> REJECTIONS = new ConcurrentHashMap<>();
+
+  private static final Histogram MOVE_LATENCY =
+      Metrics.histogram("game_move_seconds", "Latency of validating and applying a move");
+
+  // Latency of HTTP requests by route then method, filled as the routes are added so
+  // requests only look up their histogram
+  private static final ConcurrentMap<String, ConcurrentMap<String, Histogram>> ROUTE_LATENCY =
+      new ConcurrentHashMap<>();
+
+  private static final Histogram LEGACY_FANOUT = Metrics.histogram("websocket_fanout_seconds",
+      "Latency of queueing a message to every subscriber", "endpoint", "/gameboard");
+
   private static Javalin app;
 
-  private static GameBoardDao gameBoardDao = new GameBoardDao();
+  private static GameStore gameStore;
+
+  private static GameRegistry games;
+
+  private static DeltaWebSocket deltas;
+
+  private static GameShards shards;
+
+  private static GameArchive archive;
+
+  private static Leaderboard leaderboard;
+
+  private static Lobby lobby;
 
   private PlayGame() {
   }
@@ -28,16 +137,73 @@ public class PlayGame {
    * @param args Command line arguments
    */
   public static void main(final String[] args) throws Exception {
-    gameBoardDao.connect();
+    gameStore = createGameStore();
+    gameStore.connect();
+    // Finished games, kept apart from the games in play
+    archive = new GameArchive("history.db");
+    archive.connect();
+    leaderboard = new Leaderboard();
+    leaderboard.load(archive.getPlayerStats());
 
-    final Gson gson = new Gson();
-
-    GameBoard maybeBoard = gameBoardDao.getGameBoard();
-    final GameBoard board = maybeBoard == null ? new GameBoard() : maybeBoard;
+    games = new GameRegistry();
+    games.reserveIds(archive.getLastGameId());
+    for (GameBoard board : gameStore.getGameBoards()) {
+      games.add(board);
+    }
+    deltas = new DeltaWebSocket(games);
+    // Every change of a game runs on the thread of its shard, see GameShards, requests
+    // are answered once their change is saved unless saves are async
+    shards = new GameShards(
+        Integer.getInteger("moves.shards", Runtime.getRuntime().availableProcessors()),
+        Integer.getInteger("moves.queueCapacity", 1024), gameStore,
+        durability() != Durability.ASYNC);
+    for (GameBoard board : games.getAll()) {
+      if (board.isFinished()) {
+        // Finished before the restart, its archiving may not have been committed, and
+        // adding a game already archived does nothing
+        recordFinishedGame(board);
+      } else if (board.isGameStarted()) {
+        // The bot may owe the move it was searching for when the server stopped
+        scheduleBotMove(board);
+      }
+    }
+    // Pairs players into new games, see Lobby
+    lobby = new Lobby(Long.getLong("lobby.timeoutMillis", 30_000),
+        Integer.getInteger("lobby.queueCapacity", 4096), PlayGame::startMatch);
+    VirtualThreadPool threadPool = createThreadPool();
 
     app = Javalin.create(config -> {
       config.addStaticFiles("/public");
-    }).start(PORT_NUMBER);
+      if (threadPool != null) {
+        config.server(() -> new Server(threadPool));
+      }
+      config.accessManager((handler, ctx, permittedRoles) -> {
+        GameChannels.negotiate(ctx);
+        handler.handle(ctx);
+      });
+      config.requestLogger((ctx, millis) ->
+          requestLatency(ctx.method(), ctx.matchedPath()).record((long) (millis * 1_000_000)));
+    });
+    app.events(event -> event.handlerAdded(handler -> {
+      if (handler.getHttpMethod().isHttpMethod()) {
+        requestLatency(handler.getHttpMethod().name(), handler.getPath());
+      }
+    }));
+    app.start(PORT_NUMBER);
+
+    Metrics.gauge("websocket_sessions", "Open web socket sessions",
+        () -> UiWebSocket.getSessions().size(), "endpoint", "/gameboard");
+    Metrics.gauge("websocket_sessions", "Open web socket sessions",
+        GameChannels::getSessionCount, "endpoint", "/gameboard/:gameId");
+    Metrics.gauge("websocket_sessions", "Open web socket sessions",
+        () -> deltas.getSessions().size(), "endpoint", "/gamedeltas");
+    Metrics.gauge("games", "Games in memory", games::size);
+
+    // Prometheus text format
+    app.get("/metrics", ctx -> {
+      ctx.contentType("text/plain; version=0.0.4");
+      ctx.result(Metrics.render());
+    });
 
     // Test Echo Server
     app.post("/echo", ctx -> {
@@ -51,87 +217,704 @@ public class PlayGame {
     app.post("/startgame", ctx -> {
       String type = ctx.formParam("type");
       char c;
-      if (type.equals("X")) {
+      if ("X".equals(type)) {
         c = 'X';
-      } else if (type.equals("O")) {
+      } else if ("O".equals(type)) {
         c = 'O';
       } else {
         ctx.status(400);
         return;
       }
 
-      board.newGame();
-      gameBoardDao.reset();
+      // Optional name the player is ranked under, anonymous players are not ranked
+      String name = ctx.formParam("name");
+      if (name != null && !PLAYER_NAME.matcher(name).matches()) {
+        ctx.status(400);
+        ctx.result("Invalid player name");
+        return;
+      }
+
+      // Optional board configuration, e.g. size=15&winLength=5 for Gomoku
+      int size = ctx.formParam("size", Integer.class, String.valueOf(GameBoard.DEFAULT_SIZE)).get();
+      int winLength = ctx.formParam("winLength", Integer.class, String.valueOf(size)).get();
+      if (!GameBoard.isValidBoard(size, winLength)) {
+        ctx.status(400);
+        ctx.result("Invalid board size");
+        return;
+      }
 
-      board.setPlayer1(new Player(c, 1));
-      ctx.result(gson.toJson(board));
-      gameBoardDao.saveGameBoard(board);
+      GameBoard board = games.create(Player.of(c, 1), size, winLength);
+      board.setPlayerName(1, name);
+      // Nothing to change, but the new game is announced and saved by its shard
+      respond(ctx, board, new BoardChange(board, false) {
+        @Override
+        Reply change() {
+          return Reply.ok(board.toJson());
+        }
+      });
     });
 
+    // The routes without a game id operate on the most recently started game
     app.get("/joingame", ctx -> {
-      Player player1 = board.getPlayer1();
-      if (player1 == null) {
+      joinGame(ctx, games.getDefault());
+    });
+
+    app.get("/joingame/:gameId", ctx -> {
+      joinGame(ctx, findGame(ctx));
+    });
+
+    app.post("/move/:playerId", ctx -> {
+      GameBoard board = games.getDefault();
+      if (board == null) {
         ctx.status(412);
-        ctx.result("Player 1 not joined yet");
+        ctx.result("No game started yet");
         return;
       }
 
-      char c;
-      if (player1.getType() == 'X') {
-        c = 'O';
-      } else {
-        c = 'X';
+      move(ctx, board);
+    });
+
+    app.post("/move/:gameId/:playerId", ctx -> {
+      GameBoard board = findGame(ctx);
+      if (board == null) {
+        return;
       }
 
-      board.setPlayer2(new Player(c, 2));
-      board.startGame();
+      move(ctx, board);
+    });
 
-      ctx.redirect("/tictactoe.html?p=2");
+    // The server takes the second seat of the game and answers every move of player 1
+    app.post("/bot/:gameId", ctx -> {
+      GameBoard board = findGame(ctx);
+      if (board == null) {
+        return;
+      }
+
+      respond(ctx, board, new BoardChange(board, true) {
+        @Override
+        Reply change() {
+          if (board.getPlayer1() == null) {
+            return Reply.error(412, "Player 1 not joined yet");
+          }
+
+          if (board.isGameStarted()) {
+            return Reply.error(412, "Game already started");
+          }
 
-      sendGameBoardToAllPlayers(gson.toJson(board));
-      gameBoardDao.saveGameBoard(board);
+          char c = board.getPlayer1().getType() == 'X' ? 'O' : 'X';
+          board.setPlayer2(Player.of(c, BOT_PLAYER_ID));
+          board.startGame();
+          board.setBot(true);
+          board.setPlayerName(BOT_PLAYER_ID, null);
+          return Reply.ok(board.toJson());
+        }
+      });
     });
 
-    app.post("/move/:playerId", ctx -> {
-      int playerId = Integer.parseInt(ctx.pathParam("playerId"));
-      int x = Integer.parseInt(ctx.formParam("x"));
-      int y = Integer.parseInt(ctx.formParam("y"));
-
-      Player player = null;
-      if (playerId == board.getPlayer1().getId()) {
-        player = board.getPlayer1();
-      } else if (playerId == board.getPlayer2().getId()) {
-        player = board.getPlayer2();
-      } else {
+    // The move the engine would play for the player, as {"x":0,"y":0}
+    app.get("/hint/:gameId/:playerId", ctx -> {
+      GameBoard board = findGame(ctx);
+      if (board == null) {
+        return;
+      }
+
+      int playerId = ctx.pathParam("playerId", Integer.class).get();
+      // Searched on a snapshot, the game goes on meanwhile
+      GameBoard copy = board.copy();
+      if (copy.getPlayer(playerId) == null) {
         ctx.status(400);
         ctx.result("Invalid player id");
         return;
       }
 
+      if (copy.getTurn() != playerId) {
+        ctx.status(412);
+        ctx.result("No move to hint");
+        return;
+      }
+
+      // Searched on the bot pool like a move of the bot, not on the request thread
+      ctx.result(CompletableFuture.supplyAsync(() -> engine.bestMove(copy), BOT_SEARCH)
+          .thenApply(hint -> {
+            if (hint == null) {
+              ctx.status(412);
+              return "No move to hint";
+            }
+            return "{\"x\":" + hint.getX() + ",\"y\":" + hint.getY() + "}";
+          }));
+    });
+
+    // A JSON array of {gameId, playerId, x, y}, answered with an array of messages
+    app.post("/moves", ctx -> {
+      MoveRequest[] requests;
+      try {
+        requests = gson.fromJson(ctx.body(), MoveRequest[].class);
+      } catch (JsonParseException e) {
+        requests = null;
+      }
+
+      if (requests == null || requests.length > MAX_BATCH_SIZE) {
+        ctx.status(400);
+        ctx.result("Invalid batch");
+        return;
+      }
+
+      ctx.result(moveBatch(requests));
+    });
+
+    // Enter the lobby, optionally asking for a mark and a name to be ranked under, as
+    // type=X&name=alice, answered with the ticket {"ticket":1,"status":"WAITING"}
+    app.post("/lobby", ctx -> {
+      String type = ctx.formParam("type");
+      char c;
+      if (type == null || type.isEmpty()) {
+        c = 0;
+      } else if ("X".equals(type) || "O".equals(type)) {
+        c = type.charAt(0);
+      } else {
+        ctx.status(400);
+        ctx.result("Invalid type");
+        return;
+      }
+
+      String name = ctx.formParam("name");
+      if (name != null && !PLAYER_NAME.matcher(name).matches()) {
+        ctx.status(400);
+        ctx.result("Invalid player name");
+        return;
+      }
+
+      Lobby.Ticket ticket;
       try {
-        board.move(new Move(player, x, y));
-        ctx.result(gson.toJson(new Message(true, 100, "")));
-      } catch (InvalidMoveException e) {
-        ctx.result(gson.toJson(new Message(false, e.code(), e.cause())));
+        ticket = lobby.enter(c, name);
+      } catch (RejectedExecutionException e) {
+        ctx.status(503);
+        ctx.result("Server busy");
+        return;
+      }
+      ctx.contentType("application/json");
+      ctx.result(ticket.toJson());
+    });
+
+    // The ticket, with the game and seat of the player once matched
+    app.get("/lobby/:ticket", ctx -> {
+      Lobby.Ticket ticket = findTicket(ctx);
+      if (ticket != null) {
+        ctx.contentType("application/json");
+        ctx.result(ticket.toJson());
+      }
+    });
+
+    app.delete("/lobby/:ticket", ctx -> {
+      Lobby.Ticket ticket = findTicket(ctx);
+      if (ticket == null) {
+        return;
+      }
+
+      ctx.contentType("application/json");
+      ctx.result(lobby.cancel(ticket).thenApply(cancelled -> {
+        if (!cancelled) {
+          ctx.status(409);
+        }
+        return ticket.toJson();
+      }));
+    });
+
+    // The best named players as [{"name":"","wins":0,"losses":0,"draws":0}]
+    app.get("/leaderboard", ctx -> {
+      int limit = ctx.queryParam("limit", Integer.class, "10")
+          .check(n -> n > 0 && n <= MAX_LEADERBOARD_SIZE).get();
+      ctx.contentType("application/json");
+      ctx.result(gson.toJson(leaderboard.top(limit)));
+    });
+
+    app.get("/players/:name", ctx -> {
+      PlayerStats stats = leaderboard.get(ctx.pathParam("name"));
+      if (stats == null) {
+        ctx.status(404);
+        ctx.result("Player not found");
+        return;
       }
+      ctx.contentType("application/json");
+      ctx.result(gson.toJson(stats));
+    });
+
+    // Finished games in the order they ended, as {"games":[...],"next":id}, pass next as
+    // after to get the following page, it is null on the last one
+    app.get("/history", ctx -> {
+      long after = ctx.queryParam("after", Long.class, "0").check(id -> id >= 0).get();
+      int limit = ctx.queryParam("limit", Integer.class, "100")
+          .check(n -> n > 0 && n <= MAX_HISTORY_PAGE).get();
+      List<GameRecord> page = archive.page(after, limit);
 
-      sendGameBoardToAllPlayers(gson.toJson(board));
-      gameBoardDao.saveGameBoard(board);
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("games", page);
+      result.put("next", page.size() == limit ? page.get(page.size() - 1).getId() : null);
+      ctx.contentType("application/json");
+      ctx.result(historyGson.toJson(result));
+    });
+
+    // Every finished game after the specified one, one JSON object per line, written to
+    // the client as it is read so the export never sits in memory
+    app.get("/history/export", ctx -> {
+      long after = ctx.queryParam("after", Long.class, "0").check(id -> id >= 0).get();
+      ctx.contentType("application/x-ndjson");
+      Writer out = new BufferedWriter(
+          new OutputStreamWriter(ctx.res.getOutputStream(), StandardCharsets.UTF_8));
+      archive.export(after, record -> {
+        gson.toJson(record, out);
+        out.write('\n');
+      });
+      out.flush();
     });
 
     // Web sockets - DO NOT DELETE or CHANGE
     app.ws("/gameboard", new UiWebSocket());
+
+    // Drop the outgoing queue of any closed web socket
+    app.wsAfter(ws -> ws.onClose(ctx -> Broadcaster.remove(ctx.session)));
+
+    // Updates of a single game, the socket above receives the updates of every game
+    app.ws("/gameboard/:gameId", new GameChannels());
+
+    // Versioned updates holding only the changed cell, see DeltaWebSocket
+    app.ws("/gamedeltas", deltas);
+
+    // Receives the ticket once the player is matched or leaves the lobby
+    app.ws("/lobby/:ticket", lobby);
+  }
+
+  /**
+   * Get the latency histogram of a route, registered when the route is added, so only
+   * requests that match no route, e.g. static files, ever create one.
+   * @param route the matched path, empty if the request matched no route
+   */
+  private static Histogram requestLatency(final String method, final String route) {
+    Map<String, Histogram> byMethod = ROUTE_LATENCY.get(route);
+    Histogram histogram = byMethod == null ? null : byMethod.get(method);
+    if (histogram != null) {
+      return histogram;
+    }
+
+    return ROUTE_LATENCY.computeIfAbsent(route, key -> new ConcurrentHashMap<>())
+        .computeIfAbsent(method, key -> Metrics.histogram("http_request_seconds",
+            "Latency of HTTP requests by route", "method", method,
+            "route", route.isEmpty() ? "unmatched" : route));
+  }
+
+  /**
+   * Create the game store configured by system properties.
+   * persistence.backend selects sqlite (the default), journal or mmap,
+   * persistence.sqlite.journalMode and persistence.sqlite.synchronous tune SQLite
+   * (WAL and NORMAL by default),
+   * persistence.durability selects sync, group_commit (the default) or async saves,
+   * persistence.flushMillis how long the background writer gathers a batch, or for the
+   * journal and mmap backends how often they are forced to disk.
+   */
+  private static GameStore createGameStore() {
+    String backend = System.getProperty("persistence.backend", "sqlite");
+    Durability durability = durability();
+    long flushMillis = Long.getLong("persistence.flushMillis", 2);
+
+    switch (backend) {
+      case "sqlite":
+        GameBoardDao dao = new GameBoardDao("data.db",
+            System.getProperty("persistence.sqlite.journalMode", "WAL"),
+            System.getProperty("persistence.sqlite.synchronous", "NORMAL"));
+        return new WriteBehindGameStore(new InstrumentedGameStore(dao, backend), durability,
+            flushMillis);
+      case "journal":
+        // Appends are cheap sequential writes, no need to take them off the request thread
+        return new InstrumentedGameStore(new JournalGameStore(Paths.get("journal"), durability,
+            flushMillis, Integer.getInteger("persistence.snapshotEvery", 100_000)), backend);
+      case "mmap":
+        return new InstrumentedGameStore(
+            new MappedGameStore(Paths.get("games.mmap"), durability, flushMillis), backend);
+      default:
+        throw new IllegalArgumentException("Unknown persistence backend " + backend);
+    }
+  }
+
+  private static Durability durability() {
+    return Durability.valueOf(
+        System.getProperty("persistence.durability", "group_commit").toUpperCase(Locale.ROOT));
+  }
+
+  /**
+   * Create the pool of request threads configured by the server.threads system property,
+   * platform (the default) for the bounded Jetty pool, or virtual to handle every request
+   * on its own virtual thread, which falls back to platform threads on a JDK without them.
+   * @return the virtual thread pool, or null to use the Jetty default
+   */
+  private static VirtualThreadPool createThreadPool() {
+    String type = System.getProperty("server.threads", "platform");
+    switch (type) {
+      case "platform":
+        return null;
+      case "virtual":
+        VirtualThreadPool pool = VirtualThreadPool.create();
+        if (pool == null) {
+          logger.warn("Virtual threads are not available on Java {}, using platform threads",
+              System.getProperty("java.version"));
+        }
+        return pool;
+      default:
+        throw new IllegalArgumentException("Unknown server threads " + type);
+    }
+  }
+
+  /**
+   * Create the engine of the bot and of hints configured by system properties.
+   * bot.engine selects alphabeta, mcts, or auto (the default) which searches 3x3 boards
+   * exhaustively with alpha-beta and larger ones with MCTS, bot.timeMillis and
+   * bot.iterations limit every MCTS search (200 ms and no limit by default).
+   */
+  private static Engine createEngine() {
+    String type = System.getProperty("bot.engine", "auto");
+    Engine alphaBeta = new AlphaBetaEngine();
+    Engine mcts = new MctsEngine(ForkJoinPool.commonPool(),
+        Long.getLong("bot.timeMillis", 200), Integer.getInteger("bot.iterations", 0));
+
+    switch (type) {
+      case "alphabeta":
+        return alphaBeta;
+      case "mcts":
+        return mcts;
+      case "auto":
+        return board -> board.getSize() <= GameBoard.DEFAULT_SIZE
+            ? alphaBeta.bestMove(board) : mcts.bestMove(board);
+      default:
+        throw new IllegalArgumentException("Unknown bot engine " + type);
+    }
+  }
+
+  /**
+   * Find the game specified by the gameId path parameter.
+   * @return the game, or null if it does not exist, in which case the response is already set
+   */
+  private static GameBoard findGame(final Context ctx) {
+    int gameId = ctx.pathParam("gameId", Integer.class).get();
+    GameBoard board = games.get(gameId);
+    if (board == null) {
+      ctx.status(404);
+      ctx.result("Game not found");
+    }
+
+    return board;
   }
 
-  /** Send message to all players.
+  private static void joinGame(final Context ctx, final GameBoard board) throws Exception {
+    if (board == null) {
+      ctx.status(412);
+      ctx.result("Player 1 not joined yet");
+      return;
+    }
+
+    String name = ctx.queryParam("name");
+    if (name != null && !PLAYER_NAME.matcher(name).matches()) {
+      ctx.status(400);
+      ctx.result("Invalid player name");
+      return;
+    }
+
+    Reply reply = runOnShard(board, new BoardChange(board, true) {
+      @Override
+      Reply change() {
+        Player player1 = board.getPlayer1();
+        if (player1 == null) {
+          return Reply.error(412, "Player 1 not joined yet");
+        }
+        // A lobby match or a game against the bot has its second seat taken from the start
+        if (board.getPlayer2() != null || board.isGameStarted()) {
+          return Reply.error(412, "Player 2 already joined");
+        }
+
+        char c;
+        if (player1.getType() == 'X') {
+          c = 'O';
+        } else {
+          c = 'X';
+        }
+
+        board.setPlayer2(Player.of(c, 2));
+        board.startGame();
+        board.setBot(false);
+        board.setPlayerName(2, name);
+        return Reply.ok(null);
+      }
+    });
+
+    if (reply.isOk()) {
+      ctx.redirect("/tictactoe.html?p=2");
+    } else {
+      reply.send(ctx);
+    }
+  }
+
+  private static void move(final Context ctx, final GameBoard board) throws Exception {
+    int playerId = Integer.parseInt(ctx.pathParam("playerId"));
+    int x = Integer.parseInt(ctx.formParam("x"));
+    int y = Integer.parseInt(ctx.formParam("y"));
+
+    MoveCommand command = new MoveCommand(board, playerId, x, y);
+    Reply reply = runOnShard(board, command);
+    CompletableFuture<Reply> botMove = command.botMove;
+    if (botMove != null) {
+      // Answered once the bot moved too, so player 1 is never a move behind
+      try {
+        botMove.get(BOT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (ExecutionException | TimeoutException e) {
+        // The bot failed or is still searching, its move is broadcast anyway
+      }
+    }
+    reply.send(ctx);
+  }
+
+  /**
+   * Run the command on the shard of the game and send its reply.
+   */
+  private static void respond(final Context ctx, final GameBoard board,
+      final GameShards.Command<Reply> command) throws Exception {
+    runOnShard(board, command).send(ctx);
+  }
+
+  /**
+   * Run the command on the shard of the game and wait for its reply.
+   * @return the reply, or a 503 reply if the shard is overloaded
+   */
+  private static Reply runOnShard(final GameBoard board,
+      final GameShards.Command<Reply> command) throws Exception {
+    try {
+      return shards.call(board.getGameId(), command);
+    } catch (RejectedExecutionException e) {
+      return Reply.error(503, "Server busy");
+    }
+  }
+
+  /**
+   * Broadcast an accepted move, the board is the snapshot taken right after it.
+   */
+  private static void broadcastMove(final GameBoard board, final Move move) {
+    sendGameBoardToAllPlayers(board.getGameId(), board.toJson());
+    GameChannels.broadcast(board);
+    deltas.broadcast(BoardUpdate.delta(board, move));
+  }
+
+  /**
+   * Let the bot move if it holds the seat of the player to move. The engine searches a
+   * snapshot on the bot pool, off the shard, and its move is applied by a separate
+   * {@link MoveCommand} on the shard of the game, validated like any other.
+   * @return completed with the reply to the move of the bot, or null if it does not move
+   */
+  private static CompletableFuture<Reply> scheduleBotMove(final GameBoard board) {
+    if (!board.hasBot() || board.getTurn() != BOT_PLAYER_ID) {
+      return null;
+    }
+
+    GameBoard snapshot = board.copy();
+    CompletableFuture<Reply> botMove = CompletableFuture
+        .supplyAsync(() -> engine.bestMove(snapshot), BOT_SEARCH)
+        .thenCompose(move -> move == null ? CompletableFuture.completedFuture(null)
+            : shards.submit(board.getGameId(),
+                new MoveCommand(board, BOT_PLAYER_ID, move.getX(), move.getY())));
+    botMove.whenComplete((reply, e) -> {
+      if (e != null) {
+        logger.error("The bot failed to move in game {}", board.getGameId(), e);
+      }
+    });
+    return botMove;
+  }
+
+  /**
+   * Apply the move, recording its latency and the code of a rejection.
+   * @return the outcome, see {@link GameBoard#tryMove}
+   */
+  private static int tryMove(final GameBoard board, final Player player, final int x,
+      final int y) {
+    long start = System.nanoTime();
+    int code = board.tryMove(player, x, y);
+    MOVE_LATENCY.recordSince(start);
+    if (code != GameBoard.MOVE_ACCEPTED) {
+      REJECTIONS.computeIfAbsent(code, key -> Metrics.counter("game_move_rejections_total",
+          "Rejected moves by error code", "code", Integer.toString(key))).increment();
+    }
+    return code;
+  }
+
+  /**
+   * Apply the moves in order. The moves of every game are run as one command on the
+   * shard of the game, so different games proceed in parallel, and every game touched
+   * by the batch is saved and broadcast once, after all of its moves.
+   * @return the JSON array of the result of every move
+   */
+  private static String moveBatch(final MoveRequest[] requests) throws Exception {
+    String[] results = new String[requests.length];
+    Map<GameBoard, List<Integer>> byGame = new LinkedHashMap<>();
+    for (int i = 0; i < requests.length; ++i) {
+      MoveRequest request = requests[i];
+      if (request == null) {
+        results[i] = JsonEncoder.encode(new Message(false, 400, "Invalid move"));
+        continue;
+      }
+
+      GameBoard board = request.getGameId() == 0
+          ? games.getDefault() : games.get(request.getGameId());
+      if (board == null) {
+        results[i] = JsonEncoder.encode(new Message(false, 404, "Game not found"));
+        continue;
+      }
+
+      byGame.computeIfAbsent(board, key -> new ArrayList<>()).add(i);
+    }
+
+    List<CompletableFuture<Reply>> pending = new ArrayList<>(byGame.size());
+    for (Map.Entry<GameBoard, List<Integer>> entry : byGame.entrySet()) {
+      GameBoard board = entry.getKey();
+      List<Integer> indexes = entry.getValue();
+      pending.add(shards.submit(board.getGameId(), new BoardChange(board, true) {
+        @Override
+        Reply change() {
+          boolean changed = false;
+          for (int i : indexes) {
+            MoveRequest request = requests[i];
+            Player player = board.getPlayer(request.getPlayerId());
+            if (player == null) {
+              results[i] = JsonEncoder.encode(new Message(false, 400, "Invalid player id"));
+              continue;
+            }
+
+            int code = tryMove(board, player, request.getX(), request.getY());
+            if (code == GameBoard.MOVE_ACCEPTED) {
+              changed = true;
+            }
+            results[i] = JsonEncoder.moveResult(code);
+          }
+          if (changed) {
+            // Answered after the batch, a later move of the batch cannot wait for it
+            scheduleBotMove(board);
+          }
+          return changed ? Reply.ok(null) : Reply.error(412, null);
+        }
+      }));
+    }
+
+    int game = 0;
+    for (List<Integer> indexes : byGame.values()) {
+      try {
+        pending.get(game++).join();
+      } catch (CompletionException e) {
+        if (!(e.getCause() instanceof RejectedExecutionException)) {
+          throw e;
+        }
+        for (int i : indexes) {
+          results[i] = JsonEncoder.encode(new Message(false, 503, "Server busy"));
+        }
+      }
+    }
+
+    return "[" + String.join(",", results) + "]";
+  }
+
+  private static Lobby.Ticket findTicket(final Context ctx) {
+    Lobby.Ticket ticket = lobby.get(Lobby.parseTicketId(ctx.pathParam("ticket")));
+    if (ticket == null) {
+      ctx.status(404);
+      ctx.result("Ticket not found");
+    }
+    return ticket;
+  }
+
+  /**
+   * Start the game of two players matched by the lobby. It never becomes the default
+   * game, and /joingame refuses its second seat once the game started. If the shard of
+   * the game is overloaded, or someone took the second seat first, the game is dropped
+   * and the players wait again.
+   */
+  private static void startMatch(final Lobby.Ticket player1, final Lobby.Ticket player2) {
+    GameBoard board = games.create(Player.of(player1.getAssignedMark(), 1),
+        GameBoard.DEFAULT_SIZE, GameBoard.DEFAULT_SIZE, false);
+    int gameId = board.getGameId();
+
+    shards.submit(gameId, new BoardChange(board, true) {
+      @Override
+      Reply change() {
+        if (board.getPlayer2() != null) {
+          return Reply.error(412, "Player 2 already joined");
+        }
+        board.setPlayer2(Player.of(player2.getAssignedMark(), 2));
+        board.startGame();
+        board.setPlayerName(1, player1.getName());
+        board.setPlayerName(2, player2.getName());
+        return Reply.ok(null);
+      }
+    }).whenComplete((reply, e) -> {
+      if (e == null && reply.isOk()) {
+        Lobby.started(gameId, player1, player2);
+      } else {
+        games.remove(gameId);
+        lobby.requeue(player1, player2);
+      }
+    });
+  }
+
+  /**
+   * Queue a finished game to be archived. Once the archive has committed it, along with
+   * the counters of its named players, it is counted on the leaderboard and pruned after
+   * the grace period. A game the archive failed to take is kept in the game store, and
+   * is neither counted nor pruned.
+   */
+  private static void recordFinishedGame(final GameBoard finished) {
+    int gameId = finished.getGameId();
+    String p1Name = finished.getPlayerName(1);
+    String p2Name = finished.getPlayerName(2);
+    archive.add(finished, p1Name, p2Name).thenAccept(added -> {
+      if (added) {
+        leaderboard.record(p1Name, p2Name, finished.isDraw() ? 0 : finished.getWinner());
+      }
+      schedulePrune(gameId);
+    });
+  }
+
+  private static void schedulePrune(final int gameId) {
+    CompletableFuture.runAsync(() -> pruneGame(gameId),
+        CompletableFuture.delayedExecutor(FINISHED_GRACE_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Drop a finished game from the registry and the game store. Runs on the shard of the
+   * game, so every change already queued for it is saved before it is deleted.
+   */
+  private static void pruneGame(final int gameId) {
+    shards.submit(gameId, new GameShards.Command<Void>() {
+      @Override
+      public Void apply() {
+        games.remove(gameId);
+        return null;
+      }
+
+      @Override
+      public void persist() throws SQLException {
+        gameStore.deleteGameBoard(gameId);
+      }
+    }).whenComplete((result, e) -> {
+      if (e != null) {
+        logger.warn("Failed to prune finished game {}", gameId, e);
+      }
+    });
+  }
+
+  /** Send message to all players without waiting for the clients, see {@link Broadcaster}.
+   * @param gameId the game the board belongs to, a client that falls behind only gets
+   *     the latest board of each game
    * @param gameBoardJson Gameboard JSON
-   * @throws IOException Websocket message send IO Exception
    */
-  private static void sendGameBoardToAllPlayers(final String gameBoardJson) throws IOException {
+  private static void sendGameBoardToAllPlayers(final int gameId, final String gameBoardJson) {
+    long start = System.nanoTime();
     Queue<Session> sessions = UiWebSocket.getSessions();
     for (Session sessionPlayer : sessions) {
-      sessionPlayer.getRemote().sendString(gameBoardJson);
+      Broadcaster.send(sessionPlayer, gameBoardJson, gameId);
     }
+    LEGACY_FANOUT.recordSince(start);
   }
 
   /**
@@ -139,6 +922,186 @@ public class PlayGame {
    */
   public static void stop() throws SQLException {
     app.stop();
-    gameBoardDao.close();
+    lobby.close();
+    shards.close();
+    gameStore.close();
+    archive.close();
+  }
+
+  /**
+   * The response to a command, sent by the request thread once the command ran.
+   */
+  private static final class Reply {
+    private final int status;
+
+    private final String body;
+
+    private Reply(int status, String body) {
+      this.status = status;
+      this.body = body;
+    }
+
+    static Reply ok(String body) {
+      return new Reply(200, body);
+    }
+
+    static Reply error(int status, String body) {
+      return new Reply(status, body);
+    }
+
+    boolean isOk() {
+      return status == 200;
+    }
+
+    void send(Context ctx) {
+      ctx.status(status);
+      if (body != null) {
+        ctx.result(body);
+      }
+    }
+  }
+
+  /**
+   * A change of a game that is broadcast in full and saved as a whole board, if
+   * {@link #change} replies with success.
+   */
+  private abstract static class BoardChange implements GameShards.Command<Reply> {
+    final GameBoard board;
+
+    // The legacy socket and the game channels do not announce games waiting for player 2
+    private final boolean toAllPlayers;
+
+    private GameBoard snapshot;
+
+    // The snapshot, if the change finished the game
+    private GameBoard finished;
+
+    BoardChange(GameBoard board, boolean toAllPlayers) {
+      this.board = board;
+      this.toAllPlayers = toAllPlayers;
+    }
+
+    abstract Reply change();
+
+    @Override
+    public final Reply apply() {
+      boolean wasFinished = board.isFinished();
+      Reply reply = change();
+      if (reply.isOk()) {
+        snapshot = board.copy();
+        if (!wasFinished && snapshot.isFinished()) {
+          finished = snapshot;
+        }
+      }
+      return reply;
+    }
+
+    @Override
+    public void broadcast() {
+      if (snapshot == null) {
+        return;
+      }
+
+      if (toAllPlayers) {
+        sendGameBoardToAllPlayers(snapshot.getGameId(), snapshot.toJson());
+        GameChannels.broadcast(snapshot);
+      }
+      deltas.broadcast(BoardUpdate.full(snapshot));
+    }
+
+    @Override
+    public void persist() throws SQLException {
+      if (snapshot != null) {
+        gameStore.saveGameBoard(snapshot);
+      }
+      if (finished != null) {
+        recordFinishedGame(finished);
+      }
+    }
+  }
+
+  /**
+   * A move of a player, broadcast as a delta and saved as a move from the snapshot taken
+   * right after it, since later commands of the batch may already have changed the board.
+   * If the bot holds the other seat its search is started once the move is applied.
+   */
+  private static final class MoveCommand implements GameShards.Command<Reply> {
+    private final GameBoard board;
+
+    private final int playerId;
+
+    private final int x;
+
+    private final int y;
+
+    private Move move;
+
+    private GameBoard afterMove;
+
+    private GameBoard rejected;
+
+    // The snapshot taken after the move if it finished the game
+    private GameBoard finished;
+
+    // The answer of the bot, if it is the turn of the bot after the move
+    private volatile CompletableFuture<Reply> botMove;
+
+    MoveCommand(GameBoard board, int playerId, int x, int y) {
+      this.board = board;
+      this.playerId = playerId;
+      this.x = x;
+      this.y = y;
+    }
+
+    @Override
+    public Reply apply() {
+      Player player = board.getPlayer(playerId);
+      if (player == null) {
+        return Reply.error(400, "Invalid player id");
+      }
+
+      boolean wasFinished = board.isFinished();
+      int code = tryMove(board, player, x, y);
+      if (code != GameBoard.MOVE_ACCEPTED) {
+        if (playerId == BOT_PLAYER_ID && board.hasBot()) {
+          logger.warn("Rejected a move for the bot seat in game {}", board.getGameId(),
+              InvalidMoveException.forCode(code));
+        }
+        rejected = board.copy();
+        return Reply.ok(JsonEncoder.moveResult(code));
+      }
+
+      move = Move.of(player, x, y);
+      afterMove = board.copy();
+      if (!wasFinished && afterMove.isFinished()) {
+        finished = afterMove;
+      }
+      botMove = scheduleBotMove(board);
+      return Reply.ok(JsonEncoder.moveResult(null));
+    }
+
+    @Override
+    public void broadcast() {
+      if (rejected != null) {
+        // Lets the client of the rejected player restore its view of the board
+        sendGameBoardToAllPlayers(rejected.getGameId(), rejected.toJson());
+        GameChannels.broadcast(rejected);
+        return;
+      }
+
+      if (afterMove != null) {
+        broadcastMove(afterMove, move);
+      }
+    }
+
+    @Override
+    public void persist() throws SQLException {
+      if (afterMove != null) {
+        gameStore.saveMove(afterMove, move);
+      }
+      if (finished != null) {
+        recordFinishedGame(finished);
+      }
+    }
   }
 }
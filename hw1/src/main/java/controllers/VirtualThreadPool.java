@@ -0,0 +1,91 @@
+package controllers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Jetty thread pool running every task on a new virtual thread.
+ *
+ * <p>A request blocked on the database or on a lock parks a cheap virtual thread instead
+ * of holding one of a bounded number of platform threads, so the number of requests in
+ * flight is not limited by the size of a pool. Virtual threads are looked up by
+ * reflection, the project still compiles for Java 11.
+ */
+public final class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+  private final ExecutorService executor;
+
+  private final AtomicInteger running = new AtomicInteger();
+
+  private VirtualThreadPool(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Create a pool if the running JDK has virtual threads.
+   * @return the pool, or null if virtual threads are not available
+   */
+  public static VirtualThreadPool create() {
+    try {
+      Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+          .invoke(null);
+      return new VirtualThreadPool((ExecutorService) executor);
+    } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+      // Before Java 21, or a preview feature that is not enabled
+      return null;
+    }
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    if (!isRunning() && !isStarting()) {
+      throw new RejectedExecutionException("Thread pool is not running");
+    }
+
+    running.incrementAndGet();
+    executor.execute(() -> {
+      try {
+        task.run();
+      } finally {
+        running.decrementAndGet();
+      }
+    });
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    executor.shutdown();
+    if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+      executor.shutdownNow();
+    }
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+  }
+
+  /**
+   * Get the number of tasks running, every task has its own thread.
+   */
+  @Override
+  public int getThreads() {
+    return running.get();
+  }
+
+  @Override
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  @Override
+  public boolean isLowOnThreads() {
+    return false;
+  }
+}
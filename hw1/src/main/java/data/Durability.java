@@ -0,0 +1,28 @@
+package data;
+
+/**
+ * How far a save reaches before the change it belongs to is acknowledged.
+ *
+ * <p>Changes are saved by the shard of their game after they are applied and broadcast,
+ * see {@code GameShards}. With SYNC and GROUP_COMMIT the request that made a change is
+ * answered once its save is committed, with ASYNC as soon as the change is applied.
+ * Clients watching the game may see a change before it is committed in every mode.
+ */
+public enum Durability {
+  /** Every save is written, and forced by the stores that force, before it returns. */
+  SYNC,
+
+  /**
+   * Saves are written in batches, e.g. by a background thread every flush interval, and
+   * the saves made together through {@link GameStore#saveAll} wait once for the batch
+   * committing all of them.
+   */
+  GROUP_COMMIT,
+
+  /**
+   * Saves are written in batches on a background thread and nothing waits for them.
+   * Pending saves are written on close, but acknowledged changes may be lost if the
+   * process crashes.
+   */
+  ASYNC
+}
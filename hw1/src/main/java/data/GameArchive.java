@@ -0,0 +1,426 @@
+package data;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import models.GameBoard;
+import models.GameRecord;
+import models.HistoryEncoder;
+import models.PlayerStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only SQLite archive of finished games, each kept as one small blob encoded by
+ * {@link HistoryEncoder}. Games are read back in the order they were archived, using
+ * the archive id as the cursor, so a page never has to skip over earlier rows. A game is
+ * archived at most once, adding a game id already in the archive does nothing.
+ *
+ * <p>The archive also keeps the counters of every named player, updated in the same
+ * transaction as the game is added, from which the {@link Leaderboard} is restored.
+ *
+ * <p>Games are added by a writer thread, like the saves of {@link WriteBehindGameStore},
+ * so the shard that finished a game never waits for history.db. The writer adds whatever
+ * piled up as one transaction and retries a failed batch until the archive is closed.
+ */
+public class GameArchive {
+
+  private static final Logger logger = LoggerFactory.getLogger(GameArchive.class);
+
+  // How long the writer waits before it retries a batch that failed
+  private static final long RETRY_MILLIS = 1000;
+
+  private static final String ADD_SQL =
+      "INSERT INTO game_history (game_id, finished_at, data) SELECT ?, ?, ? "
+      + "WHERE NOT EXISTS (SELECT 1 FROM game_history WHERE game_id = ?);";
+
+  private static final String COUNT_SQL =
+      "INSERT INTO player_stats (name, wins, losses, draws) VALUES (?, ?, ?, ?) "
+      + "ON CONFLICT (name) DO UPDATE SET wins = wins + excluded.wins, "
+      + "losses = losses + excluded.losses, draws = draws + excluded.draws;";
+
+  private static final String PAGE_SQL = "SELECT id, game_id, finished_at, data "
+      + "FROM game_history WHERE id > ? ORDER BY id LIMIT ?;";
+
+  private final String url;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock
+  private Connection conn;
+
+  private PreparedStatement addStmt;
+
+  private PreparedStatement countStmt;
+
+  private PreparedStatement pageStmt;
+
+  // Signalled when games are queued, when a batch is written and on close
+  private final Condition changed = lock.newCondition();
+
+  // Games waiting for the writer, guarded by lock
+  private final Deque<Entry> pending = new ArrayDeque<>();
+
+  private boolean closed = true;
+
+  private Thread writer;
+
+  /**
+   * Receives the games of an export one at a time.
+   */
+  public interface Sink {
+    void accept(GameRecord record) throws IOException;
+  }
+
+  /**
+   * Create an archive backed by the specified SQLite database file.
+   */
+  public GameArchive(String path) {
+    this.url = "jdbc:sqlite:" + path;
+  }
+
+  /**
+   * Connect to the database, creating the schema if needed.
+   */
+  public void connect() throws SQLException {
+    lock.lock();
+    try {
+      close();
+      conn = DriverManager.getConnection(url);
+      try (Statement stmt = conn.createStatement()) {
+        // WAL lets exports read while games are archived
+        stmt.execute("PRAGMA journal_mode = WAL;");
+        stmt.execute("PRAGMA synchronous = NORMAL;");
+        stmt.execute("CREATE TABLE IF NOT EXISTS game_history ("
+            + "id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "game_id INTEGER NOT NULL,"
+            + "finished_at INTEGER NOT NULL,"
+            + "data BLOB NOT NULL"
+            + ");");
+        stmt.execute("CREATE INDEX IF NOT EXISTS game_history_game_id "
+            + "ON game_history (game_id);");
+        stmt.execute("CREATE TABLE IF NOT EXISTS player_stats ("
+            + "name TEXT PRIMARY KEY NOT NULL,"
+            + "wins INTEGER NOT NULL,"
+            + "losses INTEGER NOT NULL,"
+            + "draws INTEGER NOT NULL"
+            + ");");
+      }
+      addStmt = conn.prepareStatement(ADD_SQL);
+      countStmt = conn.prepareStatement(COUNT_SQL);
+      pageStmt = conn.prepareStatement(PAGE_SQL);
+      closed = false;
+      writer = new Thread(this::writeLoop, "game-archive-writer");
+      writer.setDaemon(true);
+      writer.start();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Add the games still queued, then close the underlying connection.
+   */
+  public void close() throws SQLException {
+    Thread stopping;
+    lock.lock();
+    try {
+      closed = true;
+      changed.signalAll();
+      stopping = writer;
+      writer = null;
+    } finally {
+      lock.unlock();
+    }
+
+    if (stopping != null) {
+      try {
+        stopping.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    lock.lock();
+    try {
+      if (conn != null) {
+        addStmt = null;
+        countStmt = null;
+        pageStmt = null;
+        conn.close();
+        conn = null;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Queue a finished game between anonymous players to be archived.
+   */
+  public CompletableFuture<Boolean> add(GameBoard board) {
+    return add(board, null, null);
+  }
+
+  /**
+   * Queue a finished game to be archived and counted for its named players, unless one
+   * name holds both seats.
+   * @param p1Name the name of player 1, or null if the player is anonymous
+   * @param p2Name the name of player 2, or null if the player is anonymous
+   * @return completed once the game is committed, with false if it was already archived
+   *     and nothing was added or counted, or exceptionally if the archive was closed
+   *     before it could be
+   */
+  public CompletableFuture<Boolean> add(GameBoard board, String p1Name, String p2Name) {
+    if (p1Name != null && p1Name.equals(p2Name)) {
+      p1Name = null;
+      p2Name = null;
+    }
+    Entry entry = new Entry(board.getGameId(), System.currentTimeMillis(),
+        HistoryEncoder.encode(board), board.isDraw() ? 0 : board.getWinner(), p1Name, p2Name);
+    lock.lock();
+    try {
+      if (closed) {
+        entry.done.completeExceptionally(new SQLException("Game archive is closed"));
+      } else {
+        pending.addLast(entry);
+        changed.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+    return entry.done;
+  }
+
+  private void writeLoop() {
+    List<Entry> batch = new ArrayList<>();
+    while (true) {
+      lock.lock();
+      try {
+        while (pending.isEmpty() && !closed) {
+          try {
+            changed.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+
+        if (pending.isEmpty()) {
+          return;
+        }
+        batch.addAll(pending);
+        pending.clear();
+      } finally {
+        lock.unlock();
+      }
+
+      Exception failure = null;
+      try {
+        write(batch);
+      } catch (SQLException | RuntimeException e) {
+        failure = e;
+      }
+
+      if (failure == null) {
+        for (Entry entry : batch) {
+          entry.done.complete(entry.added);
+        }
+        batch.clear();
+        continue;
+      }
+
+      logger.error("Failed to archive {} games", batch.size(), failure);
+      lock.lock();
+      try {
+        if (closed) {
+          for (Entry entry : batch) {
+            entry.done.completeExceptionally(failure);
+          }
+          batch.clear();
+          continue;
+        }
+
+        // Put the batch back in front of the games queued meanwhile and retry later
+        for (int i = batch.size() - 1; i >= 0; --i) {
+          pending.addFirst(batch.get(i));
+        }
+        batch.clear();
+        try {
+          changed.await(RETRY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          return;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void write(List<Entry> batch) throws SQLException {
+    lock.lock();
+    try {
+      conn.setAutoCommit(false);
+      try {
+        for (Entry entry : batch) {
+          addStmt.setInt(1, entry.gameId);
+          addStmt.setLong(2, entry.finishedAt);
+          addStmt.setBytes(3, entry.data);
+          addStmt.setInt(4, entry.gameId);
+          entry.added = addStmt.executeUpdate() > 0;
+          if (!entry.added) {
+            continue;
+          }
+          if (entry.p1Name != null) {
+            count(entry.p1Name, entry.winner == 0 ? 0 : entry.winner == 1 ? 1 : -1);
+          }
+          if (entry.p2Name != null) {
+            count(entry.p2Name, entry.winner == 0 ? 0 : entry.winner == 2 ? 1 : -1);
+          }
+        }
+        conn.commit();
+      } catch (SQLException | RuntimeException e) {
+        // Otherwise turning auto-commit back on would commit the games added so far
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void count(String name, int outcome) throws SQLException {
+    countStmt.setString(1, name);
+    countStmt.setInt(2, outcome > 0 ? 1 : 0);
+    countStmt.setInt(3, outcome < 0 ? 1 : 0);
+    countStmt.setInt(4, outcome == 0 ? 1 : 0);
+    countStmt.executeUpdate();
+  }
+
+  /**
+   * Get the highest game id in the archive, so ids of pruned games are not handed out
+   * again.
+   * @return the id, or 0 if the archive is empty
+   */
+  public int getLastGameId() throws SQLException {
+    lock.lock();
+    try {
+      try (Statement stmt = conn.createStatement();
+          ResultSet rs = stmt.executeQuery("SELECT MAX(game_id) FROM game_history;")) {
+        return rs.next() ? rs.getInt(1) : 0;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the counters of every named player.
+   */
+  public List<PlayerStats> getPlayerStats() throws SQLException {
+    lock.lock();
+    try {
+      List<PlayerStats> stats = new ArrayList<>();
+      try (Statement stmt = conn.createStatement();
+          ResultSet rs = stmt.executeQuery(
+              "SELECT name, wins, losses, draws FROM player_stats;")) {
+        while (rs.next()) {
+          stats.add(new PlayerStats(rs.getString(1), rs.getInt(2), rs.getInt(3),
+              rs.getInt(4)));
+        }
+      }
+      return stats;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the games archived after the specified one.
+   * @param after the archive id of the last game already seen, 0 to start at the beginning
+   * @return at most limit games, ordered by archive id
+   */
+  public List<GameRecord> page(long after, int limit) throws SQLException {
+    lock.lock();
+    try {
+      pageStmt.setLong(1, after);
+      pageStmt.setInt(2, limit);
+      List<GameRecord> records = new ArrayList<>(Math.min(limit, 1024));
+      try (ResultSet rs = pageStmt.executeQuery()) {
+        while (rs.next()) {
+          records.add(read(rs));
+        }
+      }
+      return records;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Hand every game archived after the specified one to the sink. Runs on its own
+   * connection, so a slow reader of a large export never holds up archiving or paging.
+   */
+  public void export(long after, Sink sink) throws SQLException, IOException {
+    try (Connection reader = DriverManager.getConnection(url);
+        PreparedStatement stmt = reader.prepareStatement(
+            "SELECT id, game_id, finished_at, data FROM game_history WHERE id > ? "
+                + "ORDER BY id;")) {
+      stmt.setLong(1, after);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          sink.accept(read(rs));
+        }
+      }
+    }
+  }
+
+  private static GameRecord read(ResultSet rs) throws SQLException {
+    return HistoryEncoder.decode(rs.getLong(1), rs.getInt(2), rs.getLong(3), rs.getBytes(4));
+  }
+
+  /**
+   * A finished game waiting for the writer.
+   */
+  private static final class Entry {
+    private final int gameId;
+
+    private final long finishedAt;
+
+    private final byte[] data;
+
+    private final int winner;
+
+    private final String p1Name;
+
+    private final String p2Name;
+
+    private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+    // Whether the last write added the game, false if it was already archived
+    private boolean added;
+
+    private Entry(int gameId, long finishedAt, byte[] data, int winner, String p1Name,
+        String p2Name) {
+      this.gameId = gameId;
+      this.finishedAt = finishedAt;
+      this.data = data;
+      this.winner = winner;
+      this.p1Name = p1Name;
+      this.p2Name = p2Name;
+    }
+  }
+}
@@ -6,168 +6,427 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import models.GameBoard;
 import models.Player;
 
-public class GameBoardDao {
+/**
+ * {@link GameStore} backed by SQLite through a single shared connection.
+ *
+ * <p>The connection is guarded by a {@link ReentrantLock} rather than by synchronized
+ * methods, because a virtual thread blocked on JDBC I/O inside a synchronized block pins
+ * its carrier thread, while one waiting for or holding a lock does not.
+ */
+public class GameBoardDao implements GameStore {
   /**
-   * Connect this instance to a database.
+   * Bumped whenever the schema changes, databases with an older version are migrated by
+   * {@link #migrate}.
    */
+  private static final int SCHEMA_VERSION = 4;
+
+  private static final String SAVE_PLAYER_SQL =
+      "REPLACE INTO player (game_id, id, character, name) VALUES (?, ?, ?, ?);";
+
+  private static final String DELETE_PLAYERS_SQL = "DELETE FROM player WHERE game_id = ?;";
+
+  private static final String DELETE_BOARD_SQL = "DELETE FROM game_board WHERE id = ?;";
+
+  private static final String SAVE_BOARD_SQL = "REPLACE INTO game_board "
+      + "(id, p1, p2, game_started, turn, size, win_length, board_state, winner, is_draw, "
+      + "bot) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+
+  private final String url;
+
+  private final String journalMode;
+
+  private final String synchronous;
+
+  /**
+   * Create a DAO backed by data.db in the working directory, using the SQLite default
+   * rollback journal and synchronous level.
+   */
+  public GameBoardDao() {
+    this("data.db");
+  }
+
+  /**
+   * Create a DAO backed by the specified SQLite database file, using the SQLite
+   * default rollback journal and synchronous level.
+   */
+  public GameBoardDao(String path) {
+    this(path, "DELETE", "FULL");
+  }
+
+  /**
+   * Create a DAO backed by the specified SQLite database file.
+   * @param journalMode the SQLite journal_mode, WAL lets a save append to the log
+   *     instead of rewriting pages in place
+   * @param synchronous the SQLite synchronous level, with WAL NORMAL only syncs on
+   *     checkpoints, which survives process crashes but not power loss
+   */
+  public GameBoardDao(String path, String journalMode, String synchronous) {
+    this.url = "jdbc:sqlite:" + path;
+    this.journalMode = journalMode;
+    this.synchronous = synchronous;
+  }
+
+  /**
+   * Connect this instance to a database, creating the schema if needed.
+   */
+  @Override
   public void connect() throws SQLException {
-    close();
-    conn = DriverManager.getConnection("jdbc:sqlite:data.db");
+    lock.lock();
+    try {
+      close();
+      conn = DriverManager.getConnection(url);
+
+      int version;
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("PRAGMA journal_mode = " + journalMode + ";");
+        stmt.execute("PRAGMA synchronous = " + synchronous + ";");
+
+        try (ResultSet rs = stmt.executeQuery("PRAGMA user_version;")) {
+          version = rs.next() ? rs.getInt(1) : 0;
+        }
+
+      }
+
+      if (version > SCHEMA_VERSION) {
+        throw new SQLException(url + " has schema version " + version
+            + ", newer than the supported version " + SCHEMA_VERSION);
+      }
+      if (version < SCHEMA_VERSION) {
+        migrate(version);
+      }
+
+      // Kept for the lifetime of the connection, so saves skip SQL parsing
+      savePlayerStmt = conn.prepareStatement(SAVE_PLAYER_SQL);
+      saveBoardStmt = conn.prepareStatement(SAVE_BOARD_SQL);
+      deletePlayersStmt = conn.prepareStatement(DELETE_PLAYERS_SQL);
+      deleteBoardStmt = conn.prepareStatement(DELETE_BOARD_SQL);
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
    * Close the underlying connection in this instance.
    */
+  @Override
   public void close() throws SQLException {
-    if (conn != null) {
-      conn.close();
-      conn = null;
+    lock.lock();
+    try {
+      if (conn != null) {
+        savePlayerStmt = null;
+        saveBoardStmt = null;
+        deletePlayersStmt = null;
+        deleteBoardStmt = null;
+        conn.close();
+        conn = null;
+      }
+    } finally {
+      lock.unlock();
     }
   }
 
   /**
-   * Reset saved state to initial state.
+   * Bring a database of an older schema version up to date in a single transaction.
+   * Version 0 is either a new database or one written before schema versions existed,
+   * when the tables held the single 3x3 game 1 and players were not keyed by game.
+   * Version 2 lacked the board size and win length, which were always 3, and version 3
+   * the names of the players and the bot seat.
    */
-  public void reset() throws SQLException {
-    String[] sqls = new String[] {
-        "DROP TABLE IF EXISTS game_board;",
-        "DROP TABLE IF EXISTS player;",
+  private void migrate(int version) throws SQLException {
+    conn.setAutoCommit(false);
+    try (Statement stmt = conn.createStatement()) {
+      if (version == 0 && hasTable(stmt, "game_board")) {
+        // Rebuilt rather than altered, SQLite cannot change a primary or foreign key
+        stmt.execute("ALTER TABLE player RENAME TO player_v1;");
+        stmt.execute("ALTER TABLE game_board RENAME TO game_board_v1;");
+        createSchema(stmt);
+        // Marks were written as their character codes then, e.g. 88 for X
+        stmt.execute("INSERT INTO player (game_id, id, character) "
+            + "SELECT 1, id, CASE WHEN character GLOB '[0-9]*' THEN char(character) "
+            + "ELSE character END FROM player_v1;");
+        stmt.execute("INSERT INTO game_board (id, p1, p2, game_started, turn, size, "
+            + "win_length, board_state, winner, is_draw) "
+            + "SELECT id, p1, p2, game_started, turn, 3, 3, board_state, winner, is_draw "
+            + "FROM game_board_v1;");
+        stmt.execute("DROP TABLE game_board_v1;");
+        stmt.execute("DROP TABLE player_v1;");
+      } else if (version == 2 || version == 3) {
+        if (version == 2) {
+          stmt.execute("ALTER TABLE game_board ADD COLUMN size INTEGER DEFAULT 3;");
+          stmt.execute("ALTER TABLE game_board ADD COLUMN win_length INTEGER DEFAULT 3;");
+        }
+        stmt.execute("ALTER TABLE player ADD COLUMN name TEXT;");
+        stmt.execute("ALTER TABLE game_board ADD COLUMN bot INTEGER DEFAULT 0;");
+      } else if (version == 0) {
+        createSchema(stmt);
+      } else {
+        throw new SQLException(url + " has unknown schema version " + version);
+      }
 
-        "CREATE TABLE player ("
-            + "id INTEGER PRIMARY KEY NOT NULL,"
-            + "character CHARACTEER(1)"
+      stmt.execute("PRAGMA user_version = " + SCHEMA_VERSION + ";");
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private static boolean hasTable(Statement stmt, String name) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery(
+        "SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + name + "';")) {
+      return rs.next();
+    }
+  }
+
+  private void createSchema(Statement stmt) throws SQLException {
+    String[] sqls = new String[] {
+        "CREATE TABLE IF NOT EXISTS player ("
+            + "game_id INTEGER NOT NULL,"
+            + "id INTEGER NOT NULL,"
+            + "character CHARACTER(1),"
+            + "name TEXT,"
+            + "PRIMARY KEY (game_id, id)"
             + ");",
 
-        "CREATE TABLE game_board ("
+        "CREATE TABLE IF NOT EXISTS game_board ("
             + "id INTEGER PRIMARY KEY NOT NULL,"
             + "p1 INTEGER,"
             + "p2 INTEGER,"
             + "game_started INTEGER,"
             + "turn INTEGER,"
-            + "board_state CHARACTER(9),"
+            + "size INTEGER,"
+            + "win_length INTEGER,"
+            + "board_state TEXT,"
             + "winner INTEGER,"
             + "is_draw INTEGER,"
-            + "FOREIGN KEY (p1) REFERENCES player (id),"
-            + "FOREIGN KEY (p2) REFERENCES player (id)"
+            + "bot INTEGER DEFAULT 0,"
+            + "FOREIGN KEY (id, p1) REFERENCES player (game_id, id),"
+            + "FOREIGN KEY (id, p2) REFERENCES player (game_id, id)"
             + ");"
-
     };
 
-    try (Statement stmt = conn.createStatement()) {
-      for (String sql : sqls) {
-        stmt.execute(sql);
-      }
+    for (String sql : sqls) {
+      stmt.execute(sql);
     }
   }
 
   /**
-   * Get the game board stored in the database.
-   * @return the game board object, or null if nothing was stored before
+   * Reset saved state to initial state, deleting all saved games.
    */
-  public GameBoard getGameBoard() throws SQLException {
-    try (Statement stmt = conn.createStatement()) {
-      try (ResultSet rs = stmt.executeQuery("SELECT count(1) FROM sqlite_master WHERE "
-          + "type = 'table' "
-          + "AND name = 'game_board';")) {
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          return null;
-        }
+  @Override
+  public void reset() throws SQLException {
+    lock.lock();
+    try {
+      conn.setAutoCommit(false);
+      try (Statement stmt = conn.createStatement()) {
+        stmt.execute("DELETE FROM game_board;");
+        stmt.execute("DELETE FROM player;");
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
       }
+    } finally {
+      lock.unlock();
+    }
+  }
 
-      try (ResultSet rs = stmt.executeQuery("SELECT p1.id, p1.character, p2.id, p2.character, "
-          + "game_started, turn, board_state, winner, is_draw "
-          + "FROM game_board "
-          + "LEFT JOIN player AS p1 ON p1.id = game_board.p1 "
-          + "LEFT JOIN player AS p2 ON p2.id = game_board.p2;")) {
-        Player p1 = null;
-        if (rs.getString(2) != null) {
-          p1 = new Player(rs.getString(2).charAt(0), rs.getInt(1));
-        }
+  /**
+   * Get all game boards stored in the database.
+   * @return the game board objects, ordered by game id
+   */
+  @Override
+  public List<GameBoard> getGameBoards() throws SQLException {
+    lock.lock();
+    try {
+      List<GameBoard> boards = new ArrayList<>();
 
-        Player p2 = null;
-        if (rs.getString(4) != null) {
-          p2 = new Player(rs.getString(4).charAt(0), rs.getInt(3));
-        }
+      try (Statement stmt = conn.createStatement();
+          ResultSet rs = stmt.executeQuery("SELECT game_board.id, "
+              + "p1.id, p1.character, p2.id, p2.character, "
+              + "game_started, turn, size, win_length, board_state, winner, is_draw, "
+              + "bot, p1.name, p2.name "
+              + "FROM game_board "
+              + "LEFT JOIN player AS p1 ON p1.game_id = game_board.id AND p1.id = game_board.p1 "
+              + "LEFT JOIN player AS p2 ON p2.game_id = game_board.id AND p2.id = game_board.p2 "
+              + "ORDER BY game_board.id;")) {
+        while (rs.next()) {
+          int gameId = rs.getInt(1);
 
-        boolean started = rs.getBoolean(5);
-        int turn = rs.getInt(6);
-        String rawBoardState = rs.getString(7);
-        int winner = rs.getInt(8);
-        boolean isDraw = rs.getBoolean(9);
+          Player p1 = null;
+          if (rs.getString(3) != null) {
+            p1 = Player.of(rs.getString(3).charAt(0), rs.getInt(2));
+          }
 
-        char[][] boardState = new char[3][3];
-        for (int i = 0; i < 3; ++i) {
-          for (int j = 0; j < 3; ++j) {
-            boardState[i][j] = rawBoardState.charAt(i * 3 + j);
+          Player p2 = null;
+          if (rs.getString(5) != null) {
+            p2 = Player.of(rs.getString(5).charAt(0), rs.getInt(4));
           }
-        }
 
-        return new GameBoard(p1, p2, started, turn, boardState, winner, isDraw);
+          boolean started = rs.getBoolean(6);
+          int turn = rs.getInt(7);
+          int size = rs.getInt(8);
+          int winLength = rs.getInt(9);
+          String rawBoardState = rs.getString(10);
+          int winner = rs.getInt(11);
+          boolean isDraw = rs.getBoolean(12);
+
+          char[][] boardState = new char[size][size];
+          for (int i = 0; i < size; ++i) {
+            for (int j = 0; j < size; ++j) {
+              boardState[i][j] = rawBoardState.charAt(i * size + j);
+            }
+          }
+
+          GameBoard board = new GameBoard(gameId, p1, p2, started, turn, boardState,
+              winLength, winner, isDraw);
+          board.setBot(rs.getBoolean(13));
+          if (p1 != null) {
+            board.setPlayerName(1, rs.getString(14));
+          }
+          if (p2 != null) {
+            board.setPlayerName(2, rs.getString(15));
+          }
+          boards.add(board);
+        }
       }
+
+      return boards;
+    } finally {
+      lock.unlock();
     }
   }
 
   /**
-   * save the game board to the database.
+   * save the game board to the database in a single transaction.
    */
+  @Override
   public void saveGameBoard(GameBoard board) throws SQLException {
-    String savePlayerSql = "REPLACE INTO player (id, character) VALUES (?, ?);";
-    String saveBoardSql = "REPLACE INTO game_board "
-        + "(id, p1, p2, game_started, turn, board_state, winner, is_draw)"
-        + " VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
-
-    Player p1 = board.getPlayer1();
-    Player p2 = board.getPlayer2();
+    saveGameBoards(Collections.singletonList(board));
+  }
 
-    if (p1 != null) {
-      try (PreparedStatement stmt = conn.prepareStatement(savePlayerSql)) {
-        stmt.setInt(1, p1.getId());
-        stmt.setInt(2, p1.getType());
-        stmt.execute();
+  /**
+   * Save the game boards to the database in a single transaction.
+   */
+  @Override
+  public void saveGameBoards(Collection<GameBoard> boards) throws SQLException {
+    lock.lock();
+    try {
+      conn.setAutoCommit(false);
+      try {
+        for (GameBoard board : boards) {
+          save(board);
+        }
+        conn.commit();
+      } catch (SQLException | RuntimeException e) {
+        // Otherwise turning auto-commit back on would commit the boards saved so far
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
       }
+    } finally {
+      lock.unlock();
     }
+  }
 
-    if (p2 != null) {
-      try (PreparedStatement stmt = conn.prepareStatement(savePlayerSql)) {
-        stmt.setInt(1, p2.getId());
-        stmt.setInt(2, p2.getType());
-        stmt.execute();
+  /**
+   * Delete the game and its players in a single transaction.
+   */
+  @Override
+  public void deleteGameBoard(int gameId) throws SQLException {
+    lock.lock();
+    try {
+      conn.setAutoCommit(false);
+      try {
+        deleteBoardStmt.setInt(1, gameId);
+        deleteBoardStmt.executeUpdate();
+        deletePlayersStmt.setInt(1, gameId);
+        deletePlayersStmt.executeUpdate();
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
       }
+    } finally {
+      lock.unlock();
     }
+  }
 
-    try (PreparedStatement stmt = conn.prepareStatement(saveBoardSql)) {
-      stmt.setInt(1, 1);
+  private void save(GameBoard board) throws SQLException {
+    board = board.copy();
+    Player p1 = board.getPlayer1();
+    Player p2 = board.getPlayer2();
 
-      if (p1 != null) {
-        stmt.setInt(2, p1.getId());
+    for (Player player : new Player[] {p1, p2}) {
+      if (player != null) {
+        savePlayerStmt.setInt(1, board.getGameId());
+        savePlayerStmt.setInt(2, player.getId());
+        savePlayerStmt.setString(3, String.valueOf(player.getType()));
+        savePlayerStmt.setString(4, board.getPlayerName(player.getId()));
+        savePlayerStmt.executeUpdate();
       }
+    }
 
-      if (p2 != null) {
-        stmt.setInt(3, p2.getId());
-      } else {
-        stmt.setNull(3, java.sql.Types.NULL);
-      }
+    PreparedStatement stmt = saveBoardStmt;
+    stmt.setInt(1, board.getGameId());
 
-      stmt.setBoolean(4, board.isGameStarted());
-      stmt.setInt(5, board.getTurn());
+    if (p1 != null) {
+      stmt.setInt(2, p1.getId());
+    } else {
+      stmt.setNull(2, java.sql.Types.NULL);
+    }
 
-      StringBuilder sb = new StringBuilder();
-      for (int i = 0; i < 3; ++i) {
-        for (int j = 0; j < 3; ++j) {
-          sb.append(board.getBoardState()[i][j]);
-        }
-      }
-      stmt.setString(6, sb.toString());
+    if (p2 != null) {
+      stmt.setInt(3, p2.getId());
+    } else {
+      stmt.setNull(3, java.sql.Types.NULL);
+    }
+
+    stmt.setBoolean(4, board.isGameStarted());
+    stmt.setInt(5, board.getTurn());
+    stmt.setInt(6, board.getSize());
+    stmt.setInt(7, board.getWinLength());
 
-      stmt.setInt(7, board.getWinner());
-      stmt.setBoolean(8, board.isDraw());
-      stmt.execute();
+    int size = board.getSize();
+    StringBuilder sb = new StringBuilder(size * size);
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        sb.append(board.getCell(i, j));
+      }
     }
+    stmt.setString(8, sb.toString());
+
+    stmt.setInt(9, board.getWinner());
+    stmt.setBoolean(10, board.isDraw());
+    stmt.setBoolean(11, board.hasBot());
+    stmt.executeUpdate();
   }
 
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock
   private Connection conn;
+
+  private PreparedStatement savePlayerStmt;
+
+  private PreparedStatement saveBoardStmt;
+
+  private PreparedStatement deletePlayersStmt;
+
+  private PreparedStatement deleteBoardStmt;
 }
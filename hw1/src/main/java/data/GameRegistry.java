@@ -0,0 +1,124 @@
+package data;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import models.GameBoard;
+import models.Player;
+
+/**
+ * In-memory registry of all games hosted by this server, keyed by game id.
+ *
+ * <p>Lookups never block. Work on a single game is serialized by running it on the
+ * shard thread that owns the game, see {@link controllers.GameShards}, so moves on
+ * different games never contend with each other.
+ */
+public class GameRegistry {
+
+  private final ConcurrentMap<Integer, GameBoard> games = new ConcurrentHashMap<>();
+
+  private final AtomicInteger lastId = new AtomicInteger();
+
+  private final AtomicReference<GameBoard> defaultGame = new AtomicReference<>();
+
+  /**
+   * Create a new 3x3 game with the specified first player and register it.
+   * The new game becomes the default game used by the legacy routes.
+   * @param player1 the player who started the game
+   * @return the newly created game
+   */
+  public GameBoard create(Player player1) {
+    return create(player1, GameBoard.DEFAULT_SIZE, GameBoard.DEFAULT_SIZE);
+  }
+
+  /**
+   * Create a new game on a board of the specified size and register it.
+   * @param player1 the player who started the game
+   * @param size the length of one side of the board
+   * @param winLength how many stones in a row are needed to win
+   * @return the newly created game
+   */
+  public GameBoard create(Player player1, int size, int winLength) {
+    return create(player1, size, winLength, true);
+  }
+
+  /**
+   * Create a new game on a board of the specified size and register it.
+   * @param asDefault whether the game becomes the default game, games of the lobby do not
+   *     so the legacy routes never join them
+   * @return the newly created game
+   */
+  public GameBoard create(Player player1, int size, int winLength, boolean asDefault) {
+    GameBoard board = new GameBoard(lastId.incrementAndGet(), size, winLength);
+    board.setPlayer1(player1);
+    games.put(board.getGameId(), board);
+    if (asDefault) {
+      defaultGame.set(board);
+    }
+    return board;
+  }
+
+  /**
+   * Register an existing game, e.g. one restored from the database.
+   * The game with the highest id becomes the default game.
+   */
+  public void add(GameBoard board) {
+    int id = board.getGameId();
+    games.put(id, board);
+    lastId.accumulateAndGet(id, Math::max);
+
+    defaultGame.accumulateAndGet(board,
+        (current, added) -> current == null || current.getGameId() < id ? added : current);
+  }
+
+  /**
+   * Never hand out the specified id or a lower one to a new game, e.g. the ids of games
+   * already archived and pruned.
+   */
+  public void reserveIds(int lastId) {
+    this.lastId.accumulateAndGet(lastId, Math::max);
+  }
+
+  /**
+   * Forget a game. If it is the default game the legacy routes have no game until the
+   * next one is started.
+   */
+  public void remove(int gameId) {
+    GameBoard board = games.remove(gameId);
+    if (board != null) {
+      defaultGame.compareAndSet(board, null);
+    }
+  }
+
+  /**
+   * Get the game with the specified id.
+   * @return the game, or null if no such game exists
+   */
+  public GameBoard get(int gameId) {
+    return games.get(gameId);
+  }
+
+  /**
+   * Get the most recently started game.
+   * @return the game, or null if no game has been started yet
+   */
+  public GameBoard getDefault() {
+    return defaultGame.get();
+  }
+
+  /**
+   * Get all registered games.
+   */
+  public Collection<GameBoard> getAll() {
+    return games.values();
+  }
+
+  /**
+   * Get the number of registered games.
+   */
+  public int size() {
+    return games.size();
+  }
+}
@@ -0,0 +1,84 @@
+package data;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import models.GameBoard;
+import models.Move;
+
+/**
+ * Persistent storage for game boards.
+ *
+ * <p>Failures are reported as {@link SQLException}, the exception type used by the
+ * original SQLite DAO, whatever the storage medium is.
+ */
+public interface GameStore {
+
+  /**
+   * Open the underlying storage.
+   */
+  void connect() throws SQLException;
+
+  /**
+   * Flush pending writes and close the underlying storage.
+   */
+  void close() throws SQLException;
+
+  /**
+   * Reset saved state to initial state, dropping all saved games.
+   */
+  void reset() throws SQLException;
+
+  /**
+   * Get all game boards stored.
+   * @return the game board objects, ordered by game id
+   */
+  List<GameBoard> getGameBoards() throws SQLException;
+
+  /**
+   * Save the game board.
+   */
+  void saveGameBoard(GameBoard board) throws SQLException;
+
+  /**
+   * Save the game board after the specified move was accepted on it.
+   * Stores that can record the move alone override this, by default the whole
+   * board is saved.
+   */
+  default void saveMove(GameBoard board, Move move) throws SQLException {
+    saveGameBoard(board);
+  }
+
+  /**
+   * Delete a game, e.g. once it is finished and archived. Deleting a game that is not
+   * stored does nothing.
+   */
+  void deleteGameBoard(int gameId) throws SQLException;
+
+  /**
+   * Save several game boards, as a single transaction where the storage supports it.
+   */
+  default void saveGameBoards(Collection<GameBoard> boards) throws SQLException {
+    for (GameBoard board : boards) {
+      saveGameBoard(board);
+    }
+  }
+
+  /**
+   * Make several saves and wait once, at the end, until all of them are as durable as
+   * the store promises, instead of after each of them. Stores that wait for every save,
+   * e.g. with group commit, override this, by default the saves are just made.
+   * @throws SQLException if the saves did not reach the disk
+   */
+  default void saveAll(Saves saves) throws SQLException {
+    saves.run();
+  }
+
+  /**
+   * Saves made together, see {@link #saveAll}.
+   */
+  @FunctionalInterface
+  interface Saves {
+    void run() throws SQLException;
+  }
+}
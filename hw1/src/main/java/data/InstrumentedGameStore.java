@@ -0,0 +1,116 @@
+package data;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import metrics.Histogram;
+import metrics.Metrics;
+import models.GameBoard;
+import models.Move;
+
+/**
+ * A {@link GameStore} recording the latency of every load and save of another store in
+ * the game_store_seconds metric. Put in front of the store doing the actual I/O, e.g.
+ * behind a {@link WriteBehindGameStore}, to measure the storage medium.
+ */
+public class InstrumentedGameStore implements GameStore {
+
+  private static final String NAME = "game_store_seconds";
+
+  private static final String HELP = "Latency of game store operations";
+
+  private final GameStore delegate;
+
+  private final Histogram load;
+
+  private final Histogram save;
+
+  private final Histogram saveMove;
+
+  private final Histogram saveBatch;
+
+  private final Histogram delete;
+
+  /**
+   * Instrument the specified store.
+   * @param name the value of the store label, e.g. sqlite
+   */
+  public InstrumentedGameStore(GameStore delegate, String name) {
+    this.delegate = delegate;
+    this.load = Metrics.histogram(NAME, HELP, "store", name, "operation", "load");
+    this.save = Metrics.histogram(NAME, HELP, "store", name, "operation", "save");
+    this.saveMove = Metrics.histogram(NAME, HELP, "store", name, "operation", "save_move");
+    this.saveBatch = Metrics.histogram(NAME, HELP, "store", name, "operation", "save_batch");
+    this.delete = Metrics.histogram(NAME, HELP, "store", name, "operation", "delete");
+  }
+
+  @Override
+  public void connect() throws SQLException {
+    delegate.connect();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    delegate.close();
+  }
+
+  @Override
+  public void reset() throws SQLException {
+    delegate.reset();
+  }
+
+  @Override
+  public List<GameBoard> getGameBoards() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return delegate.getGameBoards();
+    } finally {
+      load.recordSince(start);
+    }
+  }
+
+  @Override
+  public void saveGameBoard(GameBoard board) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      delegate.saveGameBoard(board);
+    } finally {
+      save.recordSince(start);
+    }
+  }
+
+  @Override
+  public void saveMove(GameBoard board, Move move) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      delegate.saveMove(board, move);
+    } finally {
+      saveMove.recordSince(start);
+    }
+  }
+
+  @Override
+  public void saveGameBoards(Collection<GameBoard> boards) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      delegate.saveGameBoards(boards);
+    } finally {
+      saveBatch.recordSince(start);
+    }
+  }
+
+  @Override
+  public void saveAll(Saves saves) throws SQLException {
+    delegate.saveAll(saves);
+  }
+
+  @Override
+  public void deleteGameBoard(int gameId) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      delegate.deleteGameBoard(gameId);
+    } finally {
+      delete.recordSince(start);
+    }
+  }
+}
@@ -0,0 +1,765 @@
+package data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Event-sourced {@link GameStore}: every accepted move is appended to a journal file
+ * as a few bytes, and boards are rebuilt at startup by loading the latest snapshot
+ * and replaying the journal on top of it.
+ *
+ * <p>Once the journal holds enough records it is compacted in the background: the
+ * journal is renamed to games.journal.old and a new one is started right away, then a
+ * compactor thread writes the boards as of the rename to a new snapshot, which
+ * atomically replaces the old one, and deletes the old journal. Every file carries a
+ * generation number, so a journal that was already folded into a snapshot is never
+ * replayed twice, and an old journal is only replayed while no snapshot covers it.
+ *
+ * <p>The records appended through {@link #saveAll} share a single force, or a single
+ * wait for the periodic force, made once all of them are appended.
+ */
+public class JournalGameStore implements GameStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(JournalGameStore.class);
+
+  private static final byte BOARD_RECORD = 'B';
+
+  private static final byte MOVE_RECORD = 'M';
+
+  private static final int MOVE_RECORD_SIZE = 8;
+
+  private static final byte DELETE_RECORD = 'D';
+
+  private static final int DELETE_RECORD_SIZE = 5;
+
+  private static final byte SEATS_RECORD = 'S';
+
+  private final Path journalFile;
+
+  private final Path oldJournalFile;
+
+  private final Path snapshotFile;
+
+  private final Durability durability;
+
+  private final long forceIntervalMillis;
+
+  private final int snapshotEvery;
+
+  // Whether every append is forced before it returns
+  private final boolean forceEachAppend;
+
+  // Current state of every game, kept to write snapshots
+  private final Map<Integer, GameBoard> boards = new TreeMap<>();
+
+  private FileChannel journal;
+
+  private long generation;
+
+  private int recordsSinceSnapshot;
+
+  // Number of records appended since the store was opened, and how many of them are
+  // known to be on disk
+  private long appended;
+
+  private long forced;
+
+  // Sequence number of the last record appended by the thread inside saveAll, null
+  // outside of it
+  private final ThreadLocal<long[]> batch = new ThreadLocal<>();
+
+  // Whether the compactor is writing a snapshot
+  private boolean compacting;
+
+  private ScheduledExecutorService forcer;
+
+  private ExecutorService compactor;
+
+  /**
+   * Create a journal store keeping its files in the specified directory.
+   * @param durability SYNC forces the journal to disk on every append, otherwise every
+   *     append reaches the operating system immediately and the journal is forced
+   *     every forceIntervalMillis, with GROUP_COMMIT an append waits for that force
+   * @param snapshotEvery how many journal records trigger a compaction
+   */
+  public JournalGameStore(Path directory, Durability durability, long forceIntervalMillis,
+      int snapshotEvery) {
+    this.journalFile = directory.resolve("games.journal");
+    this.oldJournalFile = directory.resolve("games.journal.old");
+    this.snapshotFile = directory.resolve("games.snapshot");
+    this.durability = durability;
+    this.forceIntervalMillis = forceIntervalMillis;
+    this.snapshotEvery = snapshotEvery;
+    this.forceEachAppend = durability == Durability.SYNC
+        || (durability == Durability.GROUP_COMMIT && forceIntervalMillis <= 0);
+  }
+
+  @Override
+  public synchronized void connect() throws SQLException {
+    close();
+    try {
+      Files.createDirectories(journalFile.getParent());
+      boards.clear();
+      generation = loadSnapshot();
+      boolean replayedOld = replayOldJournal();
+      if (replayedOld) {
+        // The new journal was started when the old one was renamed
+        generation++;
+      }
+      journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      replayJournal();
+      if (replayedOld) {
+        // The snapshot of the interrupted compaction was never written
+        compact();
+      }
+    } catch (IOException e) {
+      throw new SQLException("Failed to open journal", e);
+    }
+
+    compactor = Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "game-journal-compact");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (!forceEachAppend && forceIntervalMillis > 0) {
+      forcer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "game-journal-force");
+        thread.setDaemon(true);
+        return thread;
+      });
+      forcer.scheduleWithFixedDelay(this::force, forceIntervalMillis, forceIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Wait for a compaction in progress, compact the journal into a snapshot and close
+   * the files.
+   */
+  @Override
+  public synchronized void close() throws SQLException {
+    if (forcer != null) {
+      forcer.shutdown();
+      forcer = null;
+    }
+
+    awaitCompaction();
+    if (compactor != null) {
+      compactor.shutdown();
+      compactor = null;
+    }
+
+    if (journal != null) {
+      try {
+        if (recordsSinceSnapshot > 0 || Files.exists(oldJournalFile)) {
+          compact();
+        }
+        forced = appended;
+        journal.close();
+      } catch (IOException e) {
+        throw new SQLException("Failed to close journal", e);
+      } finally {
+        journal = null;
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void reset() throws SQLException {
+    checkOpen();
+    awaitCompaction();
+    boards.clear();
+    try {
+      Files.deleteIfExists(snapshotFile);
+      Files.deleteIfExists(oldJournalFile);
+      generation = 0;
+      startJournal();
+      forced = appended;
+      notifyAll();
+    } catch (IOException e) {
+      throw new SQLException("Failed to reset journal", e);
+    }
+  }
+
+  @Override
+  public synchronized List<GameBoard> getGameBoards() {
+    List<GameBoard> copies = new ArrayList<>(boards.size());
+    for (GameBoard board : boards.values()) {
+      copies.add(board.copy());
+    }
+    return copies;
+  }
+
+  /**
+   * Append the whole board, used when a game is created or joined, followed by its seats
+   * if the bot or a named player holds one.
+   */
+  @Override
+  public synchronized void saveGameBoard(GameBoard board) throws SQLException {
+    checkOpen();
+    GameBoard copy = board.copy();
+    boards.put(copy.getGameId(), copy);
+
+    boolean seats = hasSeats(copy);
+    ByteBuffer buffer = ByteBuffer.allocate(1 + boardRecordSize(copy)
+        + (seats ? seatsRecordSize(copy) : 0));
+    buffer.put(BOARD_RECORD);
+    putBoard(buffer, copy);
+    if (seats) {
+      putSeats(buffer, copy);
+    }
+    append(buffer);
+  }
+
+  /**
+   * Append only the move.
+   */
+  @Override
+  public synchronized void saveMove(GameBoard board, Move move) throws SQLException {
+    checkOpen();
+    GameBoard copy = boards.get(board.getGameId());
+    if (copy == null || !apply(copy, move.getPlayer().getId(), move.getX(), move.getY())) {
+      // The journal does not know this game, fall back to the whole board
+      saveGameBoard(board);
+      return;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(MOVE_RECORD_SIZE);
+    buffer.put(MOVE_RECORD);
+    buffer.putInt(board.getGameId());
+    buffer.put((byte) move.getPlayer().getId());
+    buffer.put((byte) move.getX());
+    buffer.put((byte) move.getY());
+    append(buffer);
+  }
+
+  /**
+   * Append the deletion of the game, if the journal knows it.
+   */
+  @Override
+  public synchronized void deleteGameBoard(int gameId) throws SQLException {
+    checkOpen();
+    if (boards.remove(gameId) == null) {
+      return;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(DELETE_RECORD_SIZE);
+    buffer.put(DELETE_RECORD);
+    buffer.putInt(gameId);
+    append(buffer);
+  }
+
+  /**
+   * Append the records of the saves, then force them once, or wait once for the periodic
+   * force to cover them, unless the durability is async.
+   */
+  @Override
+  public void saveAll(Saves saves) throws SQLException {
+    if (durability == Durability.ASYNC || batch.get() != null) {
+      saves.run();
+      return;
+    }
+
+    long[] last = new long[1];
+    batch.set(last);
+    try {
+      saves.run();
+    } finally {
+      batch.remove();
+    }
+
+    if (last[0] > 0) {
+      awaitDurable(last[0]);
+    }
+  }
+
+  private synchronized void awaitDurable(long sequence) throws SQLException {
+    if (forceEachAppend && forced < sequence) {
+      checkOpen();
+      try {
+        journal.force(false);
+      } catch (IOException e) {
+        throw new SQLException("Failed to force the journal", e);
+      }
+      forced = appended;
+      notifyAll();
+      return;
+    }
+
+    awaitForced(sequence);
+  }
+
+  private void checkOpen() throws SQLException {
+    if (journal == null) {
+      throw new SQLException("Journal is not open");
+    }
+  }
+
+  private void append(ByteBuffer buffer) throws SQLException {
+    buffer.flip();
+    long sequence;
+    try {
+      while (buffer.hasRemaining()) {
+        journal.write(buffer);
+      }
+      sequence = ++appended;
+
+      long[] last = batch.get();
+      if (last != null) {
+        last[0] = sequence;
+      } else if (forceEachAppend) {
+        journal.force(false);
+        forced = sequence;
+      }
+
+      if (++recordsSinceSnapshot >= snapshotEvery && !compacting) {
+        startCompaction();
+      }
+    } catch (IOException e) {
+      throw new SQLException("Failed to append to journal", e);
+    }
+
+    if (durability == Durability.GROUP_COMMIT && batch.get() == null) {
+      awaitForced(sequence);
+    }
+  }
+
+  /**
+   * Wait until the record with the specified sequence number is on disk. Waiting
+   * releases the monitor, so other appends join the same force.
+   */
+  private void awaitForced(long sequence) throws SQLException {
+    while (forced < sequence) {
+      if (journal == null) {
+        throw new SQLException("Journal closed before the save reached the disk");
+      }
+
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for the journal", e);
+      }
+    }
+  }
+
+  /**
+   * Force the journal without holding the monitor, so appends go on meanwhile.
+   */
+  private void force() {
+    FileChannel channel;
+    long sequence;
+    synchronized (this) {
+      channel = journal;
+      sequence = appended;
+      if (channel == null || forced >= sequence) {
+        return;
+      }
+    }
+
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      // Retried on the next tick, a journal closed by a compaction was forced by it
+      return;
+    }
+
+    synchronized (this) {
+      if (forced < sequence) {
+        forced = sequence;
+        notifyAll();
+      }
+    }
+  }
+
+  private void awaitCompaction() throws SQLException {
+    while (compacting) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for compaction", e);
+      }
+    }
+  }
+
+  /**
+   * Move the journal aside and start a new one, then hand the boards as of now to the
+   * compactor. If the old journal of a compaction that failed is still there, the
+   * boards are compacted right away instead, since it must not be overwritten.
+   */
+  private void startCompaction() throws IOException {
+    if (compactor == null || Files.exists(oldJournalFile)) {
+      compact();
+      return;
+    }
+
+    // Everything appended so far is covered by the old journal
+    journal.force(false);
+    forced = appended;
+    notifyAll();
+    Files.move(journalFile, oldJournalFile, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+    FileChannel old = journal;
+    journal = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    old.close();
+    generation++;
+    startJournal();
+
+    Map<Integer, GameBoard> copies = new TreeMap<>();
+    for (GameBoard board : boards.values()) {
+      copies.put(board.getGameId(), board.copy());
+    }
+    long snapshotGeneration = generation;
+    compacting = true;
+    compactor.execute(() -> {
+      try {
+        writeSnapshot(copies, snapshotGeneration);
+        Files.deleteIfExists(oldJournalFile);
+      } catch (IOException e) {
+        logger.error("Failed to compact the journal, retried on the next compaction", e);
+      } finally {
+        synchronized (this) {
+          compacting = false;
+          notifyAll();
+        }
+      }
+    });
+  }
+
+  /**
+   * Write every board to a new snapshot, then start an empty journal and drop the old
+   * one.
+   */
+  private void compact() throws IOException {
+    writeSnapshot(boards, generation + 1);
+    generation++;
+    startJournal();
+    Files.deleteIfExists(oldJournalFile);
+    forced = appended;
+    notifyAll();
+  }
+
+  private void writeSnapshot(Map<Integer, GameBoard> snapshot, long snapshotGeneration)
+      throws IOException {
+    Path temp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Channels.newOutputStream(channel)));
+      out.writeLong(snapshotGeneration);
+      out.writeInt(snapshot.size());
+      List<GameBoard> withSeats = new ArrayList<>();
+      for (GameBoard board : snapshot.values()) {
+        ByteBuffer buffer = ByteBuffer.allocate(boardRecordSize(board));
+        putBoard(buffer, board);
+        out.write(buffer.array());
+        if (hasSeats(board)) {
+          withSeats.add(board);
+        }
+      }
+      // The seats follow the boards, older snapshots end before them
+      out.writeInt(withSeats.size());
+      for (GameBoard board : withSeats) {
+        ByteBuffer buffer = ByteBuffer.allocate(seatsRecordSize(board));
+        putSeats(buffer, board);
+        out.write(buffer.array());
+      }
+      out.flush();
+      channel.force(true);
+    }
+
+    Files.move(temp, snapshotFile, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private void startJournal() throws IOException {
+    journal.truncate(0);
+    journal.position(0);
+    ByteBuffer header = ByteBuffer.allocate(Long.BYTES);
+    header.putLong(generation).flip();
+    while (header.hasRemaining()) {
+      journal.write(header);
+    }
+    journal.force(true);
+    recordsSinceSnapshot = 0;
+  }
+
+  /**
+   * Load the snapshot into boards.
+   * @return the generation of the snapshot, 0 if there is none
+   */
+  private long loadSnapshot() throws IOException {
+    if (!Files.exists(snapshotFile)) {
+      return 0;
+    }
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+      long snapshotGeneration = in.readLong();
+      int count = in.readInt();
+      for (int i = 0; i < count; ++i) {
+        GameBoard board = readBoard(in);
+        boards.put(board.getGameId(), board);
+      }
+
+      int seats;
+      try {
+        seats = in.readInt();
+      } catch (EOFException e) {
+        // Written before seats were kept
+        seats = 0;
+      }
+      for (int i = 0; i < seats; ++i) {
+        readSeats(in);
+      }
+      return snapshotGeneration;
+    }
+  }
+
+  /**
+   * Replay the journal moved aside by a compaction whose snapshot was not written, a
+   * leftover journal already covered by the snapshot is deleted.
+   * @return whether the old journal was replayed
+   */
+  private boolean replayOldJournal() throws IOException {
+    if (!Files.exists(oldJournalFile)) {
+      return false;
+    }
+
+    try (FileChannel channel = FileChannel.open(oldJournalFile, StandardOpenOption.READ)) {
+      if (replay(channel) >= 0) {
+        return true;
+      }
+    }
+    Files.delete(oldJournalFile);
+    return false;
+  }
+
+  /**
+   * Replay the journal on top of the snapshot. A torn record at the end, left by a
+   * crash in the middle of an append, is cut off.
+   */
+  private void replayJournal() throws IOException {
+    long valid = replay(journal);
+    if (valid < 0) {
+      // Empty, or already folded into the snapshot before it could be restarted
+      startJournal();
+      return;
+    }
+
+    journal.truncate(valid);
+    journal.position(valid);
+  }
+
+  /**
+   * Apply the records of a journal of the current generation to boards.
+   * @return the length of its complete records, or -1 if it belongs to another
+   *     generation
+   */
+  private long replay(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < Long.BYTES) {
+      return -1;
+    }
+
+    channel.position(0);
+    InputStream stream = new BufferedInputStream(Channels.newInputStream(channel));
+    DataInputStream in = new DataInputStream(stream);
+    if (in.readLong() != generation) {
+      return -1;
+    }
+
+    long valid = Long.BYTES;
+    int records = 0;
+    try {
+      while (valid < size) {
+        byte type = in.readByte();
+        if (type == BOARD_RECORD) {
+          GameBoard board = readBoard(in);
+          boards.put(board.getGameId(), board);
+          valid += 1 + boardRecordSize(board);
+        } else if (type == MOVE_RECORD) {
+          int gameId = in.readInt();
+          int playerId = in.readByte();
+          int x = in.readByte();
+          int y = in.readByte();
+          GameBoard board = boards.get(gameId);
+          if (board != null) {
+            apply(board, playerId, x, y);
+          }
+          valid += MOVE_RECORD_SIZE;
+        } else if (type == DELETE_RECORD) {
+          boards.remove(in.readInt());
+          valid += DELETE_RECORD_SIZE;
+        } else if (type == SEATS_RECORD) {
+          valid += 1 + readSeatsBody(in);
+        } else {
+          break;
+        }
+        records++;
+      }
+    } catch (EOFException e) {
+      // Torn record, dropped by the caller
+    }
+
+    recordsSinceSnapshot = records;
+    return valid;
+  }
+
+  private static boolean apply(GameBoard board, int playerId, int x, int y) {
+    Player player = board.getPlayer(playerId);
+    if (player == null) {
+      return false;
+    }
+
+    return board.tryMove(player, x, y) == GameBoard.MOVE_ACCEPTED;
+  }
+
+  private static boolean hasSeats(GameBoard board) {
+    return board.hasBot() || board.getPlayerName(1) != null || board.getPlayerName(2) != null;
+  }
+
+  private static int seatsRecordSize(GameBoard board) {
+    return 1 + 4 + 1 + nameSize(board.getPlayerName(1)) + nameSize(board.getPlayerName(2));
+  }
+
+  private static int nameSize(String name) {
+    return 1 + (name == null ? 0 : name.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  /**
+   * Encode the seats of a board: record type, id, bot flag, then the name of each player
+   * as its length in UTF-8 bytes followed by the bytes, 0 for an anonymous player.
+   */
+  private static void putSeats(ByteBuffer buffer, GameBoard board) {
+    buffer.put(SEATS_RECORD);
+    buffer.putInt(board.getGameId());
+    buffer.put((byte) (board.hasBot() ? 1 : 0));
+    for (int playerId = 1; playerId <= 2; ++playerId) {
+      String name = board.getPlayerName(playerId);
+      byte[] bytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+      buffer.put((byte) bytes.length);
+      buffer.put(bytes);
+    }
+  }
+
+  /**
+   * Read the seats of a board written by {@link #putSeats} and set them on the board.
+   */
+  private void readSeats(DataInputStream in) throws IOException {
+    if (in.readByte() != SEATS_RECORD) {
+      throw new IOException("Expected a seats record");
+    }
+    readSeatsBody(in);
+  }
+
+  /**
+   * Read the seats of a board after the record type and set them on the board.
+   * @return the number of bytes read
+   */
+  private int readSeatsBody(DataInputStream in) throws IOException {
+    int gameId = in.readInt();
+    boolean bot = in.readByte() != 0;
+    int size = 4 + 1;
+    String[] names = new String[2];
+    for (int i = 0; i < 2; ++i) {
+      byte[] bytes = new byte[in.readUnsignedByte()];
+      in.readFully(bytes);
+      names[i] = bytes.length == 0 ? null : new String(bytes, StandardCharsets.UTF_8);
+      size += 1 + bytes.length;
+    }
+
+    GameBoard board = boards.get(gameId);
+    if (board != null) {
+      board.setBot(bot);
+      board.setPlayerName(1, names[0]);
+      board.setPlayerName(2, names[1]);
+    }
+    return size;
+  }
+
+  private static int boardRecordSize(GameBoard board) {
+    return 4 + 2 + 4 + 1 + 1 + 4 + 1 + board.getSize() * board.getSize();
+  }
+
+  /**
+   * Encode a board: id, size, win length, both marks, flags, turn, winner and one byte
+   * per cell holding the id of its owner.
+   */
+  private static void putBoard(ByteBuffer buffer, GameBoard board) {
+    Player p1 = board.getPlayer1();
+    Player p2 = board.getPlayer2();
+
+    buffer.putInt(board.getGameId());
+    buffer.put((byte) board.getSize());
+    buffer.put((byte) board.getWinLength());
+    buffer.putChar(p1 == null ? 0 : p1.getType());
+    buffer.putChar(p2 == null ? 0 : p2.getType());
+    buffer.put((byte) (board.isGameStarted() ? 1 : 0));
+    buffer.put((byte) board.getTurn());
+    buffer.putInt(board.getWinner());
+    buffer.put((byte) (board.isDraw() ? 1 : 0));
+
+    for (int i = 0; i < board.getSize(); ++i) {
+      for (int j = 0; j < board.getSize(); ++j) {
+        char c = board.getCell(i, j);
+        buffer.put((byte) (c == 0 ? 0 : c == p1.getType() ? 1 : 2));
+      }
+    }
+  }
+
+  private static GameBoard readBoard(DataInputStream in) throws IOException {
+    int gameId = in.readInt();
+    int size = in.readByte();
+    int winLength = in.readByte();
+    char p1Type = in.readChar();
+    char p2Type = in.readChar();
+    boolean started = in.readByte() != 0;
+    int turn = in.readByte();
+    int winner = in.readInt();
+    boolean isDraw = in.readByte() != 0;
+
+    char[][] boardState = new char[size][size];
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        int owner = in.readByte();
+        boardState[i][j] = owner == 1 ? p1Type : owner == 2 ? p2Type : 0;
+      }
+    }
+
+    Player p1 = p1Type == 0 ? null : Player.of(p1Type, 1);
+    Player p2 = p2Type == 0 ? null : Player.of(p2Type, 2);
+    return new GameBoard(gameId, p1, p2, started, turn, boardState, winLength, winner, isDraw);
+  }
+}
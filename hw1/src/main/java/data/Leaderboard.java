@@ -0,0 +1,124 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+import models.PlayerStats;
+
+/**
+ * In-memory ranking of named players, kept in {@link PlayerStats#RANKING} order as games
+ * finish. Counting a game replaces the entries of its two players in a sorted set, which
+ * is O(log n), and the top k are read off the head of the set, so a query never looks at
+ * past games.
+ */
+public class Leaderboard {
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Guarded by lock
+  private final Map<String, PlayerStats> players = new HashMap<>();
+
+  private final TreeSet<PlayerStats> ranking = new TreeSet<>(PlayerStats.RANKING);
+
+  /**
+   * Replace the whole ranking, e.g. with the stats restored from the archive.
+   */
+  public void load(Collection<PlayerStats> stats) {
+    lock.lock();
+    try {
+      players.clear();
+      ranking.clear();
+      for (PlayerStats player : stats) {
+        players.put(player.getName(), player);
+        ranking.add(player);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Count a finished game. A game where one name holds both seats is not ranked.
+   * @param p1Name the name of player 1, or null if the player is anonymous
+   * @param p2Name the name of player 2, or null if the player is anonymous
+   * @param winner the id of the winner, 0 for a draw
+   */
+  public void record(String p1Name, String p2Name, int winner) {
+    if (p1Name != null && p1Name.equals(p2Name)) {
+      return;
+    }
+
+    lock.lock();
+    try {
+      if (p1Name != null) {
+        count(p1Name, winner == 0 ? 0 : winner == 1 ? 1 : -1);
+      }
+      if (p2Name != null) {
+        count(p2Name, winner == 0 ? 0 : winner == 2 ? 1 : -1);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void count(String name, int outcome) {
+    PlayerStats current = players.get(name);
+    if (current == null) {
+      current = new PlayerStats(name, 0, 0, 0);
+    } else {
+      ranking.remove(current);
+    }
+
+    PlayerStats next = current.with(outcome);
+    players.put(name, next);
+    ranking.add(next);
+  }
+
+  /**
+   * Get the stats of a player.
+   * @return the stats, or null if the player has not finished a game yet
+   */
+  public PlayerStats get(String name) {
+    lock.lock();
+    try {
+      return players.get(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the best players.
+   * @return at most k players, best first
+   */
+  public List<PlayerStats> top(int k) {
+    lock.lock();
+    try {
+      List<PlayerStats> top = new ArrayList<>(Math.min(k, ranking.size()));
+      Iterator<PlayerStats> it = ranking.iterator();
+      while (top.size() < k && it.hasNext()) {
+        top.add(it.next());
+      }
+      return top;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the number of ranked players.
+   */
+  public int size() {
+    lock.lock();
+    try {
+      return players.size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
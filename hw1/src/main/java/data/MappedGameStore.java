@@ -0,0 +1,668 @@
+package data;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import models.GameBoard;
+import models.Player;
+
+/**
+ * {@link GameStore} keeping each game in a fixed-size binary record of a memory-mapped
+ * file, so saving a game is a handful of in-place writes to mapped memory and loading
+ * never copies through a read buffer. Record 0 holds the magic number and format version
+ * of the file. A game takes a free record on its first save, and the record of a deleted
+ * game is reused by the next new one, so the file only grows with the number of games
+ * stored at once, not with every game ever played.
+ *
+ * <p>A record has two slots and a save overwrites the slot that does not hold the latest
+ * state, so a save torn by a crash leaves the previous state intact. Slot layout: version
+ * (0 if the slot is empty), CRC32 of the rest of the slot, game id, size, win length,
+ * both marks, started flag, turn, winner, draw flag, bot flag, the name of each player as
+ * a length and up to 32 UTF-8 bytes, then the owner (0, 1 or 2) of every cell packed two
+ * bits per cell. Loading takes the slot with the highest version whose
+ * checksum matches. Versions increase across the whole file, so a reused record never
+ * loads the state of the game it held before. The file is mapped in segments which are
+ * added as records are taken. A forced save only forces the pages of its record.
+ *
+ * <p>Files of format version 2, whose slots held no bot flag and no names, are rewritten
+ * in the current format when they are opened.
+ *
+ * <p>Saves and deletions of different games never share a record, so they only take the
+ * read side of a lock, and run in parallel. Opening, closing and resetting the file take
+ * the write side, so they never unmap a segment under a save.
+ */
+public class MappedGameStore implements GameStore {
+
+  private static final int MAGIC = 0x5454546d;
+
+  private static final int FORMAT_VERSION = 3;
+
+  private static final int SLOT_SIZE = 256;
+
+  private static final int RECORD_SIZE = 2 * SLOT_SIZE;
+
+  // Offsets within a slot
+  private static final int VERSION = 0;
+
+  private static final int CHECKSUM = 8;
+
+  private static final int BODY = 12;
+
+  private static final int SEATS = BODY + 17;
+
+  private static final int MAX_NAME_BYTES = 32;
+
+  private static final int CELLS = SEATS + 1 + 2 * (1 + MAX_NAME_BYTES);
+
+  // Slot layout of format version 2
+  private static final int V2_SLOT_SIZE = 192;
+
+  private static final int V2_CELLS = SEATS;
+
+  private static final int RECORDS_PER_SEGMENT = 1 << 15;
+
+  private static final long SEGMENT_SIZE = (long) RECORD_SIZE * RECORDS_PER_SEGMENT;
+
+  // MappedByteBuffer.force(int, int) of Java 13, looked up since the project still
+  // compiles for Java 11, null before it
+  private static final MethodHandle FORCE_RANGE = findForceRange();
+
+  private final Path file;
+
+  private final Durability durability;
+
+  private final long forceIntervalMillis;
+
+  private final ReentrantReadWriteLock fence = new ReentrantReadWriteLock();
+
+  // Guarded by the write side of fence
+  private FileChannel channel;
+
+  private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+  private ScheduledExecutorService forcer;
+
+  // Record of every stored game, by game id
+  private final Map<Integer, Integer> records = new ConcurrentHashMap<>();
+
+  // Records below nextRecord holding no game, guarded by this
+  private final Deque<Integer> freeRecords = new ArrayDeque<>();
+
+  private int nextRecord = 1;
+
+  // Highest version written to any slot
+  private final AtomicLong versions = new AtomicLong();
+
+  // Records saved by the thread inside saveAll, forced at its end, null outside of it
+  private final ThreadLocal<List<Integer>> batch = new ThreadLocal<>();
+
+  /**
+   * Create a store backed by the specified file.
+   * @param durability SYNC and GROUP_COMMIT force the written record to disk on every
+   *     save, or once for the saves of a saveAll, with ASYNC dirty pages are forced every
+   *     forceIntervalMillis and on close
+   */
+  public MappedGameStore(Path file, Durability durability, long forceIntervalMillis) {
+    this.file = file;
+    this.durability = durability;
+    this.forceIntervalMillis = forceIntervalMillis;
+  }
+
+  /**
+   * Map the file, writing the header of a new one.
+   * @throws SQLException if the file was written in another format
+   */
+  @Override
+  public void connect() throws SQLException {
+    close();
+    fence.writeLock().lock();
+    try {
+      channel = FileChannel.open(file, StandardOpenOption.CREATE,
+          StandardOpenOption.READ, StandardOpenOption.WRITE);
+      if (formatVersion() == 2) {
+        migrateFormat2();
+      }
+      long existing = (channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+      segments = new MappedByteBuffer[0];
+      for (int i = 0; i < existing; ++i) {
+        addSegment();
+      }
+      checkHeader();
+      loadRecords();
+    } catch (IOException e) {
+      throw new SQLException("Failed to map " + file, e);
+    } finally {
+      fence.writeLock().unlock();
+    }
+
+    if (durability == Durability.ASYNC && forceIntervalMillis > 0) {
+      forcer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "game-mmap-force");
+        thread.setDaemon(true);
+        return thread;
+      });
+      forcer.scheduleWithFixedDelay(this::force, forceIntervalMillis, forceIntervalMillis,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Read the format version from the header of the file.
+   * @return the version, or 0 if the file is too short to have a header
+   */
+  private int formatVersion() throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(8);
+    while (header.hasRemaining() && channel.read(header, header.position()) >= 0) {
+      // Read until the header is complete or the file ends
+    }
+    return header.hasRemaining() || header.getInt(0) != MAGIC ? 0 : header.getInt(4);
+  }
+
+  /**
+   * Rewrite a file of format version 2 in the current format. The games are written to
+   * a new file which then replaces the old one, so a crash leaves one of them intact.
+   */
+  private void migrateFormat2() throws IOException, SQLException {
+    List<GameBoard> boards = new ArrayList<>();
+    long segmentSize = 2L * V2_SLOT_SIZE * RECORDS_PER_SEGMENT;
+    for (long start = 0; start < channel.size(); start += segmentSize) {
+      MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(segmentSize, channel.size() - start));
+      // Record 0 is the header
+      for (int offset = start == 0 ? 2 * V2_SLOT_SIZE : 0;
+          offset + 2 * V2_SLOT_SIZE <= segment.capacity(); offset += 2 * V2_SLOT_SIZE) {
+        int slot = latestSlot(segment, offset, V2_SLOT_SIZE, V2_CELLS);
+        if (slot >= 0) {
+          boards.add(readBoard(segment, slot, V2_CELLS));
+        }
+      }
+    }
+    channel.close();
+    channel = null;
+
+    Path migrated = file.resolveSibling(file.getFileName() + ".migrating");
+    Files.deleteIfExists(migrated);
+    MappedGameStore store = new MappedGameStore(migrated, Durability.ASYNC, 0);
+    store.connect();
+    store.saveGameBoards(boards);
+    store.close();
+    Files.move(migrated, file, StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+  }
+
+  private void checkHeader() throws IOException, SQLException {
+    if (segments.length == 0) {
+      writeHeader();
+      return;
+    }
+
+    MappedByteBuffer header = segments[0];
+    if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT_VERSION) {
+      segments = new MappedByteBuffer[0];
+      channel.close();
+      channel = null;
+      throw new SQLException(file + " is not a game file of format version "
+          + FORMAT_VERSION + ", move it away to start with an empty store");
+    }
+  }
+
+  /**
+   * Find the record of every stored game and the free records between them.
+   */
+  private void loadRecords() {
+    records.clear();
+    versions.set(0);
+    BitSet used = new BitSet();
+    int last = 0;
+    MappedByteBuffer[] current = segments;
+    for (int record = 1; record < current.length * RECORDS_PER_SEGMENT; ++record) {
+      MappedByteBuffer segment = current[record / RECORDS_PER_SEGMENT];
+      int offset = record % RECORDS_PER_SEGMENT * RECORD_SIZE;
+      int slot = latestSlot(segment, offset);
+      if (slot >= 0) {
+        records.put(segment.getInt(slot + BODY), record);
+        versions.accumulateAndGet(segment.getLong(slot + VERSION), Math::max);
+        used.set(record);
+        last = record;
+      }
+    }
+
+    synchronized (this) {
+      freeRecords.clear();
+      for (int record = used.nextClearBit(1); record < last;
+          record = used.nextClearBit(record + 1)) {
+        freeRecords.add(record);
+      }
+      nextRecord = last + 1;
+    }
+  }
+
+  private void writeHeader() throws IOException {
+    if (segments.length == 0) {
+      addSegment();
+    }
+    segments[0].putInt(0, MAGIC);
+    segments[0].putInt(4, FORMAT_VERSION);
+    segments[0].force();
+  }
+
+  @Override
+  public void close() throws SQLException {
+    if (forcer != null) {
+      forcer.shutdown();
+      forcer = null;
+    }
+
+    fence.writeLock().lock();
+    try {
+      if (channel != null) {
+        force();
+        segments = new MappedByteBuffer[0];
+        try {
+          channel.close();
+        } catch (IOException e) {
+          throw new SQLException("Failed to close " + file, e);
+        } finally {
+          channel = null;
+        }
+      }
+    } finally {
+      fence.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public void reset() throws SQLException {
+    fence.writeLock().lock();
+    try {
+      checkOpen();
+      segments = new MappedByteBuffer[0];
+      channel.truncate(0);
+      writeHeader();
+      loadRecords();
+    } catch (IOException e) {
+      throw new SQLException("Failed to reset " + file, e);
+    } finally {
+      fence.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Read the records of the stored games only, not every record of the file.
+   */
+  @Override
+  public List<GameBoard> getGameBoards() {
+    fence.readLock().lock();
+    try {
+      List<GameBoard> boards = new ArrayList<>(records.size());
+      MappedByteBuffer[] current = segments;
+      for (int record : records.values()) {
+        MappedByteBuffer segment = current[record / RECORDS_PER_SEGMENT];
+        int slot = latestSlot(segment, record % RECORDS_PER_SEGMENT * RECORD_SIZE);
+        if (slot >= 0) {
+          boards.add(readBoard(segment, slot));
+        }
+      }
+      boards.sort(Comparator.comparingInt(GameBoard::getGameId));
+      return boards;
+    } finally {
+      fence.readLock().unlock();
+    }
+  }
+
+  /**
+   * Write the board into the slot of its record that does not hold the latest state.
+   * Saves of one game must not race each other, e.g. they come from the shard of the game.
+   */
+  @Override
+  public void saveGameBoard(GameBoard board) throws SQLException {
+    int gameId = board.getGameId();
+    if (gameId <= 0) {
+      throw new SQLException("Invalid game id " + gameId);
+    }
+    for (int playerId = 1; playerId <= 2; ++playerId) {
+      String name = board.getPlayerName(playerId);
+      if (name != null && name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_BYTES) {
+        throw new SQLException("Name of player " + playerId + " of game " + gameId
+            + " is longer than " + MAX_NAME_BYTES + " bytes");
+      }
+    }
+
+    fence.readLock().lock();
+    try {
+      checkOpen();
+      Integer record = records.get(gameId);
+      if (record == null) {
+        record = takeRecord();
+      }
+      MappedByteBuffer segment = segment(record / RECORDS_PER_SEGMENT);
+      int offset = record % RECORDS_PER_SEGMENT * RECORD_SIZE;
+      int latest = latestSlot(segment, offset);
+      writeSlot(segment, latest == offset ? offset + SLOT_SIZE : offset, board,
+          versions.incrementAndGet());
+      // Only found by a load once its slot is written
+      records.put(gameId, record);
+
+      if (durability != Durability.ASYNC) {
+        forceRecord(record);
+      }
+    } finally {
+      fence.readLock().unlock();
+    }
+  }
+
+  /**
+   * Clear both slots of the record of the game, so it is no longer loaded, and free the
+   * record for the next new game.
+   */
+  @Override
+  public void deleteGameBoard(int gameId) throws SQLException {
+    fence.readLock().lock();
+    try {
+      checkOpen();
+      Integer record = records.remove(gameId);
+      if (record == null) {
+        return;
+      }
+
+      MappedByteBuffer segment = segments[record / RECORDS_PER_SEGMENT];
+      int offset = record % RECORDS_PER_SEGMENT * RECORD_SIZE;
+      segment.putLong(offset + VERSION, 0);
+      segment.putLong(offset + SLOT_SIZE + VERSION, 0);
+
+      if (durability != Durability.ASYNC) {
+        forceRecord(record);
+      }
+      synchronized (this) {
+        freeRecords.add(record);
+      }
+    } finally {
+      fence.readLock().unlock();
+    }
+  }
+
+  /**
+   * Make the saves, then force the records they wrote once at the end instead of after
+   * every save.
+   */
+  @Override
+  public void saveAll(Saves saves) throws SQLException {
+    if (durability == Durability.ASYNC || batch.get() != null) {
+      saves.run();
+      return;
+    }
+
+    List<Integer> written = new ArrayList<>();
+    batch.set(written);
+    try {
+      saves.run();
+    } finally {
+      batch.remove();
+    }
+
+    fence.readLock().lock();
+    try {
+      checkOpen();
+      for (int record : written) {
+        forceRange(segments[record / RECORDS_PER_SEGMENT],
+            record % RECORDS_PER_SEGMENT * RECORD_SIZE, RECORD_SIZE);
+      }
+    } finally {
+      fence.readLock().unlock();
+    }
+  }
+
+  private synchronized int takeRecord() {
+    Integer free = freeRecords.poll();
+    return free != null ? free : nextRecord++;
+  }
+
+  /**
+   * Force the pages of the record, or remember to do so at the end of saveAll.
+   */
+  private void forceRecord(int record) {
+    List<Integer> written = batch.get();
+    if (written != null) {
+      written.add(record);
+      return;
+    }
+
+    forceRange(segments[record / RECORDS_PER_SEGMENT],
+        record % RECORDS_PER_SEGMENT * RECORD_SIZE, RECORD_SIZE);
+  }
+
+  private static void forceRange(MappedByteBuffer segment, int offset, int length) {
+    if (FORCE_RANGE == null) {
+      segment.force();
+      return;
+    }
+
+    try {
+      FORCE_RANGE.invokeExact(segment, offset, length);
+    } catch (RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static MethodHandle findForceRange() {
+    try {
+      return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force",
+          MethodType.methodType(MappedByteBuffer.class, int.class, int.class))
+          .asType(MethodType.methodType(void.class, MappedByteBuffer.class, int.class,
+              int.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      // Before Java 13, the whole segment is forced
+      return null;
+    }
+  }
+
+  private void checkOpen() throws SQLException {
+    if (channel == null) {
+      throw new SQLException(file + " is not open");
+    }
+  }
+
+  private MappedByteBuffer segment(int number) throws SQLException {
+    MappedByteBuffer[] current = segments;
+    if (number < current.length) {
+      return current[number];
+    }
+
+    synchronized (this) {
+      try {
+        while (segments.length <= number) {
+          addSegment();
+        }
+      } catch (IOException e) {
+        throw new SQLException("Failed to grow " + file, e);
+      }
+      return segments[number];
+    }
+  }
+
+  private void addSegment() throws IOException {
+    MappedByteBuffer[] current = segments;
+    MappedByteBuffer[] grown = new MappedByteBuffer[current.length + 1];
+    System.arraycopy(current, 0, grown, 0, current.length);
+    grown[current.length] = channel.map(FileChannel.MapMode.READ_WRITE,
+        current.length * SEGMENT_SIZE, SEGMENT_SIZE);
+    segments = grown;
+  }
+
+  private void force() {
+    for (MappedByteBuffer segment : segments) {
+      segment.force();
+    }
+  }
+
+  private static int latestSlot(MappedByteBuffer buffer, int offset) {
+    return latestSlot(buffer, offset, SLOT_SIZE, CELLS);
+  }
+
+  /**
+   * Find the slot of a record holding its latest intact state.
+   * @param slotSize the size of a slot in the layout of the file
+   * @param cells the offset of the cells within a slot in that layout
+   * @return the offset of the slot, or -1 if neither slot holds an intact state
+   */
+  private static int latestSlot(MappedByteBuffer buffer, int offset, int slotSize,
+      int cells) {
+    int latest = -1;
+    long latestVersion = 0;
+    for (int slot = offset; slot < offset + 2 * slotSize; slot += slotSize) {
+      long version = buffer.getLong(slot + VERSION);
+      if (version > latestVersion
+          && buffer.getInt(slot + CHECKSUM) == checksum(buffer, slot, slotSize, cells)) {
+        latest = slot;
+        latestVersion = version;
+      }
+    }
+    return latest;
+  }
+
+  /**
+   * Compute the checksum of a slot, covering its version and its board.
+   */
+  private static int checksum(MappedByteBuffer buffer, int slot, int slotSize, int cells) {
+    int size = buffer.get(slot + BODY + 4);
+    if (size <= 0 || size * size > (slotSize - cells) * 4) {
+      return ~buffer.getInt(slot + CHECKSUM);
+    }
+
+    CRC32 crc = new CRC32();
+    ByteBuffer view = buffer.duplicate();
+    view.limit(slot + CHECKSUM).position(slot + VERSION);
+    crc.update(view);
+    view.limit(slot + cells + (size * size + 3) / 4).position(slot + BODY);
+    crc.update(view);
+    return (int) crc.getValue();
+  }
+
+  private static void writeSlot(MappedByteBuffer buffer, int slot, GameBoard board,
+      long version) {
+    board = board.copy();
+    Player p1 = board.getPlayer1();
+    Player p2 = board.getPlayer2();
+    int size = board.getSize();
+
+    buffer.putLong(slot + VERSION, version);
+    buffer.putInt(slot + BODY, board.getGameId());
+    buffer.put(slot + BODY + 4, (byte) size);
+    buffer.put(slot + BODY + 5, (byte) board.getWinLength());
+    buffer.putChar(slot + BODY + 6, p1 == null ? 0 : p1.getType());
+    buffer.putChar(slot + BODY + 8, p2 == null ? 0 : p2.getType());
+    buffer.put(slot + BODY + 10, (byte) (board.isGameStarted() ? 1 : 0));
+    buffer.put(slot + BODY + 11, (byte) board.getTurn());
+    buffer.putInt(slot + BODY + 12, board.getWinner());
+    buffer.put(slot + BODY + 16, (byte) (board.isDraw() ? 1 : 0));
+
+    buffer.put(slot + SEATS, (byte) (board.hasBot() ? 1 : 0));
+    for (int playerId = 1; playerId <= 2; ++playerId) {
+      String name = board.getPlayerName(playerId);
+      byte[] bytes = name == null ? new byte[0] : name.getBytes(StandardCharsets.UTF_8);
+      int nameOffset = slot + SEATS + 1 + (playerId - 1) * (1 + MAX_NAME_BYTES);
+      buffer.put(nameOffset, (byte) bytes.length);
+      for (int i = 0; i < bytes.length; ++i) {
+        buffer.put(nameOffset + 1 + i, bytes[i]);
+      }
+    }
+
+    int cellOffset = slot + CELLS;
+    int packed = 0;
+    int cell = 0;
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        char c = board.getCell(i, j);
+        int owner = c == 0 ? 0 : c == p1.getType() ? 1 : 2;
+        packed |= owner << (cell % 4 * 2);
+        if (++cell % 4 == 0) {
+          buffer.put(cellOffset++, (byte) packed);
+          packed = 0;
+        }
+      }
+    }
+    if (cell % 4 != 0) {
+      buffer.put(cellOffset, (byte) packed);
+    }
+
+    buffer.putInt(slot + CHECKSUM, checksum(buffer, slot, SLOT_SIZE, CELLS));
+  }
+
+  private static GameBoard readBoard(MappedByteBuffer buffer, int slot) {
+    return readBoard(buffer, slot, CELLS);
+  }
+
+  /**
+   * Read the board of a slot.
+   * @param cells the offset of the cells within the slot, slots of format version 2 hold
+   *     no seats before them
+   */
+  private static GameBoard readBoard(MappedByteBuffer buffer, int slot, int cells) {
+    int gameId = buffer.getInt(slot + BODY);
+    int size = buffer.get(slot + BODY + 4);
+    int winLength = buffer.get(slot + BODY + 5);
+    char p1Type = buffer.getChar(slot + BODY + 6);
+    char p2Type = buffer.getChar(slot + BODY + 8);
+    boolean started = buffer.get(slot + BODY + 10) != 0;
+    int turn = buffer.get(slot + BODY + 11);
+    int winner = buffer.getInt(slot + BODY + 12);
+    boolean isDraw = buffer.get(slot + BODY + 16) != 0;
+
+    char[][] boardState = new char[size][size];
+    int cell = 0;
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        int packed = buffer.get(slot + cells + cell / 4);
+        int owner = packed >>> (cell % 4 * 2) & 3;
+        boardState[i][j] = owner == 1 ? p1Type : owner == 2 ? p2Type : 0;
+        cell++;
+      }
+    }
+
+    Player p1 = p1Type == 0 ? null : Player.of(p1Type, 1);
+    Player p2 = p2Type == 0 ? null : Player.of(p2Type, 2);
+    GameBoard board = new GameBoard(gameId, p1, p2, started, turn, boardState, winLength,
+        winner, isDraw);
+    if (cells == CELLS) {
+      board.setBot(buffer.get(slot + SEATS) != 0);
+      for (int playerId = 1; playerId <= 2; ++playerId) {
+        int nameOffset = slot + SEATS + 1 + (playerId - 1) * (1 + MAX_NAME_BYTES);
+        byte[] bytes = new byte[Math.min(buffer.get(nameOffset) & 0xff, MAX_NAME_BYTES)];
+        for (int i = 0; i < bytes.length; ++i) {
+          bytes[i] = buffer.get(nameOffset + 1 + i);
+        }
+        board.setPlayerName(playerId,
+            bytes.length == 0 ? null : new String(bytes, StandardCharsets.UTF_8));
+      }
+    }
+    return board;
+  }
+}
@@ -0,0 +1,400 @@
+package data;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import models.GameBoard;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link GameStore} that takes saves off the request thread.
+ *
+ * <p>Saves are queued per game, so only the latest state of a game is written no
+ * matter how many moves were made since the last flush. A dedicated writer thread
+ * drains the queue and hands each batch to the underlying store as one transaction.
+ * Whether {@link #saveGameBoard} waits for the write depends on the {@link Durability}.
+ * A batch that fails is queued again and retried a few times, later saves of the same
+ * games taking precedence, before the saves it covers are reported as failed. Under
+ * group commit, the saves made through {@link #saveAll} are queued without waiting and
+ * the caller waits once for the last of them.
+ *
+ * <p>Waiting uses a {@link ReentrantLock} condition, so callers running on virtual
+ * threads unmount while they wait instead of pinning their carrier thread.
+ */
+public class WriteBehindGameStore implements GameStore {
+
+  private static final Logger logger = LoggerFactory.getLogger(WriteBehindGameStore.class);
+
+  private static final int MAX_ATTEMPTS = 3;
+
+  // Waited before the first retry, doubled for every further one
+  private static final long RETRY_MILLIS = 100;
+
+  // Failed batches remembered for the saves still waiting for them
+  private static final int MAX_RECORDED_FAILURES = 1024;
+
+  private final GameStore delegate;
+
+  private final Durability durability;
+
+  private final long flushIntervalMillis;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  // Signalled when saves are queued, when a batch is written and on close
+  private final Condition changed = lock.newCondition();
+
+  // Latest state of each game waiting for the writer, null if the game is deleted,
+  // guarded by lock
+  private final Map<Integer, GameBoard> pending = new LinkedHashMap<>();
+
+  // Sequence number of the last queued save and of the last save written, guarded by lock
+  private long queued;
+
+  private long flushed;
+
+  // Batches given up on by the sequence number of their last save, each covers the
+  // sequence numbers (from, key]
+  private final TreeMap<Long, Failure> failures = new TreeMap<>();
+
+  private boolean closed = true;
+
+  // Set when the writer thread exits, for whatever reason
+  private boolean writerStopped = true;
+
+  private volatile Thread writer;
+
+  // Sequence numbers of the first and last save queued by the thread inside saveAll,
+  // null outside of it
+  private final ThreadLocal<long[]> batch = new ThreadLocal<>();
+
+  /**
+   * Create a write-behind store in front of another store.
+   * @param delegate the store that boards are eventually written to
+   * @param durability whether saves wait for the write
+   * @param flushIntervalMillis how long the writer waits to gather a batch, 0 to write
+   *     as soon as something is queued
+   */
+  public WriteBehindGameStore(GameStore delegate, Durability durability,
+      long flushIntervalMillis) {
+    this.delegate = delegate;
+    this.durability = durability;
+    this.flushIntervalMillis = flushIntervalMillis;
+  }
+
+  @Override
+  public void connect() throws SQLException {
+    close();
+    delegate.connect();
+
+    if (durability != Durability.SYNC) {
+      lock.lock();
+      try {
+        closed = false;
+        writerStopped = false;
+      } finally {
+        lock.unlock();
+      }
+      writer = new Thread(this::writeLoop, "game-store-writer");
+      writer.setDaemon(true);
+      writer.start();
+    }
+  }
+
+  /**
+   * Write all pending saves, then close the underlying store.
+   */
+  @Override
+  public void close() throws SQLException {
+    if (writer != null) {
+      lock.lock();
+      try {
+        closed = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+
+      try {
+        writer.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      writer = null;
+    }
+
+    delegate.close();
+  }
+
+  @Override
+  public void reset() throws SQLException {
+    flush();
+    delegate.reset();
+  }
+
+  @Override
+  public List<GameBoard> getGameBoards() throws SQLException {
+    flush();
+    return delegate.getGameBoards();
+  }
+
+  /**
+   * Queue a copy of the board to be saved. The saves of one game must not race each
+   * other, e.g. they come from the shard of the game, so they are queued in move order.
+   */
+  @Override
+  public void saveGameBoard(GameBoard board) throws SQLException {
+    if (durability == Durability.SYNC) {
+      delegate.saveGameBoard(board);
+      return;
+    }
+
+    GameBoard copy = board.copy();
+    enqueue(copy.getGameId(), copy);
+  }
+
+  /**
+   * Queue the deletion of a game, replacing a save of the game still waiting.
+   */
+  @Override
+  public void deleteGameBoard(int gameId) throws SQLException {
+    if (durability == Durability.SYNC) {
+      delegate.deleteGameBoard(gameId);
+      return;
+    }
+
+    enqueue(gameId, null);
+  }
+
+  /**
+   * Queue the saves without waiting, then wait once for the writer to have written all
+   * of them if the durability is group commit.
+   */
+  @Override
+  public void saveAll(Saves saves) throws SQLException {
+    if (durability != Durability.GROUP_COMMIT || batch.get() != null) {
+      saves.run();
+      return;
+    }
+
+    long[] sequences = new long[2];
+    batch.set(sequences);
+    try {
+      saves.run();
+    } finally {
+      batch.remove();
+    }
+
+    if (sequences[1] > 0) {
+      awaitFlushed(sequences[0], sequences[1]);
+    }
+  }
+
+  private void enqueue(int gameId, GameBoard board) throws SQLException {
+    long sequence;
+    lock.lock();
+    try {
+      if (closed) {
+        throw new SQLException("Game store is closed");
+      }
+
+      pending.put(gameId, board);
+      sequence = ++queued;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+
+    long[] sequences = batch.get();
+    if (sequences != null) {
+      if (sequences[0] == 0) {
+        sequences[0] = sequence;
+      }
+      sequences[1] = sequence;
+    } else if (durability == Durability.GROUP_COMMIT) {
+      awaitFlushed(sequence, sequence);
+    }
+  }
+
+  /**
+   * Wait until every save queued so far is written.
+   */
+  public void flush() throws SQLException {
+    long sequence;
+    lock.lock();
+    try {
+      sequence = queued;
+    } finally {
+      lock.unlock();
+    }
+    awaitFlushed(sequence, sequence);
+  }
+
+  /**
+   * Wait until the saves with sequence numbers from first to last are written.
+   * @throws SQLException if a batch covering one of them was given up on
+   */
+  private void awaitFlushed(long first, long last) throws SQLException {
+    lock.lock();
+    try {
+      while (flushed < last) {
+        if (writerStopped) {
+          throw new SQLException("Game store is closed");
+        }
+
+        try {
+          changed.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new SQLException("Interrupted while waiting for save", e);
+        }
+      }
+
+      Map.Entry<Long, Failure> failed = failures.ceilingEntry(first);
+      if (failed != null && failed.getValue().from < last) {
+        throw new SQLException("Saving game boards failed", failed.getValue().cause);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void writeLoop() {
+    try {
+      int attempts = 0;
+      while (true) {
+        lock.lock();
+        try {
+          while (pending.isEmpty() && !closed) {
+            try {
+              changed.await();
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+
+          if (pending.isEmpty()) {
+            return;
+          }
+        } finally {
+          lock.unlock();
+        }
+
+        if (flushIntervalMillis > 0 && attempts == 0) {
+          // Let more saves pile up so they share one transaction
+          try {
+            Thread.sleep(flushIntervalMillis);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+
+        Map<Integer, GameBoard> batch;
+        long sequence;
+        lock.lock();
+        try {
+          batch = new LinkedHashMap<>(pending);
+          pending.clear();
+          sequence = queued;
+        } finally {
+          lock.unlock();
+        }
+
+        Exception failure = null;
+        try {
+          write(batch);
+        } catch (SQLException | RuntimeException e) {
+          failure = e;
+        }
+
+        lock.lock();
+        try {
+          if (failure != null && ++attempts < MAX_ATTEMPTS && !closed) {
+            logger.warn("Failed to write {} games, attempt {} of {}", batch.size(), attempts,
+                MAX_ATTEMPTS, failure);
+            // Saves and deletions queued since then are newer than the ones of the failed
+            // batch, a queued deletion is a null value so putIfAbsent would replace it
+            for (Map.Entry<Integer, GameBoard> entry : batch.entrySet()) {
+              if (!pending.containsKey(entry.getKey())) {
+                pending.put(entry.getKey(), entry.getValue());
+              }
+            }
+
+            long wait = TimeUnit.MILLISECONDS.toNanos(RETRY_MILLIS << (attempts - 1));
+            while (wait > 0 && !closed) {
+              wait = changed.awaitNanos(wait);
+            }
+            continue;
+          }
+
+          if (failure != null) {
+            logger.error("Failed to write {} games, giving up after {} attempts", batch.size(),
+                attempts, failure);
+            failures.put(sequence, new Failure(flushed, failure instanceof SQLException
+                ? (SQLException) failure : new SQLException(failure)));
+            if (failures.size() > MAX_RECORDED_FAILURES) {
+              failures.pollFirstEntry();
+            }
+          }
+          attempts = 0;
+          flushed = sequence;
+          changed.signalAll();
+        } catch (InterruptedException e) {
+          return;
+        } finally {
+          lock.unlock();
+        }
+      }
+    } catch (RuntimeException | Error e) {
+      logger.error("Game store writer stopped", e);
+      throw e;
+    } finally {
+      lock.lock();
+      try {
+        // Saves still waiting fail instead of hanging
+        writerStopped = true;
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void write(Map<Integer, GameBoard> batch) throws SQLException {
+    List<GameBoard> saved = new ArrayList<>(batch.size());
+    List<Integer> deleted = new ArrayList<>();
+    for (Map.Entry<Integer, GameBoard> entry : batch.entrySet()) {
+      if (entry.getValue() == null) {
+        deleted.add(entry.getKey());
+      } else {
+        saved.add(entry.getValue());
+      }
+    }
+
+    if (!saved.isEmpty()) {
+      delegate.saveGameBoards(saved);
+    }
+    for (int gameId : deleted) {
+      delegate.deleteGameBoard(gameId);
+    }
+  }
+
+  private static final class Failure {
+    // Sequence number of the last save written before the failed batch
+    private final long from;
+
+    private final SQLException cause;
+
+    private Failure(long from, SQLException cause) {
+      this.from = from;
+      this.cause = cause;
+    }
+  }
+}
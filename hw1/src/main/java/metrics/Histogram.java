@@ -0,0 +1,92 @@
+package metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of non-negative values with a bounded relative error, in the
+ * spirit of HdrHistogram: every power of two is split into eight buckets, so a quantile
+ * is reported at most 12.5% above the true value. Recording is a few bit operations and
+ * two atomic increments.
+ */
+public final class Histogram {
+
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  /**
+   * Record a value, negative values are recorded as 0.
+   */
+  public void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+  }
+
+  /**
+   * Record the time elapsed since startNanos, a value of {@link System#nanoTime}.
+   */
+  public void recordSince(long startNanos) {
+    record(System.nanoTime() - startNanos);
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  /**
+   * Get an upper bound of the specified quantile, 0 if nothing was recorded.
+   * @param quantile between 0 and 1
+   */
+  public long getQuantile(double quantile) {
+    long total = 0;
+    long[] snapshot = new long[counts.length()];
+    for (int i = 0; i < snapshot.length; ++i) {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int i = 0; i < snapshot.length; ++i) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return 0;
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return ((shift + 1) << SUB_BUCKET_BITS) + sub;
+  }
+
+  static long upperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+
+    int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    long lower = (long) (SUB_BUCKETS + (index & (SUB_BUCKETS - 1))) << shift;
+    return lower + (1L << shift) - 1;
+  }
+}
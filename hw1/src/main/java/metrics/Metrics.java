@@ -0,0 +1,131 @@
+package metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of metrics, rendered in the Prometheus text format.
+ *
+ * <p>Metrics are created on first use and identified by name and labels, which are
+ * given as alternating label names and values. Histograms hold nanoseconds and are
+ * exposed as summaries in seconds. Callers on hot paths should keep the returned
+ * metric instead of looking it up every time.
+ */
+public final class Metrics {
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private static final ConcurrentMap<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+  private Metrics() {
+  }
+
+  /**
+   * Get the histogram with the specified name and labels.
+   */
+  public static Histogram histogram(String name, String help, String... labels) {
+    return (Histogram) family(name, help, "summary").get(labels, Histogram::new);
+  }
+
+  /**
+   * Get the counter with the specified name and labels.
+   */
+  public static LongAdder counter(String name, String help, String... labels) {
+    return (LongAdder) family(name, help, "counter").get(labels, LongAdder::new);
+  }
+
+  /**
+   * Register a gauge whose value is read from supplier on every scrape.
+   */
+  public static void gauge(String name, String help, LongSupplier supplier, String... labels) {
+    family(name, help, "gauge").metrics.put(labelString(labels), supplier);
+  }
+
+  private static Family family(String name, String help, String type) {
+    Family family = FAMILIES.computeIfAbsent(name, key -> new Family(help, type));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException(name + " is a " + family.type);
+    }
+    return family;
+  }
+
+  /**
+   * Render every metric in the Prometheus text format.
+   */
+  public static String render() {
+    StringBuilder out = new StringBuilder();
+    for (Map.Entry<String, Family> entry : FAMILIES.entrySet()) {
+      String name = entry.getKey();
+      Family family = entry.getValue();
+      out.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+      out.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+
+      for (Map.Entry<String, Object> metric : family.metrics.entrySet()) {
+        String labels = metric.getKey();
+        Object value = metric.getValue();
+        if (value instanceof Histogram) {
+          Histogram histogram = (Histogram) value;
+          for (double quantile : QUANTILES) {
+            String quantileLabel = "quantile=\"" + quantile + "\"";
+            sample(out, name, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                seconds(histogram.getQuantile(quantile)));
+          }
+          sample(out, name + "_sum", labels, seconds(histogram.getSum()));
+          sample(out, name + "_count", labels, Long.toString(histogram.getCount()));
+        } else if (value instanceof LongAdder) {
+          sample(out, name, labels, Long.toString(((LongAdder) value).sum()));
+        } else {
+          sample(out, name, labels, Long.toString(((LongSupplier) value).getAsLong()));
+        }
+      }
+    }
+    return out.toString();
+  }
+
+  private static void sample(StringBuilder out, String name, String labels, String value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(value).append('\n');
+  }
+
+  private static String seconds(long nanos) {
+    return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+  }
+
+  private static String labelString(String... labels) {
+    StringBuilder out = new StringBuilder();
+    for (int i = 0; i + 1 < labels.length; i += 2) {
+      if (out.length() > 0) {
+        out.append(',');
+      }
+      out.append(labels[i]).append("=\"")
+          .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+    }
+    return out.toString();
+  }
+
+  private static final class Family {
+    private final String help;
+
+    private final String type;
+
+    private final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    private Family(String help, String type) {
+      this.help = help;
+      this.type = type;
+    }
+
+    Object get(String[] labels, Supplier<Object> factory) {
+      return metrics.computeIfAbsent(labelString(labels), key -> factory.get());
+    }
+  }
+}
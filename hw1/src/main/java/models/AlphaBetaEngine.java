@@ -0,0 +1,450 @@
+package models;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Negamax search with alpha-beta pruning.
+ *
+ * <p>The search works on a byte per cell and keeps one Zobrist hash per board symmetry
+ * up to date, so the transposition table is keyed by the smallest of the eight, which is
+ * the same for every rotation and reflection of a position. Immediate wins are played
+ * and immediate threats blocked without searching alternatives, and other moves are
+ * tried from the center outwards. Boards of at most nine cells are searched to the end,
+ * which makes play on 3x3 perfect; larger boards are searched to a fixed depth, only
+ * considering cells next to existing stones, and scored by their open lines.
+ *
+ * <p>Search states, each about 1 MB with its transposition table, are pooled by board
+ * geometry rather than kept per thread. A call borrows an idle state of its geometry, so
+ * positions solved by earlier calls are answered from the table, and at most poolSize
+ * idle states of each geometry are kept however many threads ask for moves.
+ */
+public class AlphaBetaEngine implements Engine {
+
+  private static final int FULL_SEARCH_CELLS = 9;
+
+  private final int maxDepth;
+
+  private final int poolSize;
+
+  // Idle search states by board geometry, see geometryKey
+  private final ConcurrentMap<Integer, BlockingQueue<Search>> idle = new ConcurrentHashMap<>();
+
+  /**
+   * Create an engine searching boards larger than 3x3 to a depth of 4 moves.
+   */
+  public AlphaBetaEngine() {
+    this(4);
+  }
+
+  /**
+   * Create an engine keeping one idle search state per processor for each geometry.
+   * @param maxDepth how many moves ahead boards larger than 3x3 are searched
+   */
+  public AlphaBetaEngine(int maxDepth) {
+    this(maxDepth, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create an engine.
+   * @param maxDepth how many moves ahead boards larger than 3x3 are searched
+   * @param poolSize how many idle search states are kept for each board geometry
+   */
+  public AlphaBetaEngine(int maxDepth, int poolSize) {
+    this.maxDepth = maxDepth;
+    this.poolSize = poolSize;
+  }
+
+  @Override
+  public Move bestMove(GameBoard board) {
+    Player player = board.getPlayer(board.getTurn());
+    if (player == null || !board.isGameStarted() || board.getWinner() != 0
+        || board.isDraw()) {
+      return null;
+    }
+
+    BlockingQueue<Search> pool = idle.computeIfAbsent(
+        geometryKey(board.getSize(), board.getWinLength()),
+        key -> new ArrayBlockingQueue<>(poolSize));
+    Search search = pool.poll();
+    if (search == null) {
+      search = new Search(board.getSize(), board.getWinLength());
+    }
+
+    try {
+      int depth = search.cellCount <= FULL_SEARCH_CELLS ? search.cellCount : maxDepth;
+      int cell = search.run(board, player.getId() == board.getPlayer1().getId() ? 1 : 2,
+          depth);
+      return cell < 0 ? null : Move.of(player, cell / search.size, cell % search.size);
+    } finally {
+      // Dropped if the pool is full, i.e. more searches ran at once than are kept
+      pool.offer(search);
+    }
+  }
+
+  private static int geometryKey(int size, int winLength) {
+    return size << 8 | winLength;
+  }
+
+  private static final class Search {
+
+    // Above any score of evaluate()
+    private static final int WIN = 1 << 28;
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private static final int EXACT = 0;
+
+    private static final int LOWER = 1;
+
+    private static final int UPPER = 2;
+
+    private static final int TABLE_BITS = 16;
+
+    private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+    // Score of a line that holds n stones of one player and none of the other
+    private static final int[] LINE_SCORE = {0, 1, 8, 64, 512, 4096, 32768};
+
+    private final int size;
+
+    private final int winLength;
+
+    private final int cellCount;
+
+    private final byte[] cells;
+
+    private int stones;
+
+    // symmetries[s][cell] is the cell that cell is mapped to by symmetry s
+    private final int[][] symmetries = new int[8][];
+
+    private final long[][] zobrist;
+
+    private final long sideKey;
+
+    private final long[] hashes = new long[8];
+
+    private final int[][] windows;
+
+    private final int[] centerOrder;
+
+    private final int[][] moveBuffers;
+
+    private final long[] tableKeys = new long[1 << TABLE_BITS];
+
+    private final long[] tableEntries = new long[1 << TABLE_BITS];
+
+    Search(int size, int winLength) {
+      this.size = size;
+      this.winLength = winLength;
+      this.cellCount = size * size;
+      this.cells = new byte[cellCount];
+      this.moveBuffers = new int[cellCount + 1][];
+
+      int last = size - 1;
+      for (int s = 0; s < 8; ++s) {
+        symmetries[s] = new int[cellCount];
+      }
+      for (int x = 0; x < size; ++x) {
+        for (int y = 0; y < size; ++y) {
+          int cell = x * size + y;
+          symmetries[0][cell] = cell;
+          symmetries[1][cell] = y * size + last - x;
+          symmetries[2][cell] = (last - x) * size + last - y;
+          symmetries[3][cell] = (last - y) * size + x;
+          symmetries[4][cell] = (last - x) * size + y;
+          symmetries[5][cell] = x * size + last - y;
+          symmetries[6][cell] = y * size + x;
+          symmetries[7][cell] = (last - y) * size + last - x;
+        }
+      }
+
+      SplittableRandom random = new SplittableRandom(size * 31L + winLength);
+      zobrist = new long[cellCount][2];
+      for (long[] keys : zobrist) {
+        keys[0] = random.nextLong();
+        keys[1] = random.nextLong();
+      }
+      sideKey = random.nextLong();
+
+      windows = buildWindows();
+      centerOrder = buildCenterOrder();
+    }
+
+    private int[][] buildWindows() {
+      int count = 0;
+      int[][] windows = new int[4 * cellCount][];
+      for (int x = 0; x < size; ++x) {
+        for (int y = 0; y < size; ++y) {
+          for (int[] d : DIRECTIONS) {
+            int endX = x + d[0] * (winLength - 1);
+            int endY = y + d[1] * (winLength - 1);
+            if (endX < 0 || endX >= size || endY < 0 || endY >= size) {
+              continue;
+            }
+
+            int[] window = new int[winLength];
+            for (int i = 0; i < winLength; ++i) {
+              window[i] = (x + d[0] * i) * size + y + d[1] * i;
+            }
+            windows[count++] = window;
+          }
+        }
+      }
+      return Arrays.copyOf(windows, count);
+    }
+
+    private int[] buildCenterOrder() {
+      Integer[] order = new Integer[cellCount];
+      for (int i = 0; i < cellCount; ++i) {
+        order[i] = i;
+      }
+
+      double center = (size - 1) / 2.0;
+      Arrays.sort(order, Comparator.comparingDouble(
+          cell -> Math.max(Math.abs(cell / size - center), Math.abs(cell % size - center))));
+
+      int[] result = new int[cellCount];
+      for (int i = 0; i < cellCount; ++i) {
+        result[i] = order[i];
+      }
+      return result;
+    }
+
+    /**
+     * Load the board and search it.
+     * @param side 1 if the first player is to move, 2 otherwise
+     * @return the best cell, or -1 if there is no empty cell
+     */
+    int run(GameBoard board, int side, int depth) {
+      char p1 = board.getPlayer1().getType();
+      Arrays.fill(hashes, 0);
+      stones = 0;
+      for (int x = 0; x < size; ++x) {
+        for (int y = 0; y < size; ++y) {
+          int cell = x * size + y;
+          char c = board.getCell(x, y);
+          cells[cell] = 0;
+          if (c != 0) {
+            place(cell, c == p1 ? 1 : 2);
+          }
+        }
+      }
+
+      int[] moves = moveBuffer(0);
+      int count = generate(side, moves);
+      int best = -1;
+      int alpha = -INFINITY;
+      for (int i = 0; i < count; ++i) {
+        int score = scoreMove(moves[i], side, depth, alpha, INFINITY, 1);
+        if (best < 0 || score > alpha) {
+          alpha = score;
+          best = moves[i];
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Play the move, score it for side and take it back.
+     */
+    private int scoreMove(int cell, int side, int depth, int alpha, int beta, int ply) {
+      place(cell, side);
+      int score;
+      if (isWin(cell, side)) {
+        // Quicker wins score higher, stones count is the same for every path
+        score = WIN - stones;
+      } else if (stones == cellCount) {
+        score = 0;
+      } else {
+        score = -negamax(3 - side, depth - 1, -beta, -alpha, ply);
+      }
+      remove(cell, side);
+      return score;
+    }
+
+    private int negamax(int side, int depth, int alpha, int beta, int ply) {
+      if (depth == 0) {
+        return evaluate(side);
+      }
+
+      long key = canonicalHash() ^ (side == 2 ? sideKey : 0);
+      int index = (int) (key >>> (64 - TABLE_BITS));
+      int alphaOriginal = alpha;
+      if (tableKeys[index] == key) {
+        long entry = tableEntries[index];
+        int value = (int) entry;
+        int flag = (int) (entry >>> 32) & 3;
+        if ((int) (entry >>> 34) >= depth) {
+          if (flag == EXACT) {
+            return value;
+          } else if (flag == LOWER) {
+            alpha = Math.max(alpha, value);
+          } else {
+            beta = Math.min(beta, value);
+          }
+          if (alpha >= beta) {
+            return value;
+          }
+        }
+      }
+
+      int[] moves = moveBuffer(ply);
+      int count = generate(side, moves);
+      int best = -INFINITY;
+      for (int i = 0; i < count && alpha < beta; ++i) {
+        int score = scoreMove(moves[i], side, depth, alpha, beta, ply + 1);
+        best = Math.max(best, score);
+        alpha = Math.max(alpha, score);
+      }
+
+      int flag = best <= alphaOriginal ? UPPER : best >= beta ? LOWER : EXACT;
+      tableKeys[index] = key;
+      tableEntries[index] = (long) depth << 34 | (long) flag << 32 | (best & 0xffffffffL);
+      return best;
+    }
+
+    private int[] moveBuffer(int ply) {
+      if (moveBuffers[ply] == null) {
+        moveBuffers[ply] = new int[cellCount];
+      }
+      return moveBuffers[ply];
+    }
+
+    /**
+     * Fill moves with the candidate moves of side, best first.
+     * @return the number of candidates
+     */
+    private int generate(int side, int[] moves) {
+      int opponent = 3 - side;
+      int count = 0;
+      int blocks = 0;
+      boolean nearOnly = cellCount > FULL_SEARCH_CELLS && stones > 0;
+      for (int cell : centerOrder) {
+        if (cells[cell] != 0 || nearOnly && !hasNeighbor(cell)) {
+          continue;
+        }
+
+        if (isWinIfPlaced(cell, side)) {
+          moves[0] = cell;
+          return 1;
+        }
+
+        if (isWinIfPlaced(cell, opponent)) {
+          // Any other move loses, so only the blocks need to be searched
+          System.arraycopy(moves, blocks, moves, blocks + 1, count - blocks);
+          moves[blocks++] = cell;
+          count++;
+        } else {
+          moves[count++] = cell;
+        }
+      }
+
+      if (count == 0 && stones == 0) {
+        moves[count++] = centerOrder[0];
+      }
+      return blocks > 0 ? blocks : count;
+    }
+
+    private boolean hasNeighbor(int cell) {
+      int x = cell / size;
+      int y = cell % size;
+      for (int i = Math.max(0, x - 1); i <= Math.min(size - 1, x + 1); ++i) {
+        for (int j = Math.max(0, y - 1); j <= Math.min(size - 1, y + 1); ++j) {
+          if (cells[i * size + j] != 0) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    private boolean isWinIfPlaced(int cell, int side) {
+      cells[cell] = (byte) side;
+      boolean win = isWin(cell, side);
+      cells[cell] = 0;
+      return win;
+    }
+
+    private boolean isWin(int cell, int side) {
+      int x = cell / size;
+      int y = cell % size;
+      for (int[] d : DIRECTIONS) {
+        int count = 1 + countFrom(x, y, d[0], d[1], side) + countFrom(x, y, -d[0], -d[1], side);
+        if (count >= winLength) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int countFrom(int x, int y, int dx, int dy, int side) {
+      int count = 0;
+      x += dx;
+      y += dy;
+      while (x >= 0 && x < size && y >= 0 && y < size && cells[x * size + y] == side) {
+        count++;
+        x += dx;
+        y += dy;
+      }
+      return count;
+    }
+
+    /**
+     * Score a position that is not searched further, from the point of view of side.
+     */
+    private int evaluate(int side) {
+      int score = 0;
+      for (int[] window : windows) {
+        int mine = 0;
+        int theirs = 0;
+        for (int cell : window) {
+          if (cells[cell] == side) {
+            mine++;
+          } else if (cells[cell] != 0) {
+            theirs++;
+          }
+        }
+
+        if (theirs == 0) {
+          score += LINE_SCORE[Math.min(mine, LINE_SCORE.length - 1)];
+        } else if (mine == 0) {
+          score -= LINE_SCORE[Math.min(theirs, LINE_SCORE.length - 1)];
+        }
+      }
+      return score;
+    }
+
+    private void place(int cell, int side) {
+      cells[cell] = (byte) side;
+      stones++;
+      toggle(cell, side);
+    }
+
+    private void remove(int cell, int side) {
+      cells[cell] = 0;
+      stones--;
+      toggle(cell, side);
+    }
+
+    private void toggle(int cell, int side) {
+      for (int s = 0; s < 8; ++s) {
+        hashes[s] ^= zobrist[symmetries[s][cell]][side - 1];
+      }
+    }
+
+    private long canonicalHash() {
+      long min = hashes[0];
+      for (int s = 1; s < 8; ++s) {
+        min = Math.min(min, hashes[s]);
+      }
+      return min;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package models;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary encoding of a board for web socket clients that negotiate it.
+ *
+ * <p>Layout, big endian: game id (int), version (int, the low 32 bits), size, win length,
+ * turn, flags (bit 0 started, bit 1 draw, bits 2 and 3 the winner), the marks of both
+ * players as single bytes (0 if not joined), then the owner (0, 1 or 2) of every cell,
+ * row by row, packed two bits per cell starting from the low bits. A 3x3 board takes
+ * 17 bytes.
+ */
+public final class BinaryEncoder {
+
+  private static final int HEADER_SIZE = 14;
+
+  private BinaryEncoder() {
+  }
+
+  /**
+   * Encode a board.
+   */
+  public static byte[] encode(GameBoard board) {
+    int size = board.getSize();
+    Player p1 = board.getPlayer1();
+    Player p2 = board.getPlayer2();
+
+    ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + (size * size + 3) / 4);
+    out.putInt(board.getGameId());
+    out.putInt((int) board.getVersion());
+    out.put((byte) size);
+    out.put((byte) board.getWinLength());
+    out.put((byte) board.getTurn());
+    out.put((byte) ((board.isGameStarted() ? 1 : 0) | (board.isDraw() ? 2 : 0)
+        | board.getWinner() << 2));
+    out.put((byte) (p1 == null ? 0 : p1.getType()));
+    out.put((byte) (p2 == null ? 0 : p2.getType()));
+
+    int packed = 0;
+    int cell = 0;
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        char c = board.getCell(i, j);
+        int owner = c == 0 ? 0 : c == p1.getType() ? 1 : 2;
+        packed |= owner << (cell % 4 * 2);
+        if (++cell % 4 == 0) {
+          out.put((byte) packed);
+          packed = 0;
+        }
+      }
+    }
+    if (cell % 4 != 0) {
+      out.put((byte) packed);
+    }
+
+    return out.array();
+  }
+
+  /**
+   * Decode a board, the version is not restored.
+   */
+  public static GameBoard decode(ByteBuffer in) {
+    int gameId = in.getInt();
+    in.getInt();
+    int size = in.get();
+    int winLength = in.get();
+    int turn = in.get();
+    int flags = in.get();
+    char p1Type = (char) (in.get() & 0xff);
+    char p2Type = (char) (in.get() & 0xff);
+
+    char[][] boardState = new char[size][size];
+    int packed = 0;
+    int cell = 0;
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        if (cell % 4 == 0) {
+          packed = in.get();
+        }
+        int owner = packed >>> (cell % 4 * 2) & 3;
+        boardState[i][j] = owner == 1 ? p1Type : owner == 2 ? p2Type : 0;
+        cell++;
+      }
+    }
+
+    Player p1 = p1Type == 0 ? null : Player.of(p1Type, 1);
+    Player p2 = p2Type == 0 ? null : Player.of(p2Type, 2);
+    return new GameBoard(gameId, p1, p2, (flags & 1) != 0, turn, boardState, winLength,
+        flags >>> 2 & 3, (flags & 2) != 0);
+  }
+}
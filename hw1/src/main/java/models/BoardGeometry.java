@@ -0,0 +1,163 @@
+package models;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shape of a board: its side length and how many stones in a row win.
+ *
+ * <p>Cell (x, y) is bit {@code x * size + y} of a {@code long[]} bitset. Boards that fit
+ * in a single word get every winning line precomputed as a mask, larger boards are
+ * checked by walking outward from the last placed stone. Either way only lines
+ * through the last move are examined.
+ */
+final class BoardGeometry {
+
+  static final int MIN_SIZE = 3;
+
+  static final int MAX_SIZE = 25;
+
+  private static final ConcurrentMap<Integer, BoardGeometry> CACHE = new ConcurrentHashMap<>();
+
+  private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+  private final int size;
+
+  private final int winLength;
+
+  private final int words;
+
+  /**
+   * For each cell, the masks of every winning line through it, or null if the board
+   * does not fit in a single word.
+   */
+  private final long[][] linesThroughCell;
+
+  private BoardGeometry(int size, int winLength) {
+    this.size = size;
+    this.winLength = winLength;
+    this.words = (size * size + 63) >>> 6;
+    this.linesThroughCell = words == 1 ? buildWinLines() : null;
+  }
+
+  /**
+   * Get the geometry for the specified board size and win length.
+   * @throws IllegalArgumentException if no such board can be played
+   */
+  static BoardGeometry of(int size, int winLength) {
+    if (!isValid(size, winLength)) {
+      throw new IllegalArgumentException("Invalid board " + size + "x" + size
+          + " with " + winLength + " in a row");
+    }
+
+    return CACHE.computeIfAbsent(size * (MAX_SIZE + 1) + winLength,
+        key -> new BoardGeometry(size, winLength));
+  }
+
+  /**
+   * Determine if a board of the specified size and win length can be played.
+   */
+  static boolean isValid(int size, int winLength) {
+    return size >= MIN_SIZE && size <= MAX_SIZE && winLength >= MIN_SIZE && winLength <= size;
+  }
+
+  int size() {
+    return size;
+  }
+
+  int winLength() {
+    return winLength;
+  }
+
+  int cellCount() {
+    return size * size;
+  }
+
+  /**
+   * Allocate an empty bitset for one player.
+   */
+  long[] newCells() {
+    return new long[words];
+  }
+
+  int cell(int x, int y) {
+    return x * size + y;
+  }
+
+  static boolean isSet(long[] cells, int cell) {
+    return (cells[cell >>> 6] & 1L << cell) != 0;
+  }
+
+  static void set(long[] cells, int cell) {
+    cells[cell >>> 6] |= 1L << cell;
+  }
+
+  /**
+   * Determine if the stone just placed at (x, y) completes a winning line.
+   * @param cells the bitset of the player who placed the stone
+   */
+  boolean isWinningMove(long[] cells, int x, int y) {
+    if (linesThroughCell != null) {
+      long word = cells[0];
+      for (long line : linesThroughCell[cell(x, y)]) {
+        if ((word & line) == line) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    for (int[] d : DIRECTIONS) {
+      int count = 1 + countFrom(cells, x, y, d[0], d[1]) + countFrom(cells, x, y, -d[0], -d[1]);
+      if (count >= winLength) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private int countFrom(long[] cells, int x, int y, int dx, int dy) {
+    int count = 0;
+    for (int i = x + dx, j = y + dy; count < winLength - 1
+        && i >= 0 && i < size && j >= 0 && j < size
+        && isSet(cells, cell(i, j)); i += dx, j += dy) {
+      count++;
+    }
+    return count;
+  }
+
+  private long[][] buildWinLines() {
+    long[][] byCell = new long[cellCount()][];
+    long[] buffer = new long[4 * winLength];
+
+    for (int x = 0; x < size; ++x) {
+      for (int y = 0; y < size; ++y) {
+        int n = 0;
+        for (int[] d : DIRECTIONS) {
+          // Every segment of winLength cells along d that contains (x, y)
+          for (int offset = 0; offset < winLength; ++offset) {
+            int startX = x - offset * d[0];
+            int startY = y - offset * d[1];
+            long line = 0;
+            int k = 0;
+            for (int i = startX, j = startY; k < winLength
+                && i >= 0 && i < size && j >= 0 && j < size; i += d[0], j += d[1]) {
+              line |= 1L << cell(i, j);
+              k++;
+            }
+
+            if (k == winLength) {
+              buffer[n++] = line;
+            }
+          }
+        }
+
+        long[] lines = new long[n];
+        System.arraycopy(buffer, 0, lines, 0, n);
+        byCell[cell(x, y)] = lines;
+      }
+    }
+
+    return byCell;
+  }
+}
@@ -0,0 +1,121 @@
+package models;
+
+/**
+ * A message of the delta protocol. A delta carries only the cell changed by a move
+ * together with the resulting turn and status, a full update carries the whole board.
+ * Both carry the version of the board, a client that sees a version other than the
+ * one following its own asks for a full update.
+ */
+public class BoardUpdate {
+
+  public static final String DELTA = "delta";
+
+  public static final String FULL = "full";
+
+  private final String type;
+
+  private final int gameId;
+
+  private final long version;
+
+  private Integer x;
+
+  private Integer y;
+
+  private String mark;
+
+  private int turn;
+
+  private int winner;
+
+  private boolean isDraw;
+
+  private GameBoard board;
+
+  private BoardUpdate(String type, GameBoard board) {
+    this.type = type;
+    this.gameId = board.getGameId();
+    this.version = board.getVersion();
+  }
+
+  /**
+   * Create the delta for a move that was just made on the board.
+   */
+  public static BoardUpdate delta(GameBoard board, Move move) {
+    board = board.copy();
+    BoardUpdate update = new BoardUpdate(DELTA, board);
+    update.x = move.getX();
+    update.y = move.getY();
+    update.mark = String.valueOf(move.getPlayer().getType());
+    update.turn = board.getTurn();
+    update.winner = board.getWinner();
+    update.isDraw = board.isDraw();
+    return update;
+  }
+
+  /**
+   * Create a full update holding the current state of the board.
+   */
+  public static BoardUpdate full(GameBoard board) {
+    // Every field, the version included, is taken from one snapshot
+    board = board.copy();
+    BoardUpdate update = new BoardUpdate(FULL, board);
+    update.board = board;
+    update.turn = board.getTurn();
+    update.winner = board.getWinner();
+    update.isDraw = board.isDraw();
+    return update;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getGameId() {
+    return gameId;
+  }
+
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * Get the row of the move, null in a full update.
+   */
+  public Integer getX() {
+    return x;
+  }
+
+  /**
+   * Get the column of the move, null in a full update.
+   */
+  public Integer getY() {
+    return y;
+  }
+
+  /**
+   * Get the mark of the player who moved, null in a full update.
+   */
+  public String getMark() {
+    return mark;
+  }
+
+  public int getTurn() {
+    return turn;
+  }
+
+  public int getWinner() {
+    return winner;
+  }
+
+  public boolean isDraw() {
+    return isDraw;
+  }
+
+  /**
+   * Get the board of a full update, null in a delta.
+   */
+  public GameBoard getBoard() {
+    return board;
+  }
+}
@@ -0,0 +1,13 @@
+package models;
+
+/**
+ * A computer player.
+ */
+public interface Engine {
+
+  /**
+   * Choose a move for the player whose turn it is. The board is only read.
+   * @return the move, or null if the game is over or not started
+   */
+  Move bestMove(GameBoard board);
+}
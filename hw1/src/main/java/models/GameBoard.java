@@ -1,209 +1,588 @@
 package models;
 
+import com.google.gson.annotations.JsonAdapter;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import models.error.AlreadyOccupiedExcpetion;
+import models.error.GameOverException;
 import models.error.InvalidMoveException;
 import models.error.InvalidPositionException;
 import models.error.NotYourTurnException;
 
+/**
+ * The state of a single game, played on a square board of configurable size where
+ * the first player to get {@code winLength} stones in a row wins.
+ *
+ * <p>Cells are kept as one bitset per player (see {@link BoardGeometry}), so placing a
+ * stone is a bit test plus an OR, a win is detected by examining only the lines
+ * through the last placed stone, and a draw by counting occupied cells. The JSON
+ * representation expected by the web UI is produced by {@link GameBoardAdapter}.
+ *
+ * <p>The state is an immutable snapshot replaced by compare-and-set on every change,
+ * so a change is never seen half-applied and reading never takes a lock. A move that
+ * loses a race is validated again against the new state, e.g. a second move of the
+ * same player is then rejected as out of turn. Methods reading several values, such
+ * as the encoders, should work on {@link #copy()}, which shares the current snapshot.
+ */
+@JsonAdapter(GameBoardAdapter.class)
 public class GameBoard {
 
-  private Player p1;
+  public static final int DEFAULT_SIZE = 3;
 
-  private Player p2;
+  /**
+   * The outcome of an accepted move, the code of a successful {@link Message}.
+   */
+  public static final int MOVE_ACCEPTED = 100;
+
+  private static final AtomicReferenceFieldUpdater<GameBoard, State> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(GameBoard.class, State.class, "state");
 
-  private boolean gameStarted;
+  private final int gameId;
 
-  private int turn;
+  private final BoardGeometry geometry;
 
-  private char[][] boardState;
+  private volatile State state;
 
-  private int winner;
+  // Kept beside the snapshot, changed on the shard of the game and saved with the board:
+  // whether the server plays the second seat, and the names the players are ranked under
+  // by seat, null for an anonymous player
+  private volatile boolean bot;
 
-  private boolean isDraw;
+  private volatile String[] playerNames = new String[2];
 
   /**
    * Create a new board with reasonable initial state.
    */
   public GameBoard() {
-    newGame();
+    this(0);
+  }
+
+  /**
+   * Create a new 3x3 board for the game with the specified id.
+   */
+  public GameBoard(int gameId) {
+    this(gameId, DEFAULT_SIZE, DEFAULT_SIZE);
+  }
+
+  /**
+   * Create a new board for the game with the specified id.
+   * @param size the length of one side of the board
+   * @param winLength how many stones in a row are needed to win
+   * @throws IllegalArgumentException if {@link #isValidBoard} rejects the parameters
+   */
+  public GameBoard(int gameId, int size, int winLength) {
+    this.gameId = gameId;
+    this.geometry = BoardGeometry.of(size, winLength);
+    this.state = initialState(1);
   }
   
   /**
    * Initialize a new game board object with the specified values.
+   * The size of the board is taken from boardState.
    */
-  public GameBoard(Player p1, Player p2, boolean gameStarted,
-      int turn, char[][] boardState, int winner, boolean isDraw) {
-    this.p1 = p1;
-    this.p2 = p2;
-    this.gameStarted = gameStarted;
-    this.turn = turn;
-    this.boardState = boardState;
-    this.winner = winner;
-    this.isDraw = isDraw;
+  public GameBoard(int gameId, Player p1, Player p2, boolean gameStarted,
+      int turn, char[][] boardState, int winLength, int winner, boolean isDraw) {
+    this.gameId = gameId;
+    this.geometry = BoardGeometry.of(boardState.length, winLength);
+
+    long[] p1Cells = geometry.newCells();
+    long[] p2Cells = geometry.newCells();
+    int occupied = 0;
+    for (int i = 0; i < boardState.length; ++i) {
+      for (int j = 0; j < boardState[i].length; ++j) {
+        char c = boardState[i][j];
+        if (c == 0) {
+          continue;
+        }
+
+        if (p1 != null && c == p1.getType()) {
+          BoardGeometry.set(p1Cells, geometry.cell(i, j));
+          occupied++;
+        } else if (p2 != null && c == p2.getType()) {
+          BoardGeometry.set(p2Cells, geometry.cell(i, j));
+          occupied++;
+        }
+      }
+    }
+
+    this.state = new State(p1, p2, gameStarted, turn, p1Cells, p2Cells, occupied, winner,
+        isDraw, 1, null);
+  }
+
+  private GameBoard(GameBoard board) {
+    this.gameId = board.gameId;
+    this.geometry = board.geometry;
+    this.state = board.state;
+    this.bot = board.bot;
+    this.playerNames = board.playerNames;
+  }
+
+  /**
+   * Create an independent copy of this board. The copy shares the current snapshot,
+   * so this is cheap and gives a consistent view of the board to read from.
+   */
+  public GameBoard copy() {
+    return new GameBoard(this);
+  }
+
+  /**
+   * Determine if a board with the specified size and win length can be created.
+   */
+  public static boolean isValidBoard(int size, int winLength) {
+    return BoardGeometry.isValid(size, winLength);
   }
   
   /**
    *  Reset the board to initial state.
    */
   public void newGame() {
-    this.p1 = this.p2 = null;
-    this.gameStarted = false;;
-    this.turn = 1;
-
-    this.boardState = new char[3][3];
-    for (int i = 0; i < 3; ++i) {
-      for (int j = 0; j < 3; ++j) {
-        this.boardState[i][j] = 0;
-      }
-    }
-    
-    this.winner = 0;
-    this.isDraw = false;
+    State current;
+    do {
+      current = state;
+    } while (!STATE.compareAndSet(this, current, initialState(current.version + 1)));
+  }
+
+  private State initialState(long version) {
+    return new State(null, null, false, 1, geometry.newCells(), geometry.newCells(), 0, 0,
+        false, version, null);
   }
 
   /**
    * Set the first player of this game to specified player.
    */
   public void setPlayer1(Player player) {
-    this.p1 = player;
+    State current;
+    do {
+      current = state;
+    } while (!STATE.compareAndSet(this, current, current.withPlayers(player, current.p2)));
   }
 
   /**
    * Set the second player of this game to specified player.
    */
   public void setPlayer2(Player player) {
-    this.p2 = player;
+    State current;
+    do {
+      current = state;
+    } while (!STATE.compareAndSet(this, current, current.withPlayers(current.p1, player)));
   }
   
   /**
    * Get the first player.
    */
   public Player getPlayer1() {
-    return this.p1;
+    return state.p1;
   }
 
   /**
    * Get the second player.
    */
   public Player getPlayer2() {
-    return this.p2;
+    return state.p2;
+  }
+  
+  /**
+   * Get the player with the specified id.
+   * @return the player, or null if no such player joined this game
+   */
+  public Player getPlayer(int playerId) {
+    State current = state;
+    if (current.p1 != null && current.p1.getId() == playerId) {
+      return current.p1;
+    }
+
+    if (current.p2 != null && current.p2.getId() == playerId) {
+      return current.p2;
+    }
+
+    return null;
+  }
+
+  /**
+   * Determine if the second seat of this game is taken by the server.
+   */
+  public boolean hasBot() {
+    return bot;
+  }
+
+  /**
+   * Set whether the second seat of this game is taken by the server.
+   */
+  public void setBot(boolean bot) {
+    this.bot = bot;
+  }
+
+  /**
+   * Get the name a player is ranked under.
+   * @return the name, or null if the player is anonymous
+   */
+  public String getPlayerName(int playerId) {
+    return playerNames[playerId - 1];
+  }
+
+  /**
+   * Set the name a player is ranked under.
+   * @param name the name, or null for an anonymous player
+   */
+  public void setPlayerName(int playerId, String name) {
+    String[] next = playerNames.clone();
+    next[playerId - 1] = name;
+    playerNames = next;
+  }
+
+  /**
+   * Get the version of this board, which increases whenever its state changes.
+   */
+  public long getVersion() {
+    return state.version;
+  }
+
+  /**
+   * Get the JSON representation of this board, which is encoded once per version.
+   */
+  public String toJson() {
+    State current = state;
+    String json = current.json;
+    if (json == null) {
+      json = JsonEncoder.encode(snapshot(current));
+      current.json = json;
+    }
+    return json;
+  }
+
+  /**
+   * Get the binary representation of this board, see {@link BinaryEncoder}, which is
+   * encoded once per version.
+   */
+  public byte[] toBinary() {
+    State current = state;
+    byte[] binary = current.binary;
+    if (binary == null) {
+      binary = BinaryEncoder.encode(snapshot(current));
+      current.binary = binary;
+    }
+    return binary;
+  }
+
+  private GameBoard snapshot(State current) {
+    GameBoard snapshot = new GameBoard(this);
+    snapshot.state = current;
+    return snapshot;
+  }
+
+  /**
+   * Get the id of this game.
+   */
+  public int getGameId() {
+    return gameId;
   }
   
   /**
    * Get the winner.
    */
   public int getWinner() {
-    return winner;
+    return state.winner;
   }
   
   /**
    * Get current turn.
    */
   public int getTurn() {
-    return turn;
+    return state.turn;
   }
   
   /**
    * Get current board state.
+   * @return a newly allocated matrix, empty cells are 0
    */
   public char[][] getBoardState() {
+    State current = state;
+    int size = getSize();
+    char[][] boardState = new char[size][size];
+    for (int i = 0; i < size; ++i) {
+      for (int j = 0; j < size; ++j) {
+        boardState[i][j] = getCell(current, i, j);
+      }
+    }
+
     return boardState;
   }
-  
+
+  /**
+   * Get the character at position specified by x and y, or 0 if it is empty.
+   */
+  public char getCell(int x, int y) {
+    return getCell(state, x, y);
+  }
+
+  private char getCell(State current, int x, int y) {
+    int cell = geometry.cell(x, y);
+    if (BoardGeometry.isSet(current.p1Cells, cell)) {
+      return current.p1.getType();
+    }
+
+    if (BoardGeometry.isSet(current.p2Cells, cell)) {
+      return current.p2.getType();
+    }
+
+    return 0;
+  }
+
+  /**
+   * Get the stones in the order they were placed, as cells {@code x * size + y}, so
+   * player 1 placed the stones at even indexes. A board restored from a store that keeps
+   * no move history does not know the order of the stones placed before, those come
+   * first, row by row and alternating between the players.
+   */
+  public int[] getMoves() {
+    State current = state;
+    int[] moves = new int[current.occupied];
+    int known = current.history == null ? 0 : current.history.count;
+    int index = moves.length;
+    for (History move = current.history; move != null; move = move.previous) {
+      moves[--index] = move.cell;
+    }
+
+    if (index > 0) {
+      long[] knownCells = geometry.newCells();
+      for (int i = index; i < moves.length; ++i) {
+        BoardGeometry.set(knownCells, moves[i]);
+      }
+
+      int[] p1Restored = new int[moves.length - known];
+      int[] p2Restored = new int[moves.length - known];
+      int p1Count = 0;
+      int p2Count = 0;
+      for (int cell = 0; cell < geometry.cellCount(); ++cell) {
+        if (BoardGeometry.isSet(knownCells, cell)) {
+          continue;
+        }
+        if (BoardGeometry.isSet(current.p1Cells, cell)) {
+          p1Restored[p1Count++] = cell;
+        } else if (BoardGeometry.isSet(current.p2Cells, cell)) {
+          p2Restored[p2Count++] = cell;
+        }
+      }
+
+      int next = 0;
+      for (int i = 0; i < Math.max(p1Count, p2Count); ++i) {
+        if (i < p1Count) {
+          moves[next++] = p1Restored[i];
+        }
+        if (i < p2Count) {
+          moves[next++] = p2Restored[i];
+        }
+      }
+    }
+    return moves;
+  }
+
+  /**
+   * Get whether the order of every stone is known, i.e. {@link #getMoves} guesses none
+   * of them because the board was restored in the middle of the game.
+   */
+  public boolean hasCompleteHistory() {
+    State current = state;
+    return (current.history == null ? 0 : current.history.count) == current.occupied;
+  }
+
+  /**
+   * Get whether the game has a winner or is a draw.
+   */
+  public boolean isFinished() {
+    State current = state;
+    return current.winner != 0 || current.isDraw;
+  }
+
+  /**
+   * Get the length of one side of the board.
+   */
+  public int getSize() {
+    return geometry.size();
+  }
+
+  /**
+   * Get how many stones in a row are needed to win.
+   */
+  public int getWinLength() {
+    return geometry.winLength();
+  }
+
   /**
    * Get whether the game is a draw now.
    */
   public boolean isDraw() {
-    return isDraw;
+    return state.isDraw;
   }
   
   /**
    * Start the game.
    */
   public void startGame() {
-    this.gameStarted = true;
+    State current;
+    do {
+      current = state;
+    } while (!STATE.compareAndSet(this, current, current.started()));
   }
   
   /**
    * Determine if the game is started.
    */
   public boolean isGameStarted() {
-    return this.gameStarted;
+    return state.gameStarted;
   }
   
   /**
    * Let the player p place a move at position specified by x and y.
+   * @throws InvalidMoveException the shared instance of the rejection, see
+   *     {@link #tryMove}
    */
   public void move(Move move) throws InvalidMoveException {
-    Player player = move.getPlayer();
-    int x = move.getX();
-    int y = move.getY();
+    int code = tryMove(move.getPlayer(), move.getX(), move.getY());
+    if (code != MOVE_ACCEPTED) {
+      throw InvalidMoveException.forCode(code);
+    }
+  }
 
-    if (x < 0 || x >= 3 || y < 0 || y >= 3) {
-      throw new InvalidPositionException();
+  /**
+   * Let the player place a stone at the position specified by x and y, without
+   * throwing. A rejected move allocates nothing, an accepted one only the new snapshot.
+   * @return {@link #MOVE_ACCEPTED}, or the code of the {@link InvalidMoveException}
+   *     rejecting the move
+   */
+  public int tryMove(Player player, int x, int y) {
+    int size = getSize();
+    if (x < 0 || x >= size || y < 0 || y >= size) {
+      return InvalidPositionException.CODE;
     }
 
-    if (p1 == null || p2 == null 
-        || player == null || turn != player.getId()) {
-      throw new NotYourTurnException();
+    int cell = geometry.cell(x, y);
+    State current;
+    State next;
+    do {
+      current = state;
+      Player p1 = current.p1;
+      Player p2 = current.p2;
+      if (p1 == null || p2 == null 
+          || player == null || current.turn != player.getId()) {
+        return NotYourTurnException.CODE;
+      }
+
+      // The outcome is archived and ranked as soon as it is reached, it never changes
+      if (current.winner != 0 || current.isDraw) {
+        return GameOverException.CODE;
+      }
+
+      if (BoardGeometry.isSet(current.p1Cells, cell)
+          || BoardGeometry.isSet(current.p2Cells, cell)) {
+        return AlreadyOccupiedExcpetion.CODE;
+      }
+
+      next = player.getId() == p1.getId()
+          ? current.withMove(current.p1Cells.clone(), current.p2Cells, p2.getId(), cell)
+          : current.withMove(current.p1Cells, current.p2Cells.clone(), p1.getId(), cell);
+      long[] cells = player.getId() == p1.getId() ? next.p1Cells : next.p2Cells;
+      BoardGeometry.set(cells, cell);
+      checkWinner(next, player, cells, x, y);
+    } while (!STATE.compareAndSet(this, current, next));
+    return MOVE_ACCEPTED;
+  }
+
+  /**
+   * Only lines through the last placed stone can have been completed by it.
+   * Fills in the outcome of next, which is not published yet.
+   */
+  private void checkWinner(State next, Player player, long[] cells, int x, int y) {
+    if (geometry.isWinningMove(cells, x, y)) {
+      next.winner = player.getId();
+      return;
     }
 
-    if (boardState[x][y] != 0) {
-      throw new AlreadyOccupiedExcpetion();
+    if (next.occupied == geometry.cellCount()) {
+      next.isDraw = true;
     }
-          
-    boardState[x][y] = player.getType();
-    turn = player.getId() == p1.getId() ? p2.getId() : p1.getId();
-    
-    checkWinner();
-  }
-  
-  private static boolean threeEqual(char a, char b, char c) {
-    return a == b && b == c && a != 0;
   }
-  
-  private void checkWinner() {
-    // Horizontal && Vertical
-    for (int i = 0; i < 3; ++i) {
-      if (threeEqual(boardState[i][0], boardState[i][1], boardState[i][2])) {
-        setWinner(boardState[i][0]);
-        return;
-      }
 
-      if (threeEqual(boardState[0][i], boardState[1][i], boardState[2][i])) {
-        setWinner(boardState[0][i]);
-        return;
-      }
+  /**
+   * One immutable state of the board. The outcome fields are only written while a
+   * successor is built, before it is published, and the encoded forms are caches that
+   * may be computed more than once.
+   */
+  private static final class State {
+    private final Player p1;
+
+    private final Player p2;
+
+    private final boolean gameStarted;
+
+    private final int turn;
+
+    private final long[] p1Cells;
+
+    private final long[] p2Cells;
+
+    private final int occupied;
+
+    private int winner;
+
+    private boolean isDraw;
+
+    // Bumped on every change, lets clients of the delta protocol detect missed updates
+    private final long version;
+
+    // The moves made since the board was created or restored, the last one first
+    private final History history;
+
+    private volatile String json;
+
+    private volatile byte[] binary;
+
+    private State(Player p1, Player p2, boolean gameStarted, int turn, long[] p1Cells,
+        long[] p2Cells, int occupied, int winner, boolean isDraw, long version,
+        History history) {
+      this.p1 = p1;
+      this.p2 = p2;
+      this.gameStarted = gameStarted;
+      this.turn = turn;
+      this.p1Cells = p1Cells;
+      this.p2Cells = p2Cells;
+      this.occupied = occupied;
+      this.winner = winner;
+      this.isDraw = isDraw;
+      this.version = version;
+      this.history = history;
     }
-    
-    // Diagonals
-    if (threeEqual(boardState[0][0], boardState[1][1], boardState[2][2])) {
-      setWinner(boardState[1][1]);
-      return;
+
+    private State withPlayers(Player p1, Player p2) {
+      return new State(p1, p2, gameStarted, turn, p1Cells, p2Cells, occupied, winner, isDraw,
+          version + 1, history);
     }
 
-    if (threeEqual(boardState[2][0], boardState[1][1], boardState[0][2])) {
-      setWinner(boardState[1][1]);
-      return;
+    private State started() {
+      return new State(p1, p2, true, turn, p1Cells, p2Cells, occupied, winner, isDraw,
+          version + 1, history);
     }
-    
-    // Check if is draw
-    for (int i = 0; i < 3; ++i) {
-      for (int j = 0; j < 3; ++j) {
-        if (boardState[i][j] == 0) {
-          return;
-        }
-      }
+
+    private State withMove(long[] p1Cells, long[] p2Cells, int turn, int cell) {
+      return new State(p1, p2, gameStarted, turn, p1Cells, p2Cells, occupied + 1, winner,
+          isDraw, version + 1, new History(cell, history));
     }
-    
-    isDraw = true;
   }
-  
-  private void setWinner(char c) {
-    if (c == p1.getType()) {
-      winner = p1.getId();
-    } else {
-      winner = p2.getId();
+
+  /**
+   * A move in a persistent list, so that a new snapshot shares the moves of the previous
+   * one instead of copying them.
+   */
+  private static final class History {
+    private final int cell;
+
+    private final History previous;
+
+    private final int count;
+
+    private History(int cell, History previous) {
+      this.cell = cell;
+      this.previous = previous;
+      this.count = previous == null ? 1 : previous.count + 1;
     }
   }
 }
@@ -0,0 +1,181 @@
+package models;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Gson adapter that keeps the JSON shape of {@link GameBoard} independent from its
+ * internal representation: the board state is written as a matrix of characters.
+ */
+public class GameBoardAdapter extends TypeAdapter<GameBoard> {
+
+  @Override
+  public void write(JsonWriter out, GameBoard board) throws IOException {
+    if (board == null) {
+      out.nullValue();
+      return;
+    }
+
+    // Written from one snapshot, the board may change meanwhile
+    board = board.copy();
+    out.beginObject();
+    out.name("gameId").value(board.getGameId());
+    writePlayer(out.name("p1"), board.getPlayer1());
+    writePlayer(out.name("p2"), board.getPlayer2());
+    out.name("gameStarted").value(board.isGameStarted());
+    out.name("turn").value(board.getTurn());
+    out.name("size").value(board.getSize());
+    out.name("winLength").value(board.getWinLength());
+
+    out.name("boardState").beginArray();
+    for (int i = 0; i < board.getSize(); ++i) {
+      out.beginArray();
+      for (int j = 0; j < board.getSize(); ++j) {
+        out.value(String.valueOf(board.getCell(i, j)));
+      }
+      out.endArray();
+    }
+    out.endArray();
+
+    out.name("winner").value(board.getWinner());
+    out.name("isDraw").value(board.isDraw());
+    out.endObject();
+  }
+
+  private static void writePlayer(JsonWriter out, Player player) throws IOException {
+    if (player == null) {
+      out.nullValue();
+      return;
+    }
+
+    out.beginObject();
+    out.name("type").value(String.valueOf(player.getType()));
+    out.name("id").value(player.getId());
+    out.endObject();
+  }
+
+  @Override
+  public GameBoard read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+
+    int gameId = 0;
+    Player p1 = null;
+    Player p2 = null;
+    boolean gameStarted = false;
+    int turn = 1;
+    char[][] boardState = null;
+    int winLength = 0;
+    int winner = 0;
+    boolean isDraw = false;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "gameId":
+          gameId = in.nextInt();
+          break;
+        case "p1":
+          p1 = readPlayer(in);
+          break;
+        case "p2":
+          p2 = readPlayer(in);
+          break;
+        case "gameStarted":
+          gameStarted = in.nextBoolean();
+          break;
+        case "turn":
+          turn = in.nextInt();
+          break;
+        case "winLength":
+          winLength = in.nextInt();
+          break;
+        case "boardState":
+          boardState = readBoardState(in);
+          break;
+        case "winner":
+          winner = in.nextInt();
+          break;
+        case "isDraw":
+          isDraw = in.nextBoolean();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+
+    if (boardState == null) {
+      boardState = new char[GameBoard.DEFAULT_SIZE][GameBoard.DEFAULT_SIZE];
+    }
+
+    if (winLength == 0) {
+      winLength = Math.min(boardState.length, GameBoard.DEFAULT_SIZE);
+    }
+
+    return new GameBoard(gameId, p1, p2, gameStarted, turn, boardState, winLength,
+        winner, isDraw);
+  }
+
+  private static Player readPlayer(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+
+    char type = 0;
+    int id = 0;
+
+    in.beginObject();
+    while (in.hasNext()) {
+      switch (in.nextName()) {
+        case "type":
+          type = readChar(in);
+          break;
+        case "id":
+          id = in.nextInt();
+          break;
+        default:
+          in.skipValue();
+      }
+    }
+    in.endObject();
+
+    return Player.of(type, id);
+  }
+
+  private static char[][] readBoardState(JsonReader in) throws IOException {
+    List<char[]> rows = new ArrayList<>();
+
+    in.beginArray();
+    while (in.hasNext()) {
+      List<Character> row = new ArrayList<>();
+      in.beginArray();
+      while (in.hasNext()) {
+        row.add(readChar(in));
+      }
+      in.endArray();
+
+      char[] cells = new char[row.size()];
+      for (int i = 0; i < cells.length; ++i) {
+        cells[i] = row.get(i);
+      }
+      rows.add(cells);
+    }
+    in.endArray();
+
+    return rows.toArray(new char[0][]);
+  }
+
+  private static char readChar(JsonReader in) throws IOException {
+    String s = in.nextString();
+    return s.isEmpty() ? 0 : s.charAt(0);
+  }
+}
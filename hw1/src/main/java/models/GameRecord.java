@@ -0,0 +1,80 @@
+package models;
+
+/**
+ * A finished game as kept in the history archive, serialized with Gson for export.
+ */
+public class GameRecord {
+
+  // Position in the archive, the cursor of the history API
+  private final long id;
+
+  private final int gameId;
+
+  // When the game was archived, in milliseconds since the epoch
+  private final long finishedAt;
+
+  private final int size;
+
+  private final int winLength;
+
+  private final String p1;
+
+  private final String p2;
+
+  private final int winner;
+
+  private final boolean isDraw;
+
+  // Every move as {x, y}, player 1 made the moves at even indexes
+  private final int[][] moves;
+
+  // False if the game was restored without its move history, the moves placed before
+  // are then listed row by row rather than in the order they were played
+  private final boolean complete;
+
+  /**
+   * Create a record with the specified values.
+   */
+  public GameRecord(long id, int gameId, long finishedAt, int size, int winLength, char p1,
+      char p2, int winner, boolean isDraw, int[][] moves, boolean complete) {
+    this.id = id;
+    this.gameId = gameId;
+    this.finishedAt = finishedAt;
+    this.size = size;
+    this.winLength = winLength;
+    this.p1 = String.valueOf(p1);
+    this.p2 = String.valueOf(p2);
+    this.winner = winner;
+    this.isDraw = isDraw;
+    this.moves = moves;
+    this.complete = complete;
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public int getGameId() {
+    return gameId;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getWinner() {
+    return winner;
+  }
+
+  public boolean isDraw() {
+    return isDraw;
+  }
+
+  public int[][] getMoves() {
+    return moves;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+}
@@ -0,0 +1,129 @@
+package models;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Compact encoding of a finished game for the history archive: the outcome and the cells
+ * of the moves in order, which is enough to replay the game.
+ *
+ * <p>Layout: size, win length, then a byte holding the outcome in bits 0 and 1 (0 none,
+ * 1 or 2 the winner, 3 a draw) and the marks in bits 2 and 3 (0 for X and O, 1 for O and
+ * X, 2 for other marks, which follow as two chars) and bit 4 set if the order of the
+ * stones placed before the game was restored is unknown. Then the number of moves as a
+ * varint and the cell {@code x * size + y} of every move, packed two per byte on boards
+ * of at most 16 cells and as varints otherwise. A 3x3 game takes at most 9 bytes.
+ */
+public final class HistoryEncoder {
+
+  private static final int DRAW = 3;
+
+  private static final int MARKS_XO = 0;
+
+  private static final int MARKS_OX = 1;
+
+  private static final int MARKS_CUSTOM = 2;
+
+  private static final int INCOMPLETE = 1 << 4;
+
+  private HistoryEncoder() {
+  }
+
+  /**
+   * Encode a board whose both players joined.
+   */
+  public static byte[] encode(GameBoard board) {
+    int size = board.getSize();
+    char p1 = board.getPlayer1().getType();
+    char p2 = board.getPlayer2().getType();
+    int[] moves = board.getMoves();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8 + moves.length * 2);
+    out.write(size);
+    out.write(board.getWinLength());
+
+    int marks = p1 == 'X' && p2 == 'O' ? MARKS_XO : p1 == 'O' && p2 == 'X' ? MARKS_OX
+        : MARKS_CUSTOM;
+    out.write((board.isDraw() ? DRAW : board.getWinner()) | marks << 2
+        | (board.hasCompleteHistory() ? 0 : INCOMPLETE));
+    if (marks == MARKS_CUSTOM) {
+      writeChar(out, p1);
+      writeChar(out, p2);
+    }
+
+    writeVarint(out, moves.length);
+    if (size * size <= 16) {
+      for (int i = 0; i < moves.length; i += 2) {
+        out.write(moves[i] | (i + 1 < moves.length ? moves[i + 1] << 4 : 0));
+      }
+    } else {
+      for (int move : moves) {
+        writeVarint(out, move);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode a game encoded by {@link #encode}.
+   * @param id the position of the game in the archive
+   */
+  public static GameRecord decode(long id, int gameId, long finishedAt, byte[] data) {
+    int[] position = {0};
+    int size = data[position[0]++];
+    int winLength = data[position[0]++];
+    int flags = data[position[0]++];
+    int outcome = flags & 3;
+    int marks = flags >> 2 & 3;
+
+    char p1 = marks == MARKS_OX ? 'O' : 'X';
+    char p2 = marks == MARKS_OX ? 'X' : 'O';
+    if (marks == MARKS_CUSTOM) {
+      p1 = readChar(data, position);
+      p2 = readChar(data, position);
+    }
+
+    int[][] moves = new int[readVarint(data, position)][];
+    for (int i = 0; i < moves.length; ++i) {
+      int cell;
+      if (size * size <= 16) {
+        cell = data[position[0] + i / 2] >> (i % 2 * 4) & 0xf;
+      } else {
+        cell = readVarint(data, position);
+      }
+      moves[i] = new int[] {cell / size, cell % size};
+    }
+
+    return new GameRecord(id, gameId, finishedAt, size, winLength, p1, p2,
+        outcome == DRAW ? 0 : outcome, outcome == DRAW, moves, (flags & INCOMPLETE) == 0);
+  }
+
+  private static void writeChar(ByteArrayOutputStream out, char c) {
+    out.write(c >> 8);
+    out.write(c);
+  }
+
+  private static char readChar(byte[] data, int[] position) {
+    char c = (char) ((data[position[0]] & 0xff) << 8 | data[position[0] + 1] & 0xff);
+    position[0] += 2;
+    return c;
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write(value & 0x7f | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readVarint(byte[] data, int[] position) {
+    int value = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = data[position[0]++];
+      value |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
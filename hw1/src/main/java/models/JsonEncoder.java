@@ -0,0 +1,203 @@
+package models;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import models.error.InvalidMoveException;
+
+/**
+ * Hand-written JSON encoder for the objects sent on every request, producing exactly
+ * what Gson produces for them (including its HTML-safe escaping) without reflection.
+ * Encoding happens in a per-thread buffer that is reused across calls.
+ */
+public final class JsonEncoder {
+
+  private static final ThreadLocal<StringBuilder> BUFFER =
+      ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+  private static final String SUCCESS = encode(new Message(true, GameBoard.MOVE_ACCEPTED, ""));
+
+  // Responses to rejected moves, there is one per InvalidMoveException code
+  private static final ConcurrentMap<Integer, String> FAILURES = new ConcurrentHashMap<>();
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private JsonEncoder() {
+  }
+
+  /**
+   * Encode a board the way {@link GameBoardAdapter} does.
+   */
+  public static String encode(GameBoard board) {
+    StringBuilder out = buffer();
+    int size = board.getSize();
+
+    out.append("{\"gameId\":").append(board.getGameId());
+    if (board.getPlayer1() != null) {
+      out.append(",\"p1\":");
+      writePlayer(out, board.getPlayer1());
+    }
+    if (board.getPlayer2() != null) {
+      out.append(",\"p2\":");
+      writePlayer(out, board.getPlayer2());
+    }
+    out.append(",\"gameStarted\":").append(board.isGameStarted());
+    out.append(",\"turn\":").append(board.getTurn());
+    out.append(",\"size\":").append(size);
+    out.append(",\"winLength\":").append(board.getWinLength());
+
+    out.append(",\"boardState\":[");
+    for (int i = 0; i < size; ++i) {
+      out.append(i == 0 ? "[" : ",[");
+      for (int j = 0; j < size; ++j) {
+        if (j > 0) {
+          out.append(',');
+        }
+        out.append('"');
+        writeChar(out, board.getCell(i, j));
+        out.append('"');
+      }
+      out.append(']');
+    }
+    out.append(']');
+
+    out.append(",\"winner\":").append(board.getWinner());
+    out.append(",\"isDraw\":").append(board.isDraw());
+    return out.append('}').toString();
+  }
+
+  /**
+   * Encode an update of the delta protocol, the board of a full update as
+   * {@link GameBoard#toJson} does.
+   */
+  public static String encode(BoardUpdate update) {
+    // Encoded first, it may use the buffer itself
+    String board = update.getBoard() == null ? null : update.getBoard().toJson();
+    StringBuilder out = buffer();
+
+    out.append("{\"type\":");
+    writeString(out, update.getType());
+    out.append(",\"gameId\":").append(update.getGameId());
+    out.append(",\"version\":").append(update.getVersion());
+    if (update.getX() != null) {
+      out.append(",\"x\":").append(update.getX());
+    }
+    if (update.getY() != null) {
+      out.append(",\"y\":").append(update.getY());
+    }
+    if (update.getMark() != null) {
+      out.append(",\"mark\":");
+      writeString(out, update.getMark());
+    }
+    out.append(",\"turn\":").append(update.getTurn());
+    out.append(",\"winner\":").append(update.getWinner());
+    out.append(",\"isDraw\":").append(update.isDraw());
+    if (board != null) {
+      out.append(",\"board\":").append(board);
+    }
+    return out.append('}').toString();
+  }
+
+  /**
+   * Encode a message.
+   */
+  public static String encode(Message message) {
+    StringBuilder out = buffer();
+    out.append("{\"moveValidity\":").append(message.isValid());
+    out.append(",\"code\":").append(message.getCode());
+    if (message.getMessage() != null) {
+      out.append(",\"message\":");
+      writeString(out, message.getMessage());
+    }
+    return out.append('}').toString();
+  }
+
+  /**
+   * Get the response to a move, shared by every request with the same outcome.
+   * @param error why the move was rejected, or null if it was accepted
+   */
+  public static String moveResult(InvalidMoveException error) {
+    return error == null ? SUCCESS : moveResult(error.code());
+  }
+
+  /**
+   * Get the response to a move from its outcome code, see {@link GameBoard#tryMove}.
+   */
+  public static String moveResult(int code) {
+    if (code == GameBoard.MOVE_ACCEPTED) {
+      return SUCCESS;
+    }
+
+    String result = FAILURES.get(code);
+    if (result == null) {
+      InvalidMoveException error = InvalidMoveException.forCode(code);
+      result = encode(new Message(false, code, error == null ? null : error.cause()));
+      FAILURES.putIfAbsent(code, result);
+    }
+    return result;
+  }
+
+  private static StringBuilder buffer() {
+    StringBuilder out = BUFFER.get();
+    out.setLength(0);
+    return out;
+  }
+
+  private static void writePlayer(StringBuilder out, Player player) {
+    out.append("{\"type\":\"");
+    writeChar(out, player.getType());
+    out.append("\",\"id\":").append(player.getId()).append('}');
+  }
+
+  private static void writeString(StringBuilder out, String value) {
+    out.append('"');
+    for (int i = 0; i < value.length(); ++i) {
+      writeChar(out, value.charAt(i));
+    }
+    out.append('"');
+  }
+
+  /**
+   * Write a character escaped as Gson does with HTML-safe escaping, its default.
+   */
+  private static void writeChar(StringBuilder out, char c) {
+    switch (c) {
+      case '"':
+        out.append("\\\"");
+        return;
+      case '\\':
+        out.append("\\\\");
+        return;
+      case '\t':
+        out.append("\\t");
+        return;
+      case '\b':
+        out.append("\\b");
+        return;
+      case '\n':
+        out.append("\\n");
+        return;
+      case '\r':
+        out.append("\\r");
+        return;
+      case '\f':
+        out.append("\\f");
+        return;
+      case '<':
+      case '>':
+      case '&':
+      case '=':
+      case '\'':
+      case '\u2028':
+      case '\u2029':
+        break;
+      default:
+        if (c >= 0x20) {
+          out.append(c);
+          return;
+        }
+    }
+
+    out.append("\\u").append(HEX[c >> 12 & 0xf]).append(HEX[c >> 8 & 0xf])
+        .append(HEX[c >> 4 & 0xf]).append(HEX[c & 0xf]);
+  }
+}
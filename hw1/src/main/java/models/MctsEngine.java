@@ -0,0 +1,445 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Monte Carlo tree search, for boards too large to search exhaustively.
+ *
+ * <p>One worker per thread of a {@link ForkJoinPool} runs iterations on a shared tree
+ * until the time or iteration budget is spent. Node statistics are updated with atomic
+ * field updaters and children are published through an atomic array, so workers never
+ * lock; a worker counts a visit on its way down, which steers the others to different
+ * branches until its result arrives. Tree nodes only consider cells next to existing
+ * stones, playouts place stones on random empty cells.
+ *
+ * <p>The tree of every game is kept after a move is chosen. On the next call for that
+ * game the subtree of the moves played in between becomes the new root, so its
+ * statistics are not computed again.
+ */
+public class MctsEngine implements Engine {
+
+  private static final int NONE = -1;
+
+  private static final int DRAW = 0;
+
+  private static final double EXPLORATION = Math.sqrt(2);
+
+  // Trees of more games than this are all dropped
+  private static final int MAX_TREES = 256;
+
+  private static final int[][] DIRECTIONS = {{0, 1}, {1, 0}, {1, 1}, {1, -1}};
+
+  private final ForkJoinPool pool;
+
+  private final long timeBudgetNanos;
+
+  private final int iterationBudget;
+
+  private final ConcurrentMap<Integer, Tree> trees = new ConcurrentHashMap<>();
+
+  /**
+   * Create an engine.
+   * @param pool the pool running the search, one worker per thread of its parallelism
+   * @param timeBudgetMillis how long a search may take, 0 for no limit
+   * @param iterationBudget how many iterations a search may run, 0 for no limit
+   * @throws IllegalArgumentException if neither budget is limited
+   */
+  public MctsEngine(ForkJoinPool pool, long timeBudgetMillis, int iterationBudget) {
+    if (timeBudgetMillis <= 0 && iterationBudget <= 0) {
+      throw new IllegalArgumentException("The search needs a time or an iteration budget");
+    }
+
+    this.pool = pool;
+    this.timeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+    this.iterationBudget = iterationBudget;
+  }
+
+  @Override
+  public Move bestMove(GameBoard board) {
+    Player player = board.getPlayer(board.getTurn());
+    if (player == null || !board.isGameStarted() || board.getWinner() != 0
+        || board.isDraw()) {
+      return null;
+    }
+
+    Rules rules = new Rules(board.getSize(), board.getWinLength());
+    int side = player.getId() == board.getPlayer1().getId() ? 1 : 2;
+    byte[] cells = new byte[rules.cellCount];
+    char p1 = board.getPlayer1().getType();
+    for (int cell = 0; cell < rules.cellCount; ++cell) {
+      char c = board.getCell(cell / rules.size, cell % rules.size);
+      cells[cell] = (byte) (c == 0 ? 0 : c == p1 ? 1 : 2);
+    }
+
+    int cell = rules.forcedMove(cells, side);
+    if (cell < 0) {
+      cell = search(board.getGameId(), rules, cells, side);
+    }
+    return Move.of(player, cell / rules.size, cell % rules.size);
+  }
+
+  private int search(int gameId, Rules rules, byte[] cells, int side) {
+    Node root = reuse(trees.get(gameId), rules, cells);
+    if (root == null) {
+      root = new Node(NONE, 3 - side, NONE, rules.candidates(cells));
+    }
+
+    AtomicInteger remaining = new AtomicInteger(
+        iterationBudget > 0 ? iterationBudget : Integer.MAX_VALUE);
+    long deadline = timeBudgetNanos > 0 ? System.nanoTime() + timeBudgetNanos : Long.MAX_VALUE;
+    Node searchRoot = root;
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < pool.getParallelism(); ++i) {
+      workers.add(() -> {
+        Worker worker = new Worker(rules);
+        while (remaining.getAndDecrement() > 0 && System.nanoTime() < deadline) {
+          worker.iterate(searchRoot, cells);
+        }
+        return null;
+      });
+    }
+    pool.invokeAll(workers);
+
+    Node best = null;
+    for (int i = 0; i < root.moves.length; ++i) {
+      Node child = root.children.get(i);
+      if (child != null && (best == null || child.visits > best.visits)) {
+        best = child;
+      }
+    }
+
+    int move = best == null ? root.moves[0] : best.move;
+    if (trees.size() >= MAX_TREES) {
+      trees.clear();
+    }
+    trees.put(gameId, new Tree(rules, cells.clone(), root));
+    return move;
+  }
+
+  /**
+   * Find the node of the current position in the tree of the previous search.
+   * @return the node, or null if the position does not follow from that tree
+   */
+  private static Node reuse(Tree tree, Rules rules, byte[] cells) {
+    if (tree == null || tree.rules.size != rules.size
+        || tree.rules.winLength != rules.winLength) {
+      return null;
+    }
+
+    int added = 0;
+    for (int cell = 0; cell < cells.length; ++cell) {
+      if (tree.cells[cell] != 0 && tree.cells[cell] != cells[cell]) {
+        return null;
+      }
+      if (tree.cells[cell] != cells[cell]) {
+        added++;
+      }
+    }
+
+    Node node = tree.root;
+    for (int step = 0; step < added && node != null; ++step) {
+      Node next = null;
+      for (int i = 0; i < node.moves.length && next == null; ++i) {
+        Node child = node.children.get(i);
+        if (child != null && tree.cells[child.move] == 0 && cells[child.move] == child.side) {
+          next = child;
+        }
+      }
+      node = next;
+    }
+    return node;
+  }
+
+  private static final class Tree {
+    private final Rules rules;
+
+    private final byte[] cells;
+
+    private final Node root;
+
+    private Tree(Rules rules, byte[] cells, Node root) {
+      this.rules = rules;
+      this.cells = cells;
+      this.root = root;
+    }
+  }
+
+  private static final class Node {
+    private static final AtomicIntegerFieldUpdater<Node> VISITS =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "visits");
+
+    private static final AtomicLongFieldUpdater<Node> REWARD =
+        AtomicLongFieldUpdater.newUpdater(Node.class, "reward");
+
+    private static final AtomicIntegerFieldUpdater<Node> NEXT_CHILD =
+        AtomicIntegerFieldUpdater.newUpdater(Node.class, "nextChild");
+
+    // The cell played to reach this node and the side that played it
+    private final int move;
+
+    private final int side;
+
+    // The winner, DRAW, or NONE if the game goes on
+    private final int outcome;
+
+    private final int[] moves;
+
+    private final AtomicReferenceArray<Node> children;
+
+    private volatile int visits;
+
+    // Twice the number of wins of side, draws count half
+    private volatile long reward;
+
+    private volatile int nextChild;
+
+    private Node(int move, int side, int outcome, int[] moves) {
+      this.move = move;
+      this.side = side;
+      this.outcome = outcome;
+      this.moves = moves;
+      this.children = new AtomicReferenceArray<>(moves.length);
+    }
+  }
+
+  private static final class Worker {
+    private final Rules rules;
+
+    private final byte[] cells;
+
+    private final int[] empty;
+
+    private final Node[] path;
+
+    private Worker(Rules rules) {
+      this.rules = rules;
+      this.cells = new byte[rules.cellCount];
+      this.empty = new int[rules.cellCount];
+      this.path = new Node[rules.cellCount + 1];
+    }
+
+    void iterate(Node root, byte[] rootCells) {
+      System.arraycopy(rootCells, 0, cells, 0, cells.length);
+      int depth = 0;
+      Node node = root;
+      path[0] = root;
+      Node.VISITS.incrementAndGet(root);
+
+      while (node.outcome == NONE) {
+        Node next = expand(node);
+        boolean expanded = next != null;
+        if (!expanded) {
+          next = select(node);
+          if (next == null) {
+            // Children are still being created by other workers
+            break;
+          }
+          cells[next.move] = (byte) next.side;
+        }
+
+        Node.VISITS.incrementAndGet(next);
+        path[++depth] = next;
+        node = next;
+        if (expanded) {
+          break;
+        }
+      }
+
+      int outcome = node.outcome != NONE ? node.outcome : playout(3 - node.side);
+      for (int i = 0; i <= depth; ++i) {
+        Node visited = path[i];
+        Node.REWARD.addAndGet(visited, outcome == visited.side ? 2 : outcome == DRAW ? 1 : 0);
+        path[i] = null;
+      }
+    }
+
+    private Node expand(Node node) {
+      if (node.nextChild >= node.moves.length) {
+        return null;
+      }
+
+      int index = Node.NEXT_CHILD.getAndIncrement(node);
+      if (index >= node.moves.length) {
+        return null;
+      }
+
+      int cell = node.moves[index];
+      int side = 3 - node.side;
+      cells[cell] = (byte) side;
+      int outcome = rules.isWin(cells, cell, side) ? side
+          : rules.isFull(cells) ? DRAW : NONE;
+      Node child = new Node(cell, side, outcome,
+          outcome == NONE ? rules.candidates(cells) : new int[0]);
+      node.children.set(index, child);
+      return child;
+    }
+
+    private static Node select(Node node) {
+      double logVisits = Math.log(Math.max(1, node.visits));
+      Node best = null;
+      double bestScore = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < node.moves.length; ++i) {
+        Node child = node.children.get(i);
+        if (child == null) {
+          continue;
+        }
+
+        int visits = Math.max(1, child.visits);
+        double score = child.reward / (2.0 * visits)
+            + EXPLORATION * Math.sqrt(logVisits / visits);
+        if (score > bestScore) {
+          bestScore = score;
+          best = child;
+        }
+      }
+      return best;
+    }
+
+    /**
+     * Play random moves until the game ends.
+     * @return the winner or DRAW
+     */
+    private int playout(int side) {
+      int count = 0;
+      for (int cell = 0; cell < cells.length; ++cell) {
+        if (cells[cell] == 0) {
+          empty[count++] = cell;
+        }
+      }
+
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      while (count > 0) {
+        int index = random.nextInt(count);
+        int cell = empty[index];
+        empty[index] = empty[--count];
+        cells[cell] = (byte) side;
+        if (rules.isWin(cells, cell, side)) {
+          return side;
+        }
+        side = 3 - side;
+      }
+      return DRAW;
+    }
+  }
+
+  /**
+   * The rules of {@link GameBoard} on one byte per cell.
+   */
+  private static final class Rules {
+    private final int size;
+
+    private final int winLength;
+
+    private final int cellCount;
+
+    private Rules(int size, int winLength) {
+      this.size = size;
+      this.winLength = winLength;
+      this.cellCount = size * size;
+    }
+
+    boolean isWin(byte[] cells, int cell, int side) {
+      int x = cell / size;
+      int y = cell % size;
+      for (int[] d : DIRECTIONS) {
+        int count = 1 + countFrom(cells, x, y, d[0], d[1], side)
+            + countFrom(cells, x, y, -d[0], -d[1], side);
+        if (count >= winLength) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private int countFrom(byte[] cells, int x, int y, int dx, int dy, int side) {
+      int count = 0;
+      x += dx;
+      y += dy;
+      while (x >= 0 && x < size && y >= 0 && y < size && cells[x * size + y] == side) {
+        count++;
+        x += dx;
+        y += dy;
+      }
+      return count;
+    }
+
+    boolean isFull(byte[] cells) {
+      for (byte cell : cells) {
+        if (cell == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Get the empty cells next to a stone, or the center of an empty board.
+     */
+    int[] candidates(byte[] cells) {
+      int[] result = new int[cellCount];
+      int count = 0;
+      for (int cell = 0; cell < cellCount; ++cell) {
+        if (cells[cell] == 0 && hasNeighbor(cells, cell)) {
+          result[count++] = cell;
+        }
+      }
+
+      if (count == 0) {
+        return new int[] {(size / 2) * size + size / 2};
+      }
+      return Arrays.copyOf(result, count);
+    }
+
+    private boolean hasNeighbor(byte[] cells, int cell) {
+      int x = cell / size;
+      int y = cell % size;
+      for (int i = Math.max(0, x - 1); i <= Math.min(size - 1, x + 1); ++i) {
+        for (int j = Math.max(0, y - 1); j <= Math.min(size - 1, y + 1); ++j) {
+          if (cells[i * size + j] != 0) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Get a move that wins at once, or else one that blocks an immediate win of the
+     * opponent.
+     * @return the cell, or -1 if there is no such move
+     */
+    int forcedMove(byte[] cells, int side) {
+      int block = -1;
+      for (int cell = 0; cell < cellCount; ++cell) {
+        if (cells[cell] != 0) {
+          continue;
+        }
+
+        cells[cell] = (byte) side;
+        boolean win = isWin(cells, cell, side);
+        cells[cell] = (byte) (3 - side);
+        boolean loss = isWin(cells, cell, 3 - side);
+        cells[cell] = 0;
+        if (win) {
+          return cell;
+        }
+        if (loss && block < 0) {
+          block = cell;
+        }
+      }
+      return block;
+    }
+  }
+}
@@ -4,10 +4,8 @@ public class Message {
 
   private boolean moveValidity;
 
-  @SuppressWarnings("unused") // The field will be used in JSON serialization
   private int code;
 
-  @SuppressWarnings("unused") // The field will be used in JSON serialization
   private String message;
   
   /**
@@ -23,4 +21,12 @@ public class Message {
     return moveValidity;
   }
 
+  public int getCode() {
+    return code;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
 }
@@ -20,6 +20,27 @@ public class Move {
     return moveY;
   }
 
+  /**
+   * Get the move of the player at the specified position. The moves of players from
+   * {@link Player#of} are created once and shared.
+   */
+  public static Move of(Player player, int moveX, int moveY) {
+    Move[] moves = player.moves;
+    if (moves == null || moveX < 0 || moveX >= BoardGeometry.MAX_SIZE
+        || moveY < 0 || moveY >= BoardGeometry.MAX_SIZE) {
+      return new Move(player, moveX, moveY);
+    }
+
+    // Racing threads may both create the move, either instance is fine
+    int index = moveX * BoardGeometry.MAX_SIZE + moveY;
+    Move move = moves[index];
+    if (move == null) {
+      move = new Move(player, moveX, moveY);
+      moves[index] = move;
+    }
+    return move;
+  }
+
   /** 
    * Create a new Move object using the specified parameters.
    */
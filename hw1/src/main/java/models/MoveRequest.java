@@ -0,0 +1,32 @@
+package models;
+
+/**
+ * One move of a batch submitted to {@code /moves}.
+ */
+public class MoveRequest {
+
+  // 0 selects the most recently started game
+  private int gameId;
+
+  private int playerId;
+
+  private int x;
+
+  private int y;
+
+  public int getGameId() {
+    return gameId;
+  }
+
+  public int getPlayerId() {
+    return playerId;
+  }
+
+  public int getX() {
+    return x;
+  }
+
+  public int getY() {
+    return y;
+  }
+}
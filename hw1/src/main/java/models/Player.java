@@ -2,16 +2,41 @@ package models;
 
 public class Player {
 
-  private char type;
+  // The usual players, shared by every game
+  private static final Player[] FLYWEIGHTS = {
+      new Player('X', 1, true), new Player('O', 1, true),
+      new Player('X', 2, true), new Player('O', 2, true)};
 
-  private int id;
+  private final char type;
+
+  private final int id;
+
+  // Every move of a shared player, indexed by cell, filled on demand, see Move#of
+  final Move[] moves;
 
   /**
    * Create a new Player with the specified type and id.
    */
   public Player(char type, int id) {
+    this(type, id, false);
+  }
+
+  private Player(char type, int id, boolean shared) {
     this.type = type;
     this.id = id;
+    this.moves = shared ? new Move[BoardGeometry.MAX_SIZE * BoardGeometry.MAX_SIZE] : null;
+  }
+
+  /**
+   * Get a player with the specified type and id, shared with other games for X and O.
+   */
+  public static Player of(char type, int id) {
+    for (Player player : FLYWEIGHTS) {
+      if (player.type == type && player.id == id) {
+        return player;
+      }
+    }
+    return new Player(type, id);
   }
   
   /**
@@ -0,0 +1,62 @@
+package models;
+
+import java.util.Comparator;
+
+/**
+ * The results of a named player over every finished game, an immutable value replaced
+ * after each game.
+ */
+public class PlayerStats {
+
+  /**
+   * Leaderboard order: most wins first, then most draws, then fewest losses, then name.
+   */
+  public static final Comparator<PlayerStats> RANKING =
+      Comparator.comparingInt(PlayerStats::getWins).reversed()
+          .thenComparing(Comparator.comparingInt(PlayerStats::getDraws).reversed())
+          .thenComparingInt(PlayerStats::getLosses)
+          .thenComparing(PlayerStats::getName);
+
+  private final String name;
+
+  private final int wins;
+
+  private final int losses;
+
+  private final int draws;
+
+  /**
+   * Create the stats of a player.
+   */
+  public PlayerStats(String name, int wins, int losses, int draws) {
+    this.name = name;
+    this.wins = wins;
+    this.losses = losses;
+    this.draws = draws;
+  }
+
+  /**
+   * Get these stats with one more game counted.
+   * @param outcome 1 for a win, -1 for a loss, 0 for a draw
+   */
+  public PlayerStats with(int outcome) {
+    return new PlayerStats(name, wins + (outcome > 0 ? 1 : 0), losses + (outcome < 0 ? 1 : 0),
+        draws + (outcome == 0 ? 1 : 0));
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWins() {
+    return wins;
+  }
+
+  public int getLosses() {
+    return losses;
+  }
+
+  public int getDraws() {
+    return draws;
+  }
+}
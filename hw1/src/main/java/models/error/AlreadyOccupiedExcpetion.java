@@ -3,9 +3,13 @@ package models.error;
 public class AlreadyOccupiedExcpetion extends InvalidMoveException {
   private static final long serialVersionUID = -8371452135194678898L;
 
+  public static final int CODE = 104;
+
+  public static final AlreadyOccupiedExcpetion INSTANCE = new AlreadyOccupiedExcpetion();
+
   @Override
   public int code() {
-    return 104;
+    return CODE;
   }
 
   @Override
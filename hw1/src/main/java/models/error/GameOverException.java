@@ -0,0 +1,19 @@
+package models.error;
+
+public class GameOverException extends InvalidMoveException {
+  private static final long serialVersionUID = 3417729520968810245L;
+
+  public static final int CODE = 105;
+
+  public static final GameOverException INSTANCE = new GameOverException();
+
+  @Override
+  public int code() {
+    return CODE;
+  }
+
+  @Override
+  public String cause() {
+    return "The game is over";
+  }
+}
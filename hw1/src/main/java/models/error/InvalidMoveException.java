@@ -1,8 +1,35 @@
 package models.error;
 
+/**
+ * A rejected move. Rejections are part of normal play, so these exceptions carry no
+ * stack trace and every kind has one shared instance, see {@link #forCode}.
+ */
 public abstract class InvalidMoveException extends Exception {
   private static final long serialVersionUID = 8953601149038132258L;
 
+  protected InvalidMoveException() {
+    super(null, null, false, false);
+  }
+
+  /**
+   * Get the shared exception for the specified rejection code.
+   * @return the exception, or null if no rejection has that code
+   */
+  public static InvalidMoveException forCode(int code) {
+    switch (code) {
+      case InvalidPositionException.CODE:
+        return InvalidPositionException.INSTANCE;
+      case NotYourTurnException.CODE:
+        return NotYourTurnException.INSTANCE;
+      case AlreadyOccupiedExcpetion.CODE:
+        return AlreadyOccupiedExcpetion.INSTANCE;
+      case GameOverException.CODE:
+        return GameOverException.INSTANCE;
+      default:
+        return null;
+    }
+  }
+
   public abstract int code();
 
   public abstract String cause();
@@ -3,9 +3,13 @@ package models.error;
 public class InvalidPositionException extends InvalidMoveException {
   private static final long serialVersionUID = 1743493112114560847L;
 
+  public static final int CODE = 102;
+
+  public static final InvalidPositionException INSTANCE = new InvalidPositionException();
+
   @Override
   public int code() {
-    return 102;
+    return CODE;
   }
 
   @Override
@@ -3,9 +3,13 @@ package models.error;
 public class NotYourTurnException extends InvalidMoveException {
   private static final long serialVersionUID = 949332918148263362L;
 
+  public static final int CODE = 103;
+
+  public static final NotYourTurnException INSTANCE = new NotYourTurnException();
+
   @Override
   public int code() {
-    return 103;
+    return CODE;
   }
 
   @Override
@@ -0,0 +1,101 @@
+package benchmark;
+
+import controllers.Broadcaster;
+import controllers.UiWebSocket;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the WebSocket broadcast loop itself, sending a board to every session of
+ * {@link UiWebSocket} the way the legacy broadcast of PlayGame does, with sessions
+ * whose sends complete immediately so that no network time is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BroadcastBenchmark {
+
+  private static final String BOARD_JSON = "{\"gameId\":1,\"p1\":{\"type\":\"X\",\"id\":1},"
+      + "\"p2\":{\"type\":\"O\",\"id\":2},\"gameStarted\":true,\"turn\":2,\"size\":3,"
+      + "\"winLength\":3,\"boardState\":[[\"X\",\"\\u0000\",\"\\u0000\"],"
+      + "[\"\\u0000\",\"\\u0000\",\"\\u0000\"],[\"\\u0000\",\"\\u0000\",\"\\u0000\"]],"
+      + "\"winner\":0,\"isDraw\":false}";
+
+  @Param({"1", "100", "10000"})
+  private int sessionCount;
+
+  private final List<Session> sessions = new ArrayList<>();
+
+  /**
+   * Register the configured number of stub sessions.
+   */
+  @Setup
+  public void setUp() {
+    RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(
+        RemoteEndpoint.class.getClassLoader(), new Class<?>[] {RemoteEndpoint.class},
+        (proxy, method, args) -> {
+          if (args != null && args.length == 2 && args[1] instanceof WriteCallback) {
+            ((WriteCallback) args[1]).writeSuccess();
+          }
+          return null;
+        });
+
+    for (int i = 0; i < sessionCount; ++i) {
+      Session session = (Session) Proxy.newProxyInstance(
+          Session.class.getClassLoader(), new Class<?>[] {Session.class},
+          (proxy, method, args) -> {
+            switch (method.getName()) {
+              case "getRemote":
+                return remote;
+              case "isOpen":
+                return true;
+              case "equals":
+                return proxy == args[0];
+              case "hashCode":
+                return System.identityHashCode(proxy);
+              default:
+                return null;
+            }
+          });
+      sessions.add(session);
+    }
+    UiWebSocket.getSessions().addAll(sessions);
+  }
+
+  /**
+   * Unregister the stub sessions.
+   */
+  @TearDown
+  public void tearDown() {
+    UiWebSocket.getSessions().removeAll(sessions);
+    sessions.forEach(Broadcaster::remove);
+    sessions.clear();
+  }
+
+  @Benchmark
+  public void sendGameBoardToAllPlayers() {
+    for (Session session : UiWebSocket.getSessions()) {
+      Broadcaster.send(session, BOARD_JSON, 1);
+    }
+  }
+}
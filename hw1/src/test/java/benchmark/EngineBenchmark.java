@@ -0,0 +1,68 @@
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+import models.AlphaBetaEngine;
+import models.Engine;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import models.error.InvalidMoveException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time the engines need to choose a move.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EngineBenchmark {
+
+  private final Engine alphaBeta = new AlphaBetaEngine();
+
+  private GameBoard small;
+
+  private GameBoard large;
+
+  /**
+   * Prepare an empty 3x3 game and a 15x15 game in progress.
+   */
+  @Setup
+  public void setUp() throws InvalidMoveException {
+    Player p1 = new Player('X', 1);
+    Player p2 = new Player('O', 2);
+    small = new GameBoard(1);
+    large = new GameBoard(2, 15, 5);
+    for (GameBoard board : new GameBoard[] {small, large}) {
+      board.setPlayer1(p1);
+      board.setPlayer2(p2);
+      board.startGame();
+    }
+
+    int[][] moves = {{7, 7}, {7, 8}, {8, 8}, {6, 6}, {8, 7}, {9, 6}};
+    for (int i = 0; i < moves.length; ++i) {
+      large.move(new Move(i % 2 == 0 ? p1 : p2, moves[i][0], moves[i][1]));
+    }
+  }
+
+  @Benchmark
+  public Move alphaBetaSmallBoard() {
+    return alphaBeta.bestMove(small);
+  }
+
+  @Benchmark
+  public Move alphaBetaLargeBoard() {
+    return alphaBeta.bestMove(large);
+  }
+}
@@ -0,0 +1,78 @@
+package benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import models.error.InvalidMoveException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link GameBoard#move}, including win and draw detection, measured by
+ * filling a whole board with a fixed pseudo-random sequence of moves.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GameBoardBenchmark {
+
+  @Param({"3", "15", "19"})
+  private int size;
+
+  private final Player p1 = new Player('X', 1);
+
+  private final Player p2 = new Player('O', 2);
+
+  private Move[] moves;
+
+  /**
+   * Shuffle every cell of the board into a move sequence alternating between players.
+   */
+  @Setup
+  public void setUp() {
+    List<Integer> cells = new ArrayList<>();
+    for (int i = 0; i < size * size; ++i) {
+      cells.add(i);
+    }
+    Collections.shuffle(cells, new Random(4156));
+
+    moves = new Move[cells.size()];
+    for (int i = 0; i < moves.length; ++i) {
+      int cell = cells.get(i);
+      moves[i] = new Move(i % 2 == 0 ? p1 : p2, cell / size, cell % size);
+    }
+  }
+
+  /**
+   * Play every cell of a fresh board, the result is one game worth of moves.
+   */
+  @Benchmark
+  public GameBoard fillBoard() throws InvalidMoveException {
+    GameBoard board = new GameBoard(1, size, Math.min(size, 5));
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+
+    for (Move move : moves) {
+      board.move(move);
+    }
+    return board;
+  }
+}
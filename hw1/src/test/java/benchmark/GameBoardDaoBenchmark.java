@@ -0,0 +1,81 @@
+package benchmark;
+
+import data.GameBoardDao;
+import java.io.File;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import models.GameBoard;
+import models.Player;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of persisting and loading games through {@link GameBoardDao} on a temporary
+ * SQLite file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GameBoardDaoBenchmark {
+
+  @Param({"1", "1000"})
+  private int storedGames;
+
+  private File file;
+
+  private GameBoardDao dao;
+
+  private GameBoard board;
+
+  /**
+   * Create a database with the configured number of saved games.
+   */
+  @Setup
+  public void setUp() throws Exception {
+    file = File.createTempFile("benchmark", ".db");
+    dao = new GameBoardDao(file.getPath());
+    dao.connect();
+
+    for (int i = 1; i <= storedGames; ++i) {
+      board = new GameBoard(i);
+      board.setPlayer1(new Player('X', 1));
+      board.setPlayer2(new Player('O', 2));
+      board.startGame();
+      dao.saveGameBoard(board);
+    }
+  }
+
+  /**
+   * Remove the temporary database.
+   */
+  @TearDown
+  public void tearDown() throws SQLException {
+    dao.close();
+    file.delete();
+  }
+
+  @Benchmark
+  public GameBoard saveGameBoard() throws SQLException {
+    dao.saveGameBoard(board);
+    return board;
+  }
+
+  @Benchmark
+  public List<GameBoard> getGameBoards() throws SQLException {
+    return dao.getGameBoards();
+  }
+}
@@ -0,0 +1,246 @@
+package benchmark;
+
+import com.google.gson.Gson;
+import controllers.PlayGame;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import models.GameBoard;
+import models.Message;
+import models.Move;
+import models.Player;
+
+/**
+ * Load test of the HTTP and web socket stack. Starts the server in this process, then
+ * plays many games at once through /startgame, /joingame and /move, with a subscription
+ * to /gameboard/:gameId for every game, and reports the throughput of moves and the
+ * latency of move responses and of the broadcast of every move.
+ *
+ * <p>Run with {@code mvn -P load -DskipTests integration-test}, configured by the system
+ * properties load.games (games in total), load.concurrency (games played at the same
+ * time, two players each) and load.thinkMillis (pause before every move).
+ */
+public class LoadGenerator {
+
+  private static final String HOST = "localhost:8080";
+
+  private static final Gson gson = new Gson();
+
+  private final HttpClient client = HttpClient.newHttpClient();
+
+  private final int thinkMillis = Integer.getInteger("load.thinkMillis", 10);
+
+  private final Recorder moveLatency = new Recorder();
+
+  private final Recorder broadcastLatency = new Recorder();
+
+  private final AtomicInteger invalidMoves = new AtomicInteger();
+
+  private final AtomicInteger failedGames = new AtomicInteger();
+
+  /**
+   * Start the server and run the load test.
+   */
+  public static void main(String[] args) throws Exception {
+    PlayGame.main(new String[0]);
+    try {
+      new LoadGenerator().run(Integer.getInteger("load.games", 2000),
+          Integer.getInteger("load.concurrency", 1000));
+    } finally {
+      PlayGame.stop();
+    }
+  }
+
+  private void run(int games, int concurrency) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(games);
+    AtomicInteger started = new AtomicInteger();
+    long begin = System.nanoTime();
+    for (int i = 0; i < Math.min(games, concurrency); ++i) {
+      startNext(games, started, done);
+    }
+    done.await();
+    double seconds = (System.nanoTime() - begin) / 1e9;
+
+    System.out.printf("%d games, %d failed, %d moves (%d rejected) in %.1f s: %.0f moves/s%n",
+        games, failedGames.get(), moveLatency.count(), invalidMoves.get(), seconds,
+        moveLatency.count() / seconds);
+    moveLatency.print("move response");
+    broadcastLatency.print("move to broadcast");
+  }
+
+  private void startNext(int games, AtomicInteger started, CountDownLatch done) {
+    if (started.getAndIncrement() >= games) {
+      return;
+    }
+
+    new Game().play().whenComplete((result, error) -> {
+      if (error != null) {
+        failedGames.incrementAndGet();
+      }
+      done.countDown();
+      startNext(games, started, done);
+    });
+  }
+
+  private CompletableFuture<HttpResponse<String>> send(String method, String path,
+      String form) {
+    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://" + HOST + path));
+    if ("POST".equals(method)) {
+      request.header("Content-Type", "application/x-www-form-urlencoded")
+          .POST(HttpRequest.BodyPublishers.ofString(form));
+    }
+    return client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString());
+  }
+
+  /**
+   * One game between two simulated players, who place stones on random empty cells.
+   */
+  private final class Game implements WebSocket.Listener {
+    private final Player p1 = new Player('X', 1);
+
+    private final Player p2 = new Player('O', 2);
+
+    private final StringBuilder frame = new StringBuilder();
+
+    private GameBoard board;
+
+    private WebSocket socket;
+
+    // Stones expected on the broadcast of the pending move and when it was sent
+    private volatile int pendingStones = -1;
+
+    private volatile long sentAt;
+
+    CompletableFuture<Void> play() {
+      return send("POST", "/startgame", "type=X")
+          .thenCompose(response -> {
+            int gameId = gson.fromJson(response.body(), GameBoard.class).getGameId();
+            board = new GameBoard(gameId);
+            board.setPlayer1(p1);
+            board.setPlayer2(p2);
+            board.startGame();
+            return client.newWebSocketBuilder()
+                .buildAsync(URI.create("ws://" + HOST + "/gameboard/" + gameId), this);
+          })
+          .thenCompose(ws -> {
+            socket = ws;
+            return send("GET", "/joingame/" + board.getGameId(), null);
+          })
+          .thenCompose(response -> nextMove())
+          .whenComplete((result, error) -> {
+            if (socket != null) {
+              socket.sendClose(WebSocket.NORMAL_CLOSURE, "");
+            }
+          });
+    }
+
+    private CompletableFuture<Void> nextMove() {
+      if (board.getWinner() != 0 || board.isDraw()) {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      int size = board.getSize();
+      int cell;
+      do {
+        cell = ThreadLocalRandom.current().nextInt(size * size);
+      } while (board.getCell(cell / size, cell % size) != 0);
+
+      Move move = new Move(board.getPlayer(board.getTurn()), cell / size, cell % size);
+      Executor delay = CompletableFuture.delayedExecutor(thinkMillis, TimeUnit.MILLISECONDS);
+      return CompletableFuture.runAsync(() -> { }, delay)
+          .thenCompose(ignored -> {
+            pendingStones = countStones(board) + 1;
+            sentAt = System.nanoTime();
+            return send("POST", "/move/" + board.getGameId() + "/" + move.getPlayer().getId(),
+                "x=" + move.getX() + "&y=" + move.getY());
+          })
+          .thenCompose(response -> {
+            moveLatency.record(System.nanoTime() - sentAt);
+            if (gson.fromJson(response.body(), Message.class).isValid()) {
+              try {
+                board.move(move);
+              } catch (Exception e) {
+                throw new IllegalStateException(e);
+              }
+            } else {
+              invalidMoves.incrementAndGet();
+            }
+            return nextMove();
+          });
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+      frame.append(data);
+      if (last) {
+        long now = System.nanoTime();
+        GameBoard update = gson.fromJson(frame.toString(), GameBoard.class);
+        frame.setLength(0);
+        if (countStones(update) == pendingStones) {
+          pendingStones = -1;
+          broadcastLatency.record(now - sentAt);
+        }
+      }
+      webSocket.request(1);
+      return null;
+    }
+  }
+
+  private static int countStones(GameBoard board) {
+    int stones = 0;
+    for (int i = 0; i < board.getSize(); ++i) {
+      for (int j = 0; j < board.getSize(); ++j) {
+        if (board.getCell(i, j) != 0) {
+          stones++;
+        }
+      }
+    }
+    return stones;
+  }
+
+  /**
+   * Collects latencies in nanoseconds.
+   */
+  private static final class Recorder {
+    private long[] values = new long[1024];
+
+    private int count;
+
+    synchronized void record(long nanos) {
+      if (count == values.length) {
+        values = Arrays.copyOf(values, count * 2);
+      }
+      values[count++] = nanos;
+    }
+
+    synchronized int count() {
+      return count;
+    }
+
+    synchronized void print(String name) {
+      long[] sorted = Arrays.copyOf(values, count);
+      Arrays.sort(sorted);
+      System.out.printf("%s latency (ms): p50 %.2f, p99 %.2f, p999 %.2f, max %.2f%n", name,
+          percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+          percentile(sorted, 1));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+      if (sorted.length == 0) {
+        return Double.NaN;
+      }
+      int index = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+      return sorted[Math.max(0, index)] / 1e6;
+    }
+  }
+}
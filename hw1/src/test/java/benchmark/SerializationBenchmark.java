@@ -0,0 +1,81 @@
+package benchmark;
+
+import com.google.gson.Gson;
+import java.util.concurrent.TimeUnit;
+import models.GameBoard;
+import models.JsonEncoder;
+import models.Message;
+import models.Move;
+import models.Player;
+import models.error.InvalidMoveException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of producing the JSON sent after every move: the move result and the board.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SerializationBenchmark {
+
+  private final Gson gson = new Gson();
+
+  private GameBoard board;
+
+  private String boardJson;
+
+  /**
+   * Prepare a game in progress.
+   */
+  @Setup
+  public void setUp() throws InvalidMoveException {
+    Player p1 = new Player('X', 1);
+    Player p2 = new Player('O', 2);
+    board = new GameBoard(1);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+    board.move(new Move(p1, 0, 0));
+    board.move(new Move(p2, 1, 1));
+    board.move(new Move(p1, 2, 2));
+
+    boardJson = gson.toJson(board);
+  }
+
+  @Benchmark
+  public String serializeGameBoard() {
+    return gson.toJson(board);
+  }
+
+  @Benchmark
+  public String encodeGameBoard() {
+    return JsonEncoder.encode(board);
+  }
+
+  @Benchmark
+  public GameBoard deserializeGameBoard() {
+    return gson.fromJson(boardJson, GameBoard.class);
+  }
+
+  @Benchmark
+  public String serializeMessage() {
+    return gson.toJson(new Message(true, 100, ""));
+  }
+
+  @Benchmark
+  public String encodeMessage() {
+    return JsonEncoder.encode(new Message(true, 100, ""));
+  }
+}
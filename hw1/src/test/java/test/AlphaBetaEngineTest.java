@@ -0,0 +1,84 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import models.AlphaBetaEngine;
+import models.Engine;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+
+public class AlphaBetaEngineTest {
+  private final Engine engine = new AlphaBetaEngine();
+  private final Player p1 = new Player('X', 1);
+  private final Player p2 = new Player('O', 2);
+
+  private GameBoard newBoard(int size, int winLength) {
+    GameBoard board = new GameBoard(1, size, winLength);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+    return board;
+  }
+
+  /**
+   * Let the engine answer every possible sequence of moves of player 1.
+   */
+  private void neverLoses(GameBoard board) throws Exception {
+    if (board.getWinner() != 0 || board.isDraw()) {
+      assertNotEquals(1, board.getWinner());
+      return;
+    }
+
+    for (int x = 0; x < 3; ++x) {
+      for (int y = 0; y < 3; ++y) {
+        if (board.getCell(x, y) != 0) {
+          continue;
+        }
+
+        GameBoard copy = board.copy();
+        copy.move(new Move(p1, x, y));
+        if (copy.getWinner() == 0 && !copy.isDraw()) {
+          copy.move(engine.bestMove(copy));
+        }
+        neverLoses(copy);
+      }
+    }
+  }
+
+  @Test
+  public void perfectOnSmallBoard() throws Exception {
+    neverLoses(newBoard(3, 3));
+
+    // Against itself every game is a draw
+    GameBoard board = newBoard(3, 3);
+    while (board.getWinner() == 0 && !board.isDraw()) {
+      board.move(engine.bestMove(board));
+    }
+    assertEquals(true, board.isDraw());
+  }
+
+  @Test
+  public void blocksAndWinsOnLargeBoard() throws Exception {
+    GameBoard board = newBoard(15, 5);
+    board.move(new Move(p1, 7, 3));
+    board.move(new Move(p2, 0, 0));
+    board.move(new Move(p1, 7, 4));
+    board.move(new Move(p2, 0, 1));
+    board.move(new Move(p1, 7, 5));
+    board.move(new Move(p2, 14, 14));
+    board.move(new Move(p1, 7, 6));
+
+    // Player 1 threatens five in a row on both ends, one of them must be blocked
+    Move block = engine.bestMove(board);
+    assertEquals(7, block.getX());
+    assertEquals(true, block.getY() == 2 || block.getY() == 7);
+    board.move(block);
+
+    Move win = engine.bestMove(board);
+    board.move(win);
+    assertEquals(1, board.getWinner());
+  }
+}
@@ -1,8 +1,14 @@
 package test;
 
 import com.google.gson.Gson;
+import controllers.UiWebSocket;
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+import models.BinaryEncoder;
 import models.GameBoard;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
@@ -19,6 +25,9 @@ public class BoardReceiver {
   private WebSocketClient client;
   private CountDownLatch connectLatch;
   private CountDownLatch messageLatch;
+  private InetSocketAddress localAddress;
+  private Supplier<Collection<Session>> serverSessions;
+  private String acceptedProtocol;
 
   /**
    * Construct a websocket client that receives the latest gameboard.
@@ -27,13 +36,42 @@ public class BoardReceiver {
    *     of gameboard update is received.
    */
   public BoardReceiver(String dest, int moveCount) throws Exception {
+    this(dest, moveCount, UiWebSocket::getSessions);
+  }
+
+  /**
+   * Construct a websocket client that receives the latest gameboard.
+   * @param serverSessions the sessions the server registers the client in
+   * @param subProtocols the subprotocols requested by the client
+   */
+  public BoardReceiver(String dest, int moveCount,
+      Supplier<Collection<Session>> serverSessions, String... subProtocols) throws Exception {
+    this.serverSessions = serverSessions;
     connectLatch = new CountDownLatch(1);
     messageLatch = new CountDownLatch(moveCount);
     client = new WebSocketClient();
 
     client.start();
-    client.connect(this, new URI(dest), new ClientUpgradeRequest());
+    ClientUpgradeRequest request = new ClientUpgradeRequest();
+    request.setSubProtocols(subProtocols);
+    client.connect(this, new URI(dest), request);
     connectLatch.await();
+    awaitServerSession();
+  }
+
+  /**
+   * The client may see the upgrade complete before the server registers the session,
+   * wait for the registration so that no update is missed.
+   */
+  private void awaitServerSession() throws InterruptedException {
+    while (serverSessions.get().stream()
+        .noneMatch(s -> localAddress.equals(s.getRemoteAddress()))) {
+      Thread.sleep(1);
+    }
+  }
+
+  public String getAcceptedProtocol() {
+    return acceptedProtocol;
   }
 
   public GameBoard getBoard() {
@@ -50,6 +88,8 @@ public class BoardReceiver {
 
   @OnWebSocketConnect
   public void onConnect(Session session) {
+    localAddress = session.getLocalAddress();
+    acceptedProtocol = session.getUpgradeResponse().getAcceptedSubProtocol();
     connectLatch.countDown();
   }
 
@@ -58,4 +98,10 @@ public class BoardReceiver {
     this.board = gson.fromJson(msg, GameBoard.class);
     messageLatch.countDown();
   }
+
+  @OnWebSocketMessage
+  public void onMessage(byte[] buffer, int offset, int length) {
+    this.board = BinaryEncoder.decode(ByteBuffer.wrap(buffer, offset, length));
+    messageLatch.countDown();
+  }
 }
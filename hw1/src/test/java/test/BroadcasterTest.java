@@ -0,0 +1,114 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import controllers.Broadcaster;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import metrics.Metrics;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.jupiter.api.Test;
+
+public class BroadcasterTest {
+
+  private final List<String> sent = new ArrayList<>();
+  private final List<WriteCallback> inFlight = new ArrayList<>();
+  private boolean closed;
+  private boolean failSends;
+
+  /**
+   * A session whose sends only complete when the test completes them.
+   */
+  private Session stalledSession() {
+    RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(
+        RemoteEndpoint.class.getClassLoader(), new Class<?>[] {RemoteEndpoint.class},
+        (proxy, method, args) -> {
+          sent.add((String) args[0]);
+          if (failSends) {
+            throw new IllegalStateException("Session closed");
+          }
+          inFlight.add((WriteCallback) args[1]);
+          return null;
+        });
+
+    return (Session) Proxy.newProxyInstance(
+        Session.class.getClassLoader(), new Class<?>[] {Session.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getRemote":
+              return remote;
+            case "isOpen":
+              return !closed;
+            case "close":
+              closed = true;
+              return null;
+            case "equals":
+              return proxy == args[0];
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void slowClientGetsLatestStateThenIsEvicted() {
+    Session session = stalledSession();
+    Broadcaster.send(session, "first", 1);
+    for (int i = 0; i < 100; ++i) {
+      Broadcaster.send(session, "board " + i, 1);
+    }
+    Broadcaster.send(session, "board of game 2", 2);
+    assertEquals(1, sent.size());
+
+    // Every state of game 1 took the place of the previous one in the queue
+    inFlight.get(0).writeSuccess();
+    inFlight.get(1).writeSuccess();
+    assertEquals(List.of("first", "board 99", "board of game 2"), sent);
+
+    // Messages that cannot be replaced disconnect a client that is too far behind
+    for (int i = 0; i < 100 && !closed; ++i) {
+      Broadcaster.send(session, "delta " + i, null);
+    }
+    assertEquals(true, closed);
+    Broadcaster.remove(session);
+  }
+
+  @Test
+  public void failedSendEvictsClient() {
+    failSends = true;
+    Session session = stalledSession();
+    Broadcaster.send(session, "first", 1);
+    assertEquals(true, closed);
+
+    // Nothing is sent to the closed session any more
+    failSends = false;
+    Broadcaster.send(session, "second", 1);
+    assertEquals(1, sent.size());
+    Broadcaster.remove(session);
+  }
+
+  @Test
+  public void failedWriteClosesClient() {
+    LongAdder evictions = Metrics.counter("websocket_evictions_total",
+        "Web socket clients disconnected for lagging", "reason", "Send failed");
+    long evicted = evictions.sum();
+    Session session = stalledSession();
+    Broadcaster.send(session, "first", 1);
+    assertEquals(false, closed);
+
+    inFlight.get(0).writeFailed(new IllegalStateException("Connection reset"));
+    assertEquals(true, closed);
+    assertEquals(evicted + 1, evictions.sum());
+
+    // Nothing is sent to the closed session any more
+    Broadcaster.send(session, "second", 1);
+    assertEquals(1, sent.size());
+    Broadcaster.remove(session);
+  }
+}
@@ -0,0 +1,54 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import data.GameArchive;
+import java.nio.file.Path;
+import java.util.List;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import models.PlayerStats;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GameArchiveTest {
+
+  @TempDir
+  Path directory;
+
+  private static GameBoard finishedGame(int gameId) throws Exception {
+    GameBoard board = new GameBoard(gameId);
+    board.setPlayer1(new Player('X', 1));
+    board.setPlayer2(new Player('O', 2));
+    board.startGame();
+    board.move(new Move(board.getPlayer1(), 0, 0));
+    board.move(new Move(board.getPlayer2(), 1, 0));
+    board.move(new Move(board.getPlayer1(), 0, 1));
+    board.move(new Move(board.getPlayer2(), 1, 1));
+    board.move(new Move(board.getPlayer1(), 0, 2));
+    return board;
+  }
+
+  @Test
+  public void gameIsArchivedOnce() throws Exception {
+    GameArchive archive = new GameArchive(directory.resolve("history.db").toString());
+    archive.connect();
+
+    assertTrue(archive.add(finishedGame(7), "ann", "bob").get());
+    // Queued again after a restart, e.g. because the game store still holds it
+    assertFalse(archive.add(finishedGame(7), "ann", "bob").get());
+    assertTrue(archive.add(finishedGame(8)).get());
+
+    assertEquals(2, archive.page(0, 10).size());
+    assertEquals(8, archive.getLastGameId());
+    List<PlayerStats> stats = archive.getPlayerStats();
+    assertEquals(2, stats.size());
+    for (PlayerStats player : stats) {
+      assertEquals(1, player.getWins() + player.getLosses());
+    }
+    archive.close();
+  }
+}
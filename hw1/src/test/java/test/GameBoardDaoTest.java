@@ -0,0 +1,113 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import data.GameBoardDao;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class GameBoardDaoTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void walModeKeepsGamesAcrossResetAndReopen() throws Exception {
+    String path = directory.resolve("games.db").toString();
+    GameBoardDao dao = new GameBoardDao(path, "WAL", "NORMAL");
+    dao.connect();
+
+    GameBoard board = new GameBoard(1);
+    board.setPlayer1(new Player('X', 1));
+    board.setPlayer2(new Player('O', 2));
+    board.startGame();
+    board.move(new Move(board.getPlayer1(), 1, 1));
+    dao.saveGameBoard(board);
+    dao.reset();
+    assertEquals(0, dao.getGameBoards().size());
+
+    dao.saveGameBoard(board);
+    board.move(new Move(board.getPlayer2(), 0, 2));
+    board.setPlayerName(2, "bob");
+    board.setBot(true);
+    dao.saveGameBoard(board);
+    dao.close();
+
+    dao.connect();
+    List<GameBoard> boards = dao.getGameBoards();
+    assertEquals(1, boards.size());
+    assertEquals('X', boards.get(0).getCell(1, 1));
+    assertEquals('O', boards.get(0).getCell(0, 2));
+    assertEquals(1, boards.get(0).getTurn());
+    assertEquals(null, boards.get(0).getPlayerName(1));
+    assertEquals("bob", boards.get(0).getPlayerName(2));
+    assertEquals(true, boards.get(0).hasBot());
+
+    dao.deleteGameBoard(1);
+    assertEquals(0, dao.getGameBoards().size());
+    dao.close();
+  }
+
+  @Test
+  public void unversionedDatabaseIsMigrated() throws Exception {
+    String path = directory.resolve("games.db").toString();
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        Statement stmt = conn.createStatement()) {
+      stmt.execute("CREATE TABLE player (id INTEGER PRIMARY KEY NOT NULL, "
+          + "character CHARACTEER(1));");
+      stmt.execute("CREATE TABLE game_board (id INTEGER PRIMARY KEY NOT NULL, p1 INTEGER, "
+          + "p2 INTEGER, game_started INTEGER, turn INTEGER, board_state CHARACTER(9), "
+          + "winner INTEGER, is_draw INTEGER);");
+      // Marks were saved with setInt, as their character codes
+      try (PreparedStatement insert = conn.prepareStatement(
+          "INSERT INTO player VALUES (?, ?);")) {
+        insert.setInt(1, 1);
+        insert.setInt(2, 'X');
+        insert.executeUpdate();
+        insert.setInt(1, 2);
+        insert.setInt(2, 'O');
+        insert.executeUpdate();
+      }
+      try (PreparedStatement insert = conn.prepareStatement(
+          "INSERT INTO game_board VALUES (1, 1, 2, 1, 2, ?, 0, 0);")) {
+        insert.setString(1, "X" + new String(new char[8]));
+        insert.executeUpdate();
+      }
+    }
+
+    GameBoardDao dao = new GameBoardDao(path);
+    dao.connect();
+    List<GameBoard> boards = dao.getGameBoards();
+    assertEquals(1, boards.size());
+    assertEquals(3, boards.get(0).getSize());
+    assertEquals('X', boards.get(0).getCell(0, 0));
+    assertEquals('X', boards.get(0).getPlayer1().getType());
+    assertEquals('O', boards.get(0).getPlayer2().getType());
+    assertEquals(2, boards.get(0).getTurn());
+    dao.close();
+  }
+
+  @Test
+  public void newerSchemaIsRejected() throws Exception {
+    String path = directory.resolve("games.db").toString();
+    try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        Statement stmt = conn.createStatement()) {
+      stmt.execute("PRAGMA user_version = 99;");
+    }
+
+    GameBoardDao dao = new GameBoardDao(path);
+    assertThrows(SQLException.class, dao::connect);
+    dao.close();
+  }
+}
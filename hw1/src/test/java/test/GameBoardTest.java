@@ -0,0 +1,332 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import models.BoardUpdate;
+import models.GameBoard;
+import models.GameRecord;
+import models.HistoryEncoder;
+import models.JsonEncoder;
+import models.Message;
+import models.Move;
+import models.Player;
+import models.error.AlreadyOccupiedExcpetion;
+import models.error.GameOverException;
+import models.error.InvalidMoveException;
+import models.error.InvalidPositionException;
+import models.error.NotYourTurnException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class GameBoardTest {
+  private static final Gson gson = new Gson();
+
+  private GameBoard board;
+  private Player p1;
+  private Player p2;
+
+  /**
+   * Create a started game between X and O.
+   */
+  @BeforeEach
+  public void setUp() {
+    board = new GameBoard(1);
+    p1 = new Player('X', 1);
+    p2 = new Player('O', 2);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+  }
+
+  private void play(int... cells) throws InvalidMoveException {
+    for (int i = 0; i < cells.length; i += 2) {
+      board.move(new Move(i % 4 == 0 ? p1 : p2, cells[i], cells[i + 1]));
+    }
+  }
+
+  @Test
+  public void rejectsInvalidMoves() throws Exception {
+    assertThrows(InvalidPositionException.class, () -> board.move(new Move(p1, 3, 0)));
+    assertThrows(NotYourTurnException.class, () -> board.move(new Move(p2, 0, 0)));
+    play(0, 0);
+    assertThrows(AlreadyOccupiedExcpetion.class, () -> board.move(new Move(p2, 0, 0)));
+  }
+
+  @Test
+  public void detectsEveryWinningLine() throws Exception {
+    int[][] lines = {
+        {0, 0, 0, 1, 0, 2}, {1, 0, 1, 1, 1, 2}, {2, 0, 2, 1, 2, 2},
+        {0, 0, 1, 0, 2, 0}, {0, 1, 1, 1, 2, 1}, {0, 2, 1, 2, 2, 2},
+        {0, 0, 1, 1, 2, 2}, {2, 0, 1, 1, 0, 2},
+    };
+
+    for (int[] line : lines) {
+      setUp();
+      int[] replies = new int[4];
+      int n = 0;
+      for (int x = 0; x < 3 && n < 4; ++x) {
+        for (int y = 0; y < 3 && n < 4; ++y) {
+          boolean onLine = false;
+          for (int k = 0; k < 6; k += 2) {
+            onLine |= line[k] == x && line[k + 1] == y;
+          }
+          if (!onLine) {
+            replies[n++] = x;
+            replies[n++] = y;
+          }
+        }
+      }
+
+      play(line[0], line[1], replies[0], replies[1], line[2], line[3], replies[2], replies[3]);
+      assertEquals(0, board.getWinner());
+      play(line[4], line[5]);
+      assertEquals(1, board.getWinner());
+    }
+  }
+
+  @Test
+  public void detectsDraw() throws Exception {
+    play(0, 0, 0, 2, 0, 1, 1, 0, 1, 2, 1, 1, 2, 0, 2, 1, 2, 2);
+    assertEquals(0, board.getWinner());
+    assertEquals(true, board.isDraw());
+  }
+
+  @Test
+  public void noMovesOnceTheGameIsWon() throws Exception {
+    play(0, 0, 1, 0, 0, 1, 1, 1, 0, 2);
+    assertEquals(1, board.getWinner());
+
+    // Completing the line of player 2 would overwrite the archived outcome
+    assertEquals(GameOverException.CODE, board.tryMove(p2, 1, 2));
+    assertThrows(GameOverException.class, () -> board.move(new Move(p2, 2, 2)));
+    assertEquals(1, board.getWinner());
+    assertEquals(0, board.getCell(1, 2));
+  }
+
+  @Test
+  public void largeBoardNeedsFiveInARow() throws Exception {
+    board = new GameBoard(1, 15, 5);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+
+    // Diagonal from (3, 3) to (7, 7), placed out of order
+    play(3, 3, 0, 0, 5, 5, 0, 1, 7, 7, 0, 2, 4, 4, 0, 3);
+    assertEquals(0, board.getWinner());
+    play(6, 6);
+    assertEquals(1, board.getWinner());
+  }
+
+  @Test
+  public void smallBoardWithShorterLine() throws Exception {
+    board = new GameBoard(1, 4, 3);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+
+    play(3, 1, 0, 0, 2, 2, 0, 1);
+    assertEquals(0, board.getWinner());
+    play(1, 3);
+    assertEquals(1, board.getWinner());
+  }
+
+  @Test
+  public void rejectsInvalidBoards() {
+    assertEquals(false, GameBoard.isValidBoard(2, 2));
+    assertEquals(false, GameBoard.isValidBoard(5, 6));
+    assertThrows(IllegalArgumentException.class, () -> new GameBoard(1, 100, 5));
+  }
+
+  @Test
+  public void jsonKeepsBoardShape() throws Exception {
+    play(0, 0, 1, 1);
+    String json = gson.toJson(board);
+    assertEquals("{\"gameId\":1,\"p1\":{\"type\":\"X\",\"id\":1},\"p2\":{\"type\":\"O\",\"id\":2},"
+        + "\"gameStarted\":true,\"turn\":1,\"size\":3,\"winLength\":3,"
+        + "\"boardState\":[[\"X\",\"\\u0000\",\"\\u0000\"],"
+        + "[\"\\u0000\",\"O\",\"\\u0000\"],[\"\\u0000\",\"\\u0000\",\"\\u0000\"]],"
+        + "\"winner\":0,\"isDraw\":false}", json);
+
+    GameBoard copy = gson.fromJson(json, GameBoard.class);
+    assertEquals('X', copy.getCell(0, 0));
+    assertEquals('O', copy.getCell(1, 1));
+    assertEquals(0, copy.getCell(2, 2));
+    assertEquals(1, copy.getTurn());
+  }
+
+  @Test
+  public void deltaCarriesOnlyTheMove() throws Exception {
+    long version = board.getVersion();
+    play(0, 0);
+    Move move = new Move(p2, 2, 1);
+    board.move(move);
+    assertEquals(version + 2, board.getVersion());
+
+    assertEquals("{\"type\":\"delta\",\"gameId\":1,\"version\":" + board.getVersion()
+        + ",\"x\":2,\"y\":1,\"mark\":\"O\",\"turn\":1,\"winner\":0,\"isDraw\":false}",
+        gson.toJson(BoardUpdate.delta(board, move)));
+    assertEquals(gson.toJson(BoardUpdate.delta(board, move)),
+        JsonEncoder.encode(BoardUpdate.delta(board, move)));
+    assertEquals(gson.toJson(BoardUpdate.full(board)),
+        JsonEncoder.encode(BoardUpdate.full(board)));
+
+    // Rejected moves do not change the version
+    assertThrows(AlreadyOccupiedExcpetion.class, () -> board.move(new Move(p1, 2, 1)));
+    assertEquals(version + 2, board.getVersion());
+    assertEquals(board.getVersion(), board.copy().getVersion());
+  }
+
+  @Test
+  public void encoderMatchesGson() throws Exception {
+    GameBoard waiting = new GameBoard(7, 4, 3);
+    waiting.setPlayer1(new Player('<', 1));
+    assertEquals(gson.toJson(waiting), JsonEncoder.encode(waiting));
+
+    play(0, 0, 1, 1, 0, 1);
+    String json = board.toJson();
+    assertEquals(gson.toJson(board), json);
+    assertEquals(true, json == board.toJson());
+    board.move(new Move(p2, 2, 2));
+    assertEquals(gson.toJson(board), board.toJson());
+
+    assertEquals(gson.toJson(new Message(true, 100, "")), JsonEncoder.moveResult(null));
+    InvalidMoveException e = assertThrows(InvalidMoveException.class,
+        () -> board.move(new Move(p1, 0, 0)));
+    assertEquals(gson.toJson(new Message(false, e.code(), e.cause())),
+        JsonEncoder.moveResult(e));
+  }
+
+  @Test
+  public void concurrentMovesOnlyOneAccepted() throws Exception {
+    GameBoard before = board.copy();
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger accepted = new AtomicInteger();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < 9; ++i) {
+      int cell = i;
+      Thread thread = new Thread(() -> {
+        try {
+          start.await();
+          board.move(new Move(p1, cell / 3, cell % 3));
+          accepted.incrementAndGet();
+        } catch (InvalidMoveException | InterruptedException e) {
+          // Lost the race, the turn already passed to O
+        }
+      });
+      thread.start();
+      threads.add(thread);
+    }
+
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, accepted.get());
+    assertEquals(2, board.getTurn());
+    assertEquals(before.getVersion() + 1, board.getVersion());
+    int stones = 0;
+    for (char[] row : board.getBoardState()) {
+      for (char c : row) {
+        stones += c == 'X' ? 1 : 0;
+      }
+    }
+    assertEquals(1, stones);
+
+    // A copy is a snapshot, later moves do not change it
+    assertEquals(1, before.getTurn());
+    assertEquals(gson.toJson(new GameBoard(1, p1, p2, true, 1, new char[3][3], 3, 0, false)),
+        gson.toJson(before));
+  }
+
+  @Test
+  public void rejectedMovesDoNotAllocate() throws Exception {
+    play(1, 1);
+    int rejected = 0;
+    for (int i = 0; i < 20_000; ++i) {
+      rejected += rejectAll();
+    }
+
+    com.sun.management.ThreadMXBean threads =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long thread = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(thread);
+    for (int i = 0; i < 100_000; ++i) {
+      rejected += rejectAll();
+    }
+    long allocated = threads.getThreadAllocatedBytes(thread) - before;
+    assertEquals(120_000 * 3, rejected);
+    assertTrue(allocated < 300_000, allocated + " bytes for 300000 rejected moves");
+
+    // Callers of the exception API get shared exceptions without a stack trace
+    NotYourTurnException e = assertThrows(NotYourTurnException.class,
+        () -> board.move(new Move(p1, 0, 0)));
+    assertSame(NotYourTurnException.INSTANCE, e);
+    assertEquals(0, e.getStackTrace().length);
+    assertSame(Move.of(Player.of('X', 1), 0, 2), Move.of(Player.of('X', 1), 0, 2));
+  }
+
+  @Test
+  public void historyEncodingRoundTrip() throws Exception {
+    play(1, 1, 0, 0, 0, 1, 2, 1, 1, 0, 1, 2, 0, 2, 2, 0, 2, 2);
+    assertTrue(board.isDraw());
+    byte[] data = HistoryEncoder.encode(board);
+    assertTrue(data.length <= 9, data.length + " bytes");
+
+    GameRecord record = HistoryEncoder.decode(7, 1, 0, data);
+    assertEquals(7, record.getId());
+    assertEquals(0, record.getWinner());
+    assertTrue(record.isDraw());
+    assertTrue(record.isComplete());
+    assertEquals(9, record.getMoves().length);
+    assertArrayEquals(new int[] {1, 1}, record.getMoves()[0]);
+    assertArrayEquals(new int[] {2, 2}, record.getMoves()[8]);
+
+    GameBoard large = new GameBoard(2, 19, 5);
+    large.setPlayer1(new Player('A', 1));
+    large.setPlayer2(new Player('B', 2));
+    large.startGame();
+    for (int i = 0; i < 5; ++i) {
+      large.move(new Move(large.getPlayer1(), 18, 14 + i));
+      if (i < 4) {
+        large.move(new Move(large.getPlayer2(), i, 0));
+      }
+    }
+    record = HistoryEncoder.decode(8, 2, 0, HistoryEncoder.encode(large));
+    assertEquals(1, record.getWinner());
+    assertEquals(19, record.getSize());
+    assertArrayEquals(new int[] {18, 18}, record.getMoves()[8]);
+    assertTrue(gson.toJson(record).startsWith(
+        "{\"id\":8,\"gameId\":2,\"finishedAt\":0,\"size\":19,\"winLength\":5,"
+        + "\"p1\":\"A\",\"p2\":\"B\",\"winner\":1,\"isDraw\":false,\"moves\":[[18,14],"));
+
+    // Restored in the middle of the game, the order of the first four stones is lost
+    char[][] cells = {{'X', 'X', 0}, {'O', 'O', 0}, {0, 0, 0}};
+    GameBoard restored = new GameBoard(3, p1, p2, true, 1, cells, 3, 0, false);
+    restored.move(new Move(p1, 0, 2));
+    record = HistoryEncoder.decode(9, 3, 0, HistoryEncoder.encode(restored));
+    assertEquals(1, record.getWinner());
+    assertFalse(record.isComplete());
+    assertEquals(5, record.getMoves().length);
+    assertArrayEquals(new int[] {0, 2}, record.getMoves()[4]);
+  }
+
+  private int rejectAll() {
+    int rejected = 0;
+    rejected += JsonEncoder.moveResult(board.tryMove(p1, 0, 0)).length() > 0 ? 1 : 0;
+    rejected += JsonEncoder.moveResult(board.tryMove(p2, 1, 1)).length() > 0 ? 1 : 0;
+    rejected += JsonEncoder.moveResult(board.tryMove(p2, 3, 0)).length() > 0 ? 1 : 0;
+    return rejected;
+  }
+}
@@ -0,0 +1,113 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import controllers.GameShards;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+public class GameShardsTest {
+
+  @Test
+  public void commandsOfAGameRunInOrder() throws Exception {
+    GameShards shards = new GameShards(4, 1024);
+    List<String> log = new ArrayList<>();
+    List<CompletableFuture<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < 100; ++i) {
+      int n = i;
+      // Game 5 and game 9 share a shard
+      results.add(shards.submit(i % 2 == 0 ? 5 : 9, new GameShards.Command<Integer>() {
+        @Override
+        public Integer apply() {
+          log.add("apply " + n);
+          return n;
+        }
+
+        @Override
+        public void persist() {
+          log.add("persist " + n);
+        }
+      }));
+    }
+
+    for (int i = 0; i < 100; ++i) {
+      assertEquals(i, results.get(i).get());
+    }
+    shards.close();
+
+    // Within a batch every command is applied before any is persisted
+    List<String> applied = new ArrayList<>();
+    List<String> persisted = new ArrayList<>();
+    for (String entry : log) {
+      (entry.startsWith("apply") ? applied : persisted).add(entry.substring(entry.indexOf(' ')));
+    }
+    assertEquals(applied, persisted);
+    assertEquals(" 99", applied.get(99));
+  }
+
+  @Test
+  public void overloadedShardRejects() throws Exception {
+    GameShards shards = new GameShards(1, 1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CompletableFuture<Void> first = shards.submit(1, () -> {
+      blocked.countDown();
+      release.await();
+      return null;
+    });
+    blocked.await();
+
+    CompletableFuture<Void> queued = shards.submit(2, () -> null);
+    ExecutionException e = assertThrows(ExecutionException.class,
+        () -> shards.submit(3, () -> null).get());
+    assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+
+    release.countDown();
+    first.get();
+    queued.get();
+    shards.close();
+  }
+
+  @Test
+  public void callersWaitForTheSaveWhenAsked() throws Exception {
+    GameShards shards = new GameShards(1, 16, null, true);
+
+    AtomicBoolean persisted = new AtomicBoolean();
+    CompletableFuture<Boolean> saved = shards.submit(1, new GameShards.Command<Boolean>() {
+      @Override
+      public Boolean apply() {
+        return persisted.get();
+      }
+
+      @Override
+      public void persist() {
+        persisted.set(true);
+      }
+    });
+    assertEquals(false, saved.get());
+    assertEquals(true, persisted.get());
+
+    CompletableFuture<Void> failed = shards.submit(1, new GameShards.Command<Void>() {
+      @Override
+      public Void apply() {
+        return null;
+      }
+
+      @Override
+      public void persist() throws SQLException {
+        throw new SQLException("Disk on fire");
+      }
+    });
+    ExecutionException e = assertThrows(ExecutionException.class, failed::get);
+    assertEquals(SQLException.class, e.getCause().getClass());
+    shards.close();
+  }
+}
@@ -2,14 +2,22 @@ package test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import controllers.GameChannels;
 import controllers.PlayGame;
 import java.io.File;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import kong.unirest.HttpResponse;
 import kong.unirest.Unirest;
 import models.GameBoard;
 import models.Message;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -32,6 +40,15 @@ public class GameTest {
     return gson.fromJson(response.getBody(), Message.class);
   }
 
+  private static Message testMove(int gameId, int player, int x, int y) {
+    HttpResponse<String> response = Unirest
+        .post("http://localhost:8080/move/" + gameId + "/" + player)
+        .body("x=" + x +  "&y=" + y)
+        .asString();
+
+    return gson.fromJson(response.getBody(), Message.class);
+  }
+
   private static GameBoard testStartGame(char type) {
     HttpResponse<String> response = Unirest.post("http://localhost:8080/startgame").body("type=" + type).asString();
     assertEquals(response.getStatus(), 200);
@@ -287,6 +304,357 @@ public class GameTest {
     }
   }
 
+  @Test
+  @Order(2)
+  public void multipleGamesAreIndependent() {
+    int game1 = testStartGame('X').getGameId();
+    int game2 = testStartGame('O').getGameId();
+    testJoinGame();
+    assertNotEquals(game1, game2);
+
+    HttpResponse<String> response = Unirest.get("http://localhost:8080/joingame/" + game1)
+        .asString();
+    assertEquals(200, response.getStatus());
+
+    assertEquals(true, testMove(game1, 1, 0, 0).isValid());
+    assertEquals(true, testMove(game2, 1, 0, 0).isValid());
+    assertEquals(true, testMove(game1, 2, 1, 1).isValid());
+    assertEquals(false, testMove(game2, 1, 1, 1).isValid());
+  }
+
+  @Test
+  @Order(2)
+  public void gameChannelOnlyReceivesItsGame() throws Exception {
+    int game1 = testStartGame('X').getGameId();
+    testJoinGame();
+    int game2 = testStartGame('O').getGameId();
+    testJoinGame();
+
+    BoardReceiver receiver = new BoardReceiver("ws://localhost:8080/gameboard/" + game1, 1,
+        () -> GameChannels.getSessions(game1));
+    try {
+      assertEquals(true, testMove(game2, 1, 0, 0).isValid());
+      assertEquals(true, testMove(game1, 1, 2, 2).isValid());
+      receiver.await();
+      assertEquals(game1, receiver.getBoard().getGameId());
+      assertEquals('X', receiver.getBoard().getCell(2, 2));
+    } finally {
+      receiver.stop();
+    }
+
+    // The channel is dropped once its last subscriber leaves
+    while (!GameChannels.getSessions(game1).isEmpty()) {
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  @Order(2)
+  public void gameChannelSpeaksBinaryWhenAsked() throws Exception {
+    int game = testStartGame('O').getGameId();
+    testJoinGame();
+
+    BoardReceiver receiver = new BoardReceiver("ws://localhost:8080/gameboard/" + game, 2,
+        () -> GameChannels.getSessions(game), GameChannels.BINARY_PROTOCOL);
+    try {
+      assertEquals(GameChannels.BINARY_PROTOCOL, receiver.getAcceptedProtocol());
+      assertEquals(true, testMove(game, 1, 1, 2).isValid());
+      assertEquals(true, testMove(game, 2, 0, 0).isValid());
+      receiver.await();
+      assertEquals(game, receiver.getBoard().getGameId());
+      assertEquals('O', receiver.getBoard().getCell(1, 2));
+      assertEquals('X', receiver.getBoard().getCell(0, 0));
+      assertEquals(1, receiver.getBoard().getTurn());
+    } finally {
+      receiver.stop();
+    }
+  }
+
+  @Test
+  @Order(2)
+  public void batchOfMovesAcrossGames() {
+    int game1 = testStartGame('X').getGameId();
+    testJoinGame();
+    int game2 = testStartGame('O').getGameId();
+    testJoinGame();
+
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/moves")
+        .body("[{gameId:" + game1 + ",playerId:1,x:0,y:0},"
+            + "{gameId:" + game2 + ",playerId:1,x:1,y:1},"
+            + "{gameId:" + game1 + ",playerId:1,x:0,y:1},"
+            + "{gameId:" + game1 + ",playerId:2,x:0,y:0},"
+            + "{gameId:" + game1 + ",playerId:2,x:2,y:2},"
+            + "{gameId:100000,playerId:1,x:0,y:0},"
+            + "{playerId:2,x:2,y:2}]")
+        .asString();
+    assertEquals(200, response.getStatus());
+
+    Message[] results = gson.fromJson(response.getBody(), Message[].class);
+    assertEquals(7, results.length);
+    assertEquals(true, results[0].isValid());
+    assertEquals(true, results[1].isValid());
+    assertEquals(103, results[2].getCode());
+    assertEquals(104, results[3].getCode());
+    assertEquals(true, results[4].isValid());
+    assertEquals(404, results[5].getCode());
+    assertEquals(true, results[6].isValid());
+
+    // Both games continue from the state left by the batch
+    assertEquals(true, testMove(game1, 1, 0, 1).isValid());
+    assertEquals(104, testMove(game2, 1, 2, 2).getCode());
+
+    response = Unirest.post("http://localhost:8080/moves").body("{").asString();
+    assertEquals(400, response.getStatus());
+  }
+
+  @Test
+  @Order(2)
+  public void playAgainstBot() {
+    int game = testStartGame('X').getGameId();
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/bot/" + game)
+        .asString();
+    assertEquals(200, response.getStatus());
+    assertEquals('O', gson.fromJson(response.getBody(), GameBoard.class).getPlayer2().getType());
+
+    // Following the hints against the bot, which answers every move, ends in a draw
+    for (int i = 0; i < 5; ++i) {
+      response = Unirest.get("http://localhost:8080/hint/" + game + "/1").asString();
+      assertEquals(200, response.getStatus());
+      JsonObject hint = gson.fromJson(response.getBody(), JsonObject.class);
+      int x = hint.get("x").getAsInt();
+      int y = hint.get("y").getAsInt();
+      assertEquals(true, testMove(game, 1, x, y).isValid());
+    }
+
+    response = Unirest.get("http://localhost:8080/hint/" + game + "/1").asString();
+    assertEquals(412, response.getStatus());
+    response = Unirest.post("http://localhost:8080/bot/" + game).asString();
+    assertEquals(412, response.getStatus());
+  }
+
+  @Test
+  @Order(2)
+  public void gomokuGame() {
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/startgame")
+        .body("type=X&size=15&winLength=5").asString();
+    assertEquals(200, response.getStatus());
+    GameBoard board = gson.fromJson(response.getBody(), GameBoard.class);
+    assertEquals(15, board.getSize());
+    testJoinGame();
+
+    int game = board.getGameId();
+    for (int i = 0; i < 4; ++i) {
+      assertEquals(true, testMove(game, 1, 10, i + 10).isValid());
+      assertEquals(true, testMove(game, 2, 0, i).isValid());
+    }
+    assertEquals(true, testMove(game, 1, 10, 14).isValid());
+    assertEquals(false, testMove(game, 2, 15, 0).isValid());
+  }
+
+  @Test
+  @Order(2)
+  public void metricsAfterMoves() {
+    int game = testStartGame('X').getGameId();
+    testJoinGame();
+    assertEquals(true, testMove(game, 1, 0, 0).isValid());
+    assertEquals(false, testMove(game, 1, 1, 1).isValid());
+
+    HttpResponse<String> response = Unirest.get("http://localhost:8080/metrics").asString();
+    assertEquals(200, response.getStatus());
+    String metrics = response.getBody();
+    assertTrue(metrics.contains("# TYPE game_move_seconds summary"));
+    assertTrue(metrics.contains("game_move_rejections_total{code=\"103\"}"));
+    assertTrue(metrics.contains(
+        "http_request_seconds_count{method=\"POST\",route=\"/move/:gameId/:playerId\"}"));
+    assertTrue(metrics.contains("game_store_seconds_count{store=\"sqlite\",operation=\"save"));
+    assertTrue(metrics.contains("websocket_sessions{endpoint=\"/gameboard\"}"));
+  }
+
+  @Test
+  @Order(2)
+  public void finishedGamesInHistory() {
+    int game = testStartGame('X').getGameId();
+    testJoinGame();
+    assertEquals(true, testMove(game, 1, 0, 0).isValid());
+    assertEquals(true, testMove(game, 2, 1, 0).isValid());
+    assertEquals(true, testMove(game, 1, 0, 1).isValid());
+    assertEquals(true, testMove(game, 2, 1, 1).isValid());
+    assertEquals(true, testMove(game, 1, 0, 2).isValid());
+
+    // Archived by the writer after the reply, the export is read until the game shows up
+    JsonObject record = null;
+    for (int attempt = 0; attempt < 100 && record == null; ++attempt) {
+      HttpResponse<String> response = Unirest.get("http://localhost:8080/history/export")
+          .asString();
+      assertEquals(200, response.getStatus());
+      assertTrue(response.getHeaders().getFirst("Content-Type").startsWith(
+          "application/x-ndjson"));
+      for (String line : response.getBody().split("\n")) {
+        JsonObject candidate = gson.fromJson(line, JsonObject.class);
+        if (candidate != null && candidate.get("gameId").getAsInt() == game) {
+          record = candidate;
+        }
+      }
+    }
+    assertNotEquals(null, record);
+    assertEquals(1, record.get("winner").getAsInt());
+    assertEquals(5, record.getAsJsonArray("moves").size());
+    assertEquals(1, record.getAsJsonArray("moves").get(1).getAsJsonArray().get(0).getAsInt());
+
+    long id = record.get("id").getAsLong();
+    HttpResponse<String> response = Unirest
+        .get("http://localhost:8080/history?limit=1&after=" + (id - 1)).asString();
+    assertEquals(200, response.getStatus());
+    JsonObject page = gson.fromJson(response.getBody(), JsonObject.class);
+    assertEquals(game, page.getAsJsonArray("games").get(0).getAsJsonObject()
+        .get("gameId").getAsInt());
+    assertEquals(id, page.get("next").getAsLong());
+
+    response = Unirest.get("http://localhost:8080/history?limit=0").asString();
+    assertEquals(400, response.getStatus());
+  }
+
+  @Test
+  @Order(2)
+  public void namedPlayersOnLeaderboard() throws Exception {
+    int wins = playerStats("alice") == null ? 0 : playerStats("alice").get("wins").getAsInt();
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/startgame")
+        .body("type=O&name=alice").asString();
+    assertEquals(200, response.getStatus());
+    int game = gson.fromJson(response.getBody(), GameBoard.class).getGameId();
+    response = Unirest.get("http://localhost:8080/joingame/" + game + "?name=bob").asString();
+    assertEquals(200, response.getStatus());
+
+    assertEquals(true, testMove(game, 1, 0, 0).isValid());
+    assertEquals(true, testMove(game, 2, 1, 0).isValid());
+    assertEquals(true, testMove(game, 1, 0, 1).isValid());
+    assertEquals(true, testMove(game, 2, 1, 1).isValid());
+    assertEquals(true, testMove(game, 1, 0, 2).isValid());
+
+    // Counted once the archive commits the game, after the reply
+    JsonObject alice = playerStats("alice");
+    for (int attempt = 0; attempt < 100
+        && (alice == null || alice.get("wins").getAsInt() == wins); ++attempt) {
+      Thread.sleep(10);
+      alice = playerStats("alice");
+    }
+    assertEquals(wins + 1, alice.get("wins").getAsInt());
+    assertTrue(playerStats("bob").get("losses").getAsInt() > 0);
+
+    response = Unirest.get("http://localhost:8080/leaderboard?limit=100").asString();
+    assertEquals(200, response.getStatus());
+    assertTrue(response.getBody().contains("\"name\":\"alice\""));
+    response = Unirest.post("http://localhost:8080/startgame").body("type=X&name=a%20b")
+        .asString();
+    assertEquals(400, response.getStatus());
+  }
+
+  private static JsonObject playerStats(String name) {
+    HttpResponse<String> response = Unirest.get("http://localhost:8080/players/" + name)
+        .asString();
+    return response.getStatus() == 404 ? null : gson.fromJson(response.getBody(),
+        JsonObject.class);
+  }
+
+  @Test
+  @Order(2)
+  public void lobbyPairsPlayers() throws Exception {
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/lobby")
+        .body("type=X&name=carol").asString();
+    assertEquals(200, response.getStatus());
+    JsonObject first = gson.fromJson(response.getBody(), JsonObject.class);
+    assertEquals("WAITING", first.get("status").getAsString());
+
+    WebSocketClient client = new WebSocketClient();
+    client.start();
+    try {
+      CompletableFuture<String> notification = new CompletableFuture<>();
+      client.connect(new WebSocketAdapter() {
+        @Override
+        public void onWebSocketText(String message) {
+          notification.complete(message);
+        }
+      }, new URI("ws://localhost:8080/lobby/" + first.get("ticket").getAsLong()))
+          .get(5, TimeUnit.SECONDS);
+
+      response = Unirest.post("http://localhost:8080/lobby").body("name=dave").asString();
+      assertEquals(200, response.getStatus());
+      long second = gson.fromJson(response.getBody(), JsonObject.class).get("ticket")
+          .getAsLong();
+
+      JsonObject matched = gson.fromJson(notification.get(5, TimeUnit.SECONDS),
+          JsonObject.class);
+      assertEquals("MATCHED", matched.get("status").getAsString());
+      assertEquals(1, matched.get("playerId").getAsInt());
+      assertEquals("X", matched.get("type").getAsString());
+      int game = matched.get("gameId").getAsInt();
+
+      response = Unirest.get("http://localhost:8080/lobby/" + second).asString();
+      JsonObject other = gson.fromJson(response.getBody(), JsonObject.class);
+      assertEquals(game, other.get("gameId").getAsInt());
+      assertEquals("O", other.get("type").getAsString());
+
+      assertEquals(true, testMove(game, 1, 1, 1).isValid());
+      assertEquals(true, testMove(game, 2, 0, 0).isValid());
+      response = Unirest.delete("http://localhost:8080/lobby/" + second).asString();
+      assertEquals(409, response.getStatus());
+      response = Unirest.get("http://localhost:8080/lobby/x").asString();
+      assertEquals(404, response.getStatus());
+    } finally {
+      client.stop();
+    }
+  }
+
+  @Test
+  @Order(2)
+  public void takenSecondSeatCannotBeJoined() throws Exception {
+    int game = testStartGame('X').getGameId();
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/bot/" + game)
+        .asString();
+    assertEquals(200, response.getStatus());
+    response = Unirest.get("http://localhost:8080/joingame/" + game + "?name=mallory")
+        .asString();
+    assertEquals(412, response.getStatus());
+
+    response = Unirest.post("http://localhost:8080/lobby").body("name=erin").asString();
+    long ticket = gson.fromJson(response.getBody(), JsonObject.class).get("ticket")
+        .getAsLong();
+    Unirest.post("http://localhost:8080/lobby").body("name=frank").asString();
+    JsonObject matched = null;
+    for (int attempt = 0; attempt < 100; ++attempt) {
+      response = Unirest.get("http://localhost:8080/lobby/" + ticket).asString();
+      matched = gson.fromJson(response.getBody(), JsonObject.class);
+      if (matched.get("status").getAsString().equals("MATCHED")) {
+        break;
+      }
+      Thread.sleep(10);
+    }
+    assertEquals("MATCHED", matched.get("status").getAsString());
+
+    response = Unirest.get("http://localhost:8080/joingame/" + matched.get("gameId").getAsInt()
+        + "?name=mallory").asString();
+    assertEquals(412, response.getStatus());
+  }
+
+  @Test
+  @Order(2)
+  public void startGameWithInvalidBoardSize() {
+    HttpResponse<String> response = Unirest.post("http://localhost:8080/startgame")
+        .body("type=X&size=4&winLength=5").asString();
+    assertEquals(400, response.getStatus());
+  }
+
+  @Test
+  @Order(2)
+  public void cannotMoveInUnknownGame() {
+    HttpResponse<String> response = Unirest
+        .post("http://localhost:8080/move/100000/1")
+        .body("x=0&y=0")
+        .asString();
+
+    assertEquals(404, response.getStatus());
+  }
+
   private static void restart() throws Exception {
     restart(false);
   }
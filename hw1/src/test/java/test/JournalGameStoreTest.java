@@ -0,0 +1,183 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import data.Durability;
+import data.JournalGameStore;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.List;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JournalGameStoreTest {
+
+  @TempDir
+  Path directory;
+
+  private JournalGameStore open(int snapshotEvery) throws Exception {
+    return open(Durability.SYNC, 0, snapshotEvery);
+  }
+
+  private JournalGameStore open(Durability durability, long forceIntervalMillis,
+      int snapshotEvery) throws Exception {
+    JournalGameStore store = new JournalGameStore(directory, durability, forceIntervalMillis,
+        snapshotEvery);
+    store.connect();
+    return store;
+  }
+
+  private static GameBoard play(JournalGameStore store, int gameId, int... cells)
+      throws Exception {
+    GameBoard board = new GameBoard(gameId);
+    board.setPlayer1(new Player('X', 1));
+    store.saveGameBoard(board);
+    board.setPlayer2(new Player('O', 2));
+    board.startGame();
+    store.saveGameBoard(board);
+
+    for (int i = 0; i < cells.length; i += 2) {
+      Move move = new Move(board.getPlayer(board.getTurn()), cells[i], cells[i + 1]);
+      board.move(move);
+      store.saveMove(board, move);
+    }
+    return board;
+  }
+
+  @Test
+  public void replaysMovesAfterRestart() throws Exception {
+    JournalGameStore store = open(1000);
+    play(store, 1, 0, 0, 1, 1, 0, 1, 2, 2, 0, 2);
+    play(store, 2, 1, 1);
+    play(store, 3, 2, 2);
+    store.deleteGameBoard(3);
+
+    // Simulate a crash: reopen without closing, so nothing is compacted
+    JournalGameStore recovered = open(1000);
+    List<GameBoard> boards = recovered.getGameBoards();
+    assertEquals(2, boards.size());
+    assertEquals(1, boards.get(0).getWinner());
+    assertEquals('O', boards.get(0).getCell(1, 1));
+    assertEquals('X', boards.get(1).getCell(1, 1));
+    assertEquals(2, boards.get(1).getTurn());
+    recovered.close();
+  }
+
+  @Test
+  public void recoversFromSnapshotAndTornTail() throws Exception {
+    JournalGameStore store = open(5);
+    play(store, 1, 0, 0, 1, 1, 0, 1, 2, 2);
+    store.close();
+
+    // Garbage after the last complete record is ignored
+    try (FileChannel journal = FileChannel.open(directory.resolve("games.journal"),
+        StandardOpenOption.APPEND)) {
+      journal.write(ByteBuffer.wrap(new byte[] {'M', 0, 0}));
+    }
+
+    store = open(5);
+    GameBoard board = store.getGameBoards().get(0);
+    assertEquals('X', board.getCell(0, 1));
+    assertEquals('O', board.getCell(2, 2));
+
+    Move move = new Move(board.getPlayer1(), 0, 2);
+    board.move(move);
+    store.saveMove(board, move);
+    store.close();
+
+    store = open(5);
+    assertEquals(1, store.getGameBoards().get(0).getWinner());
+    assertEquals(true, Files.exists(directory.resolve("games.snapshot")));
+    store.close();
+  }
+
+  @Test
+  public void replaysJournalOfInterruptedCompaction() throws Exception {
+    JournalGameStore store = open(1000);
+    play(store, 1, 0, 0);
+    store.close();
+
+    store = open(1000);
+    play(store, 2, 1, 1, 2, 2);
+
+    // Simulate a crash right after a compaction moved the journal aside and started a
+    // new one, before it wrote the snapshot
+    Files.copy(directory.resolve("games.journal"), directory.resolve("games.journal.old"),
+        StandardCopyOption.REPLACE_EXISTING);
+    try (FileChannel channel = FileChannel.open(directory.resolve("games.snapshot"))) {
+      ByteBuffer generation = ByteBuffer.allocate(Long.BYTES);
+      channel.read(generation);
+      generation.flip();
+      Files.write(directory.resolve("games.journal"), ByteBuffer.allocate(Long.BYTES)
+          .putLong(generation.getLong() + 1).array());
+    }
+
+    JournalGameStore recovered = open(1000);
+    List<GameBoard> boards = recovered.getGameBoards();
+    assertEquals(2, boards.size());
+    assertEquals('O', boards.get(1).getCell(2, 2));
+    assertEquals(false, Files.exists(directory.resolve("games.journal.old")));
+    recovered.close();
+  }
+
+  @Test
+  public void seatsSurviveReplayAndSnapshot() throws Exception {
+    JournalGameStore store = open(1000);
+    GameBoard board = new GameBoard(1);
+    board.setPlayer1(new Player('X', 1));
+    board.setPlayerName(1, "alice");
+    board.setPlayer2(new Player('O', 2));
+    board.setBot(true);
+    board.startGame();
+    store.saveGameBoard(board);
+    Move move = new Move(board.getPlayer1(), 1, 1);
+    board.move(move);
+    store.saveMove(board, move);
+
+    // Replayed from the journal
+    store = open(1000);
+    board = store.getGameBoards().get(0);
+    assertEquals(true, board.hasBot());
+    assertEquals("alice", board.getPlayerName(1));
+    assertEquals('X', board.getCell(1, 1));
+    store.close();
+
+    // Loaded from the snapshot written on close
+    store = open(1000);
+    board = store.getGameBoards().get(0);
+    assertEquals(true, board.hasBot());
+    assertEquals("alice", board.getPlayerName(1));
+    assertEquals(null, board.getPlayerName(2));
+    store.close();
+  }
+
+  @Test
+  public void groupCommitWaitsForForce() throws Exception {
+    JournalGameStore store = open(Durability.GROUP_COMMIT, 5, 1000);
+    play(store, 1, 0, 0, 1, 1, 0, 1, 2, 2);
+    play(store, 2, 1, 1);
+
+    // Simulate a crash, every save returned so must have reached the disk
+    JournalGameStore recovered = open(1000);
+    List<GameBoard> boards = recovered.getGameBoards();
+    assertEquals(2, boards.size());
+    assertEquals('O', boards.get(0).getCell(2, 2));
+    assertEquals('X', boards.get(1).getCell(1, 1));
+    recovered.close();
+  }
+
+  @Test
+  public void resetBeforeConnectFails() {
+    JournalGameStore store = new JournalGameStore(directory, Durability.SYNC, 0, 1000);
+    assertThrows(SQLException.class, store::reset);
+  }
+}
@@ -0,0 +1,41 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import data.Leaderboard;
+import java.util.Arrays;
+import java.util.List;
+import models.PlayerStats;
+import org.junit.jupiter.api.Test;
+
+public class LeaderboardTest {
+
+  @Test
+  public void rankedAsGamesFinish() {
+    Leaderboard leaderboard = new Leaderboard();
+    leaderboard.load(Arrays.asList(new PlayerStats("ann", 2, 0, 0),
+        new PlayerStats("bob", 1, 3, 1)));
+
+    leaderboard.record("bob", "carl", 1);
+    leaderboard.record("carl", null, 0);
+    leaderboard.record("bob", "ann", 0);
+    leaderboard.record(null, "dave", 1);
+    leaderboard.record("ann", "ann", 1);
+
+    List<PlayerStats> top = leaderboard.top(10);
+    assertEquals(4, top.size());
+    assertEquals("bob", top.get(0).getName());
+    assertEquals(2, top.get(0).getWins());
+    assertEquals(2, top.get(0).getDraws());
+    assertEquals("ann", top.get(1).getName());
+    assertEquals("carl", top.get(2).getName());
+    assertEquals(1, top.get(2).getLosses());
+    assertEquals("dave", top.get(3).getName());
+    assertEquals(1, top.get(3).getLosses());
+
+    assertEquals(2, leaderboard.top(2).size());
+    assertEquals(4, leaderboard.size());
+    assertNull(leaderboard.get("eve"));
+  }
+}
@@ -0,0 +1,95 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import controllers.Lobby;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class LobbyTest {
+
+  @Test
+  public void pairsCompatibleMarksAndExpiresTheRest() throws Exception {
+    AtomicInteger games = new AtomicInteger();
+    List<Lobby.Ticket> firstPlayers = new CopyOnWriteArrayList<>();
+    Lobby lobby = new Lobby(200, 16, (player1, player2) -> {
+      firstPlayers.add(player1);
+      Lobby.started(games.incrementAndGet(), player1, player2);
+    });
+
+    try {
+      Lobby.Ticket x1 = lobby.enter('X', "ann");
+      Lobby.Ticket x2 = lobby.enter('X', null);
+      Lobby.Ticket o = lobby.enter('O', null);
+      Lobby.Ticket any = lobby.enter((char) 0, null);
+      Lobby.Ticket cancelled = lobby.enter('O', null);
+      assertTrue(lobby.cancel(cancelled).get());
+
+      // A player taking either mark gets the one the other player did not ask for
+      assertEquals(Lobby.Status.MATCHED, x1.getDone().get(1, TimeUnit.SECONDS).getStatus());
+      assertEquals(Lobby.Status.MATCHED, o.getDone().get(1, TimeUnit.SECONDS).getStatus());
+      assertEquals(Lobby.Status.MATCHED, any.getDone().get(1, TimeUnit.SECONDS).getStatus());
+      assertEquals('O', any.getAssignedMark());
+      assertEquals(x1, firstPlayers.get(0));
+      assertEquals(x2, firstPlayers.get(1));
+      assertTrue(o.toJson().contains("\"playerId\":2"));
+      assertEquals(Lobby.Status.CANCELLED, cancelled.getStatus());
+      assertEquals(2, games.get());
+
+      Lobby.Ticket late = lobby.enter('X', null);
+      assertEquals(Lobby.Status.EXPIRED, late.getDone().get(1, TimeUnit.SECONDS).getStatus());
+      assertEquals(late, lobby.get(late.getId()));
+    } finally {
+      lobby.close();
+    }
+  }
+
+  @Test
+  public void playersOfAGameThatFailedToStartWaitAgain() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    AtomicReference<Lobby> holder = new AtomicReference<>();
+    Lobby lobby = new Lobby(1000, 16, (player1, player2) -> {
+      if (attempts.incrementAndGet() == 1) {
+        holder.get().requeue(player1, player2);
+      } else {
+        Lobby.started(7, player1, player2);
+      }
+    });
+    holder.set(lobby);
+
+    try {
+      Lobby.Ticket first = lobby.enter('X', null);
+      Lobby.Ticket second = lobby.enter('O', null);
+      assertEquals(Lobby.Status.MATCHED,
+          first.getDone().get(1, TimeUnit.SECONDS).getStatus());
+      // Both seats are published before either player is notified
+      assertTrue(second.toJson().contains("\"gameId\":7"));
+      assertEquals(2, attempts.get());
+    } finally {
+      lobby.close();
+    }
+  }
+
+  @Test
+  public void everyCancelIsAnsweredWhilePlayersArePaired() throws Exception {
+    AtomicInteger games = new AtomicInteger();
+    Lobby lobby = new Lobby(10_000, 4096, (player1, player2) ->
+        Lobby.started(games.incrementAndGet(), player1, player2));
+
+    try {
+      for (int i = 0; i < 2000; ++i) {
+        Lobby.Ticket ticket = lobby.enter((char) 0, null);
+        // Often cancelled while the lobby thread holds it looking for a partner
+        boolean cancelled = lobby.cancel(ticket).get(1, TimeUnit.SECONDS);
+        assertEquals(cancelled, ticket.getStatus() == Lobby.Status.CANCELLED);
+      }
+    } finally {
+      lobby.close();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import data.Durability;
+import data.MappedGameStore;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.List;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MappedGameStoreTest {
+
+  @TempDir
+  Path directory;
+
+  @Test
+  public void savedGamesSurviveReopen() throws Exception {
+    MappedGameStore store = new MappedGameStore(directory.resolve("games.mmap"),
+        Durability.ASYNC, 0);
+    store.connect();
+
+    GameBoard small = new GameBoard(1);
+    small.setPlayer1(new Player('O', 1));
+    store.saveGameBoard(small);
+    small.setPlayer2(new Player('X', 2));
+    small.startGame();
+    small.move(new Move(small.getPlayer1(), 2, 1));
+    store.saveGameBoard(small);
+
+    GameBoard large = new GameBoard(70000, 25, 5);
+    large.setPlayer1(new Player('X', 1));
+    large.setPlayer2(new Player('O', 2));
+    large.setBot(true);
+    large.setPlayerName(1, "alice");
+    large.startGame();
+    large.move(new Move(large.getPlayer1(), 24, 24));
+    large.move(new Move(large.getPlayer2(), 0, 7));
+    store.saveGameBoard(large);
+    GameBoard deleted = new GameBoard(2);
+    deleted.setPlayer1(new Player('X', 1));
+    store.saveGameBoard(deleted);
+    store.deleteGameBoard(2);
+    store.close();
+
+    store.connect();
+    List<GameBoard> boards = store.getGameBoards();
+    assertEquals(2, boards.size());
+    assertEquals('O', boards.get(0).getCell(2, 1));
+    assertEquals(2, boards.get(0).getTurn());
+    assertEquals(70000, boards.get(1).getGameId());
+    assertEquals(25, boards.get(1).getSize());
+    assertEquals(5, boards.get(1).getWinLength());
+    assertEquals('X', boards.get(1).getCell(24, 24));
+    assertEquals(true, boards.get(1).hasBot());
+    assertEquals("alice", boards.get(1).getPlayerName(1));
+    assertEquals(null, boards.get(1).getPlayerName(2));
+    assertEquals(false, boards.get(0).hasBot());
+    assertEquals('O', boards.get(1).getCell(0, 7));
+
+    store.reset();
+    assertEquals(0, store.getGameBoards().size());
+    store.close();
+  }
+
+  @Test
+  public void tornSaveKeepsPreviousState() throws Exception {
+    Path file = directory.resolve("games.mmap");
+    MappedGameStore store = new MappedGameStore(file, Durability.ASYNC, 0);
+    store.connect();
+    GameBoard board = new GameBoard(1);
+    board.setPlayer1(new Player('X', 1));
+    board.setPlayer2(new Player('O', 2));
+    board.startGame();
+    store.saveGameBoard(board);
+    board.move(new Move(board.getPlayer1(), 1, 1));
+    store.saveGameBoard(board);
+    store.close();
+
+    // The second save went to the second slot of record 1, scribble over its cells
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] {0x55}), 512 + 256 + 96);
+    }
+
+    store.connect();
+    List<GameBoard> boards = store.getGameBoards();
+    assertEquals(1, boards.size());
+    assertEquals(1, boards.get(0).getTurn());
+    assertEquals(0, boards.get(0).getCell(1, 1));
+    store.close();
+  }
+
+  @Test
+  public void deletedRecordsAreReused() throws Exception {
+    Path file = directory.resolve("games.mmap");
+    MappedGameStore store = new MappedGameStore(file, Durability.SYNC, 0);
+    store.connect();
+    for (int gameId = 1; gameId <= 3; ++gameId) {
+      GameBoard board = new GameBoard(gameId);
+      board.setPlayer1(new Player('X', 1));
+      store.saveGameBoard(board);
+    }
+    store.deleteGameBoard(2);
+    long size = Files.size(file);
+
+    // Game 100 takes the record game 2 left
+    GameBoard board = new GameBoard(100);
+    board.setPlayer1(new Player('O', 1));
+    store.saveAll(() -> store.saveGameBoard(board));
+    store.close();
+    assertEquals(size, Files.size(file));
+
+    store.connect();
+    List<GameBoard> boards = store.getGameBoards();
+    assertEquals(3, boards.size());
+    assertEquals(1, boards.get(0).getGameId());
+    assertEquals(3, boards.get(1).getGameId());
+    assertEquals(100, boards.get(2).getGameId());
+    assertEquals('O', boards.get(2).getPlayer1().getType());
+    store.close();
+  }
+
+  @Test
+  public void connectRejectsForeignFile() throws Exception {
+    Path file = directory.resolve("games.mmap");
+    Files.write(file, new byte[384]);
+    MappedGameStore store = new MappedGameStore(file, Durability.ASYNC, 0);
+    assertThrows(SQLException.class, store::connect);
+    store.close();
+  }
+}
@@ -0,0 +1,63 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.concurrent.ForkJoinPool;
+import models.Engine;
+import models.GameBoard;
+import models.MctsEngine;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+
+public class MctsEngineTest {
+  private final Player p1 = new Player('X', 1);
+  private final Player p2 = new Player('O', 2);
+
+  private GameBoard newBoard(int size, int winLength) {
+    GameBoard board = new GameBoard(1, size, winLength);
+    board.setPlayer1(p1);
+    board.setPlayer2(p2);
+    board.startGame();
+    return board;
+  }
+
+  @Test
+  public void playsWholeGameWithinBudget() throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      Engine engine = new MctsEngine(pool, 0, 2000);
+      GameBoard board = newBoard(7, 4);
+      int moves = 0;
+      while (board.getWinner() == 0 && !board.isDraw()) {
+        // Reuses the tree of the previous move of the same game
+        board.move(engine.bestMove(board));
+        moves++;
+      }
+      assertEquals(true, moves >= 7);
+      assertEquals(null, engine.bestMove(board));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void findsBlockOnLargeBoard() throws Exception {
+    Engine engine = new MctsEngine(ForkJoinPool.commonPool(), 50, 0);
+    GameBoard board = newBoard(15, 5);
+    board.move(new Move(p1, 3, 3));
+    board.move(new Move(p2, 10, 10));
+    board.move(new Move(p1, 4, 4));
+    board.move(new Move(p2, 10, 11));
+    board.move(new Move(p1, 5, 5));
+    board.move(new Move(p2, 0, 14));
+    board.move(new Move(p1, 6, 6));
+
+    Move block = engine.bestMove(board);
+    assertEquals(true, block.getX() == block.getY());
+    assertNotEquals(0, board.getCell(6, 6));
+    board.move(block);
+    assertEquals(0, board.getWinner());
+  }
+}
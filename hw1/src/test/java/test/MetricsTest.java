@@ -0,0 +1,39 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import metrics.Histogram;
+import metrics.Metrics;
+import org.junit.jupiter.api.Test;
+
+public class MetricsTest {
+
+  @Test
+  public void quantilesWithinBucketError() {
+    Histogram histogram = new Histogram();
+    for (int i = 1; i <= 1000; ++i) {
+      histogram.record(i * 1000L);
+    }
+
+    assertEquals(1000, histogram.getCount());
+    assertEquals(500_500_000L, histogram.getSum());
+    long median = histogram.getQuantile(0.5);
+    assertTrue(median >= 500_000 && median <= 500_000 * 1.125, "median " + median);
+    long max = histogram.getQuantile(1);
+    assertTrue(max >= 1_000_000 && max <= 1_000_000 * 1.125, "max " + max);
+    assertEquals(0, new Histogram().getQuantile(0.99));
+  }
+
+  @Test
+  public void renderPrometheusText() {
+    Metrics.counter("test_events_total", "Events", "kind", "a\"b").add(3);
+    Metrics.histogram("test_latency_seconds", "Latency").record(2_000_000_000L);
+
+    String text = Metrics.render();
+    assertTrue(text.contains("# TYPE test_events_total counter\n"));
+    assertTrue(text.contains("test_events_total{kind=\"a\\\"b\"} 3\n"));
+    assertTrue(text.contains("test_latency_seconds_sum 2.000000000\n"));
+    assertTrue(text.contains("test_latency_seconds_count 1\n"));
+  }
+}
@@ -0,0 +1,27 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import controllers.VirtualThreadPool;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class VirtualThreadPoolTest {
+
+  @Test
+  public void availableFromJava21() throws Exception {
+    VirtualThreadPool pool = VirtualThreadPool.create();
+    if (Runtime.version().feature() < 21) {
+      assertNull(pool);
+      return;
+    }
+
+    pool.start();
+    CompletableFuture<String> thread = new CompletableFuture<>();
+    pool.execute(() -> thread.complete(Thread.currentThread().toString()));
+    assertEquals(true, thread.get(5, TimeUnit.SECONDS).startsWith("VirtualThread"));
+    pool.stop();
+  }
+}
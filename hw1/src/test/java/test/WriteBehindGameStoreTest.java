@@ -0,0 +1,200 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import data.Durability;
+import data.GameStore;
+import data.WriteBehindGameStore;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import models.GameBoard;
+import models.Move;
+import models.Player;
+import org.junit.jupiter.api.Test;
+
+public class WriteBehindGameStoreTest {
+
+  /**
+   * Keeps saved boards in memory and records every batch it receives.
+   */
+  private static class RecordingStore implements GameStore {
+    private final Map<Integer, GameBoard> boards = new TreeMap<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private int saves;
+    private int failuresLeft;
+    // Counted down when a failing batch starts, which then waits for the release
+    private CountDownLatch failing;
+    private CountDownLatch release;
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public synchronized void reset() {
+      boards.clear();
+    }
+
+    @Override
+    public synchronized List<GameBoard> getGameBoards() {
+      return new ArrayList<>(boards.values());
+    }
+
+    @Override
+    public synchronized void saveGameBoard(GameBoard board) {
+      boards.put(board.getGameId(), board);
+      saves++;
+    }
+
+    @Override
+    public synchronized void deleteGameBoard(int gameId) {
+      boards.remove(gameId);
+    }
+
+    @Override
+    public synchronized void saveGameBoards(Collection<GameBoard> batch) {
+      if (failuresLeft > 0) {
+        failuresLeft--;
+        if (failing != null) {
+          failing.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        throw new IllegalStateException("Disk on fire");
+      }
+      batchSizes.add(batch.size());
+      for (GameBoard board : batch) {
+        saveGameBoard(board);
+      }
+    }
+  }
+
+  private static GameBoard newBoard(int gameId) {
+    GameBoard board = new GameBoard(gameId);
+    board.setPlayer1(new Player('X', 1));
+    board.setPlayer2(new Player('O', 2));
+    board.startGame();
+    return board;
+  }
+
+  @Test
+  public void coalescesSavesOfOneGame() throws Exception {
+    RecordingStore delegate = new RecordingStore();
+    WriteBehindGameStore store = new WriteBehindGameStore(delegate, Durability.ASYNC, 50);
+    store.connect();
+
+    GameBoard board = newBoard(1);
+    store.saveGameBoard(board);
+    board.move(new Move(board.getPlayer1(), 0, 0));
+    store.saveGameBoard(board);
+    board.move(new Move(board.getPlayer2(), 1, 1));
+    store.saveGameBoard(board);
+    store.saveGameBoard(newBoard(2));
+    store.saveGameBoard(newBoard(3));
+    store.deleteGameBoard(3);
+    store.close();
+
+    // The deletion replaced the queued save of game 3
+    assertEquals(2, delegate.saves);
+    assertEquals(List.of(2), delegate.batchSizes);
+    assertEquals(2, delegate.getGameBoards().size());
+    GameBoard saved = delegate.getGameBoards().get(0);
+    assertEquals('X', saved.getCell(0, 0));
+    assertEquals('O', saved.getCell(1, 1));
+  }
+
+  @Test
+  public void groupCommitWaitsForWrite() throws Exception {
+    RecordingStore delegate = new RecordingStore();
+    WriteBehindGameStore store = new WriteBehindGameStore(delegate, Durability.GROUP_COMMIT, 5);
+    store.connect();
+
+    GameBoard board = newBoard(1);
+    store.saveGameBoard(board);
+    assertEquals(1, delegate.getGameBoards().size());
+
+    // Later moves must not leak into the queued copy
+    board.move(new Move(board.getPlayer1(), 0, 0));
+    assertEquals(0, delegate.getGameBoards().get(0).getCell(0, 0));
+    store.close();
+  }
+
+  @Test
+  public void saveAllWaitsOnceForEveryBoard() throws Exception {
+    RecordingStore delegate = new RecordingStore();
+    WriteBehindGameStore store = new WriteBehindGameStore(delegate, Durability.GROUP_COMMIT, 50);
+    store.connect();
+
+    store.saveAll(() -> {
+      for (int gameId = 1; gameId <= 10; ++gameId) {
+        store.saveGameBoard(newBoard(gameId));
+      }
+    });
+
+    // Written together, and written before saveAll returned
+    assertEquals(List.of(10), delegate.batchSizes);
+    assertEquals(10, delegate.getGameBoards().size());
+
+    delegate.failuresLeft = 3;
+    assertThrows(SQLException.class, () -> store.saveAll(() -> store.saveGameBoard(newBoard(11))));
+    store.close();
+  }
+
+  @Test
+  public void failedWritesAreRetriedThenReported() throws Exception {
+    RecordingStore delegate = new RecordingStore();
+    WriteBehindGameStore store = new WriteBehindGameStore(delegate, Durability.GROUP_COMMIT, 0);
+    store.connect();
+
+    delegate.failuresLeft = 1;
+    store.saveGameBoard(newBoard(1));
+    assertEquals(1, delegate.getGameBoards().size());
+
+    delegate.failuresLeft = 3;
+    assertThrows(SQLException.class, () -> store.saveGameBoard(newBoard(2)));
+
+    // The writer survived the failures
+    store.saveGameBoard(newBoard(3));
+    assertEquals(2, delegate.getGameBoards().size());
+    store.close();
+  }
+
+  @Test
+  public void deletionQueuedDuringFailedWriteIsKept() throws Exception {
+    RecordingStore delegate = new RecordingStore();
+    WriteBehindGameStore store = new WriteBehindGameStore(delegate, Durability.ASYNC, 0);
+    store.connect();
+
+    delegate.failuresLeft = 1;
+    delegate.failing = new CountDownLatch(1);
+    delegate.release = new CountDownLatch(1);
+    store.saveGameBoard(newBoard(1));
+    store.saveGameBoard(newBoard(2));
+    assertTrue(delegate.failing.await(5, TimeUnit.SECONDS));
+
+    // Pruned while the batch that saves it fails, the retry must not bring it back
+    store.deleteGameBoard(1);
+    delegate.release.countDown();
+    store.flush();
+    store.close();
+
+    List<GameBoard> boards = delegate.getGameBoards();
+    assertEquals(1, boards.size());
+    assertEquals(2, boards.get(0).getGameId());
+  }
+}